@@ -0,0 +1,44 @@
+#
+# This file is part of trust|me
+# Copyright(c) 2013 - 2017 Fraunhofer AISEC
+# Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+#
+# This program is free software; you can redistribute it and/or modify it
+# under the terms and conditions of the GNU General Public License,
+# version 2 (GPL 2), as published by the Free Software Foundation.
+#
+# This program is distributed in the hope it will be useful, but WITHOUT
+# ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+# FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+#
+# You should have received a copy of the GNU General Public License along with
+# this program; if not, see <http://www.gnu.org/licenses/>
+#
+# The full GNU General Public License is included in this distribution in
+# the file called "COPYING".
+#
+# Contact Information:
+# Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+#
+
+# JMH benchmarks of the control channel, run on the host:
+#   java -jar $ANDROID_HOST_OUT/framework/trustme.cml.communication.benchmarks.jar [regexp] [jmh options]
+# Allocation rates (gc.alloc.rate.norm) are reported for every benchmark.
+
+LOCAL_PATH:= $(call my-dir)
+
+include $(CLEAR_VARS)
+# the library is compiled in, as static Android libraries cannot be linked on the host
+LOCAL_SRC_FILES := $(call all-subdir-java-files, src)
+LOCAL_SRC_FILES += $(call all-java-files-under, ../trustme.cml.communication/src)
+
+LOCAL_JAVA_LIBRARIES := layoutlib
+LOCAL_STATIC_JAVA_LIBRARIES := \
+    jmh-core \
+    trustme.cml.control-proto-java-host
+LOCAL_ANNOTATION_PROCESSORS := jmh-generator-annprocess
+LOCAL_ANNOTATION_PROCESSOR_CLASSES := org.openjdk.jmh.generators.BenchmarkProcessor
+LOCAL_JAR_MANIFEST := manifest.txt
+
+LOCAL_MODULE := trustme.cml.communication.benchmarks
+include $(BUILD_HOST_JAVA_LIBRARY)
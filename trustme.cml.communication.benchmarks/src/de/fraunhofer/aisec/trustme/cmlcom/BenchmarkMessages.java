@@ -0,0 +1,145 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.UUID;
+
+import com.google.protobuf.nano.MessageNano;
+
+import de.fraunhofer.aisec.trustme.Container.ContainerStatus;
+import de.fraunhofer.aisec.trustme.Control.ControllerToDaemon;
+import de.fraunhofer.aisec.trustme.Control.DaemonToController;
+
+/**
+ * Messages and streams shared by the benchmarks.
+ */
+final class BenchmarkMessages {
+    private BenchmarkMessages() {}
+
+    static ControllerToDaemon newStatusRequest() {
+        ControllerToDaemon msg = new ControllerToDaemon();
+        msg.command = ControllerToDaemon.GET_CONTAINER_STATUS;
+        msg.containerUuids = new String[] { "4b8e4bd5-1e42-4cd5-9e70-0f5b3c2b1a7d" };
+        return msg;
+    }
+
+    /**
+     * Returns a request naming enough containers to be at least the given
+     * number of bytes long when serialized. Compressible requests repeat
+     * nearly the same uuid, the others use random uuids which deflate only
+     * reduces to about the size of their hex digits' entropy.
+     */
+    static ControllerToDaemon newLargeRequest(int size, boolean compressible) {
+        // field tag, length and the 36 characters of a uuid
+        int entries = Math.max(1, (size + 37) / 38);
+        Random random = new Random(size);
+        ControllerToDaemon msg = new ControllerToDaemon();
+        msg.command = ControllerToDaemon.GET_CONTAINER_STATUS;
+        msg.containerUuids = new String[entries];
+        for (int i = 0; i < entries; ++i) {
+            if (compressible)
+                msg.containerUuids[i] = String.format("%08x-1e42-4cd5-9e70-0f5b3c2b1a7d", i);
+            else
+                msg.containerUuids[i] = new UUID(random.nextLong(), random.nextLong()).toString();
+        }
+        return msg;
+    }
+
+    /**
+     * Returns a message from cmld carrying container status entries which is
+     * at least the given number of bytes long when serialized.
+     */
+    static DaemonToController newDaemonMessage(int size) {
+        DaemonToController msg = new DaemonToController();
+        msg.containerStatus = new ContainerStatus[] { newStatus(0) };
+        int entrySize = msg.getSerializedSize();
+
+        int entries = Math.max(1, (size + entrySize - 1) / entrySize);
+        msg.containerStatus = new ContainerStatus[entries];
+        for (int i = 0; i < entries; ++i)
+            msg.containerStatus[i] = newStatus(i);
+        return msg;
+    }
+
+    private static ContainerStatus newStatus(int i) {
+        ContainerStatus status = new ContainerStatus();
+        status.uuid = String.format("%08x-1e42-4cd5-9e70-0f5b3c2b1a7d", i);
+        status.name = "a" + (i % 10);
+        status.state = i % 4;
+        return status;
+    }
+
+    /**
+     * Returns the given message as a frame as written to the socket.
+     */
+    static byte[] encodeFrame(MessageNano message) {
+        byte[] encoded = MessageNano.toByteArray(message);
+        byte[] frame = new byte[Framing.HEADER_SIZE + encoded.length];
+        Framing.writeHeader(frame, 0, encoded.length, 0);
+        System.arraycopy(encoded, 0, frame, Framing.HEADER_SIZE, encoded.length);
+        return frame;
+    }
+
+    /**
+     * Stream returning the same data over and over again.
+     */
+    static final class RepeatingInputStream extends InputStream {
+        private final byte[] data;
+        private int position;
+
+        RepeatingInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            int b = data[position] & 0xff;
+            position = (position + 1) % data.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            int n = Math.min(length, data.length - position);
+            System.arraycopy(data, position, buffer, offset, n);
+            position = (position + n) % data.length;
+            return n;
+        }
+    }
+
+    /**
+     * Stream discarding everything written to it.
+     */
+    static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {}
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {}
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import android.util.Log;
+
+/**
+ * Minimal stand-in for cmld answering every request with the same response,
+ * or echoing every frame back unchanged if no response is given. It listens
+ * on the loopback interface: the benchmarks drive the stream based Sender
+ * and Receiver over a java.net.Socket, which cannot connect to AF_UNIX
+ * sockets; only SocketChannel can, as used by the emulator in the tools,
+ * and only on Java 16 and later, while the benchmarks are built with the
+ * library at its Java level. Loopback TCP with TCP_NODELAY behaves close
+ * enough to the local socket for comparing revisions of the library.
+ */
+final class CmldStandIn implements Runnable {
+    private static final String TAG = "CmldStandIn";
+
+    private final ServerSocket serverSocket;
+    private final byte[] responseFrame;
+
+    /**
+     * Creates a stand-in echoing every frame, including its header flags.
+     */
+    CmldStandIn() throws IOException {
+        this(null);
+    }
+
+    CmldStandIn(byte[] responseFrame) throws IOException {
+        this.serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        this.responseFrame = responseFrame;
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "cmld-stand-in");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Connects a new client socket to the stand-in.
+     */
+    Socket connect() throws IOException {
+        Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    void close() throws IOException {
+        serverSocket.close();
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setTcpNoDelay(true);
+                serve(new DataInputStream(socket.getInputStream()), socket.getOutputStream());
+            }
+            catch (IOException e) {
+                Log.d(TAG, "Connection closed: " + e);
+            }
+        }
+    }
+
+    private void serve(DataInputStream in, OutputStream out) throws IOException {
+        byte[] request = new byte[4096];
+        for (;;) {
+            int header = in.readInt();
+            int length = header & Framing.LENGTH_MASK;
+            if (Framing.HEADER_SIZE + length > request.length)
+                request = new byte[Framing.HEADER_SIZE + length];
+            in.readFully(request, Framing.HEADER_SIZE, length);
+            if (responseFrame != null) {
+                out.write(responseFrame);
+            }
+            else {
+                Framing.writeHeader(request, 0, length, header & Framing.FLAGS_MASK);
+                out.write(request, 0, Framing.HEADER_SIZE + length);
+            }
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.fraunhofer.aisec.trustme.Control.ControllerToDaemon;
+
+/**
+ * End-to-end latency of a request echoed back by a stand-in for cmld, with
+ * and without compression. Compressed requests are echoed as compressed
+ * frames, so each operation pays for deflating and inflating once. Comparing
+ * the compressed and uncompressed results per message size gives the
+ * crossover to use as compression threshold.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    @Param({"256", "1024", "4096", "16384", "65536", "262144", "1048576"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    @Param({"true", "false"})
+    public boolean compressible;
+
+    private CmldStandIn cmld;
+    private Socket socket;
+    private Sender sender;
+    private Receiver receiver;
+    private ControllerToDaemon request;
+
+    @Setup
+    public void setup() throws IOException {
+        cmld = new CmldStandIn();
+        cmld.start();
+        socket = cmld.connect();
+
+        sender = new Sender(socket.getOutputStream()) {
+            @Override
+            protected void exceptionHandler(Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+        // sizes beyond the socket send buffer which do not compress go in chunks
+        sender.setChunkedTransfer(true);
+        // every size is at or above the threshold, so this only turns compression on
+        sender.setCompressionThreshold(compressed ? 1 : 0);
+
+        receiver = new Receiver(socket.getInputStream()) {
+            @Override
+            protected void handleMessage(byte[] encodedMessage) {}
+
+            @Override
+            protected void exceptionHandler(Exception e) {
+                // the socket is closed on tear down
+            }
+        };
+        receiver.setPooledBuffers(true);
+
+        Thread thread = new Thread(receiver, "cml-control-receiver");
+        thread.setDaemon(true);
+        thread.start();
+
+        request = BenchmarkMessages.newLargeRequest(size, compressible);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        receiver.setSocketInputStream(null);
+        socket.close();
+        cmld.close();
+    }
+
+    @Benchmark
+    public byte[] sendMessageSyncWithResponse() throws IOException {
+        return sender.sendMessageSyncWithResponse(request, receiver, 5, TimeUnit.SECONDS);
+    }
+}
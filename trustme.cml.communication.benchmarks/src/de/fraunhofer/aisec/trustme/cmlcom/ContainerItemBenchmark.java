@@ -0,0 +1,122 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding a list of ContainerItems with ContainerItemCodec
+ * compared to Java serialization. Java serialization only writes the
+ * ScreenshotHandle of an item, whereas the codec is run both without and
+ * with the screenshots inlined.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContainerItemBenchmark {
+    @Param({"1", "16", "256"})
+    public int count;
+
+    @Param({"0", "65536"})
+    public int screenshotSize;
+
+    private List<ContainerItem> items;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        // with a loader, handles drop their screenshots once cached and
+        // serialize as references only
+        ScreenshotCache.setLoader(new ScreenshotCache.Loader() {
+            @Override
+            public byte[] load(ScreenshotHandle handle) {
+                return null;
+            }
+        });
+        items = new ArrayList<ContainerItem>(count);
+        for (int i = 0; i < count; ++i) {
+            ContainerItem item = new ContainerItem(String.format("%08x-1e42-4cd5-9e70-0f5b3c2b1a7d", i), "a" + i, i % 2 == 0);
+            item.setColor(0xff000000 | i * 0x10101);
+            item.setPartition_size(1024 + i);
+            item.setEncryption(true);
+            item.setPhone_ability(i % 3 == 0);
+            if (screenshotSize > 0)
+                item.setScreenshot(new byte[screenshotSize]);
+            items.add(item);
+        }
+        // room for all screenshots; decoded copies replace the originals'
+        // entries as they have the same uuids and content
+        ScreenshotCache.setLimits(count, (long) count * screenshotSize);
+        ScreenshotCache.awaitStored();
+        buffer = ByteBuffer.allocate(ContainerItemCodec.encodedSize(items, true));
+    }
+
+    @Benchmark
+    public Object javaSerialization() throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(items);
+        out.close();
+        return new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+
+    @Benchmark
+    public List<ContainerItem> codec() throws IOException {
+        buffer.clear();
+        ContainerItemCodec.encode(items, false, buffer);
+        buffer.flip();
+        return ContainerItemCodec.decodeList(buffer);
+    }
+
+    @Benchmark
+    public List<ContainerItem> codecWithScreenshots() throws IOException {
+        buffer.clear();
+        ContainerItemCodec.encode(items, true, buffer);
+        buffer.flip();
+        return ContainerItemCodec.decodeList(buffer);
+    }
+}
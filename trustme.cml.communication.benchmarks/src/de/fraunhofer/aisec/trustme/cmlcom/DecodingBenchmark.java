@@ -0,0 +1,96 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.fraunhofer.aisec.trustme.Control.DaemonToController;
+
+/**
+ * Receiving and decoding of messages from cmld, from tiny responses to
+ * messages as large as screenshots. The Receiver reads from a stream which
+ * repeats the same frame and parses each frame like the Communicator does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodingBenchmark {
+    @Param({"16", "1024", "65536", "1048576"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean pooled;
+
+    private BenchmarkReceiver receiver;
+
+    @Setup
+    public void setup() {
+        byte[] frame = BenchmarkMessages.encodeFrame(BenchmarkMessages.newDaemonMessage(size));
+        receiver = new BenchmarkReceiver(new BenchmarkMessages.RepeatingInputStream(frame));
+        receiver.setPooledBuffers(pooled);
+    }
+
+    @Benchmark
+    public DaemonToController receiveFrame() throws Exception {
+        receiver.receiveFrame();
+        return receiver.message;
+    }
+
+    private static final class BenchmarkReceiver extends Receiver {
+        DaemonToController message;
+
+        BenchmarkReceiver(InputStream socketInputStream) {
+            super(socketInputStream);
+        }
+
+        @Override
+        protected void handleFrame(ReceivedFrame frame) throws Exception {
+            message = DaemonToController.parseFrom(frame.newCodedInput());
+        }
+
+        @Override
+        protected void handleMessage(byte[] encodedMessage) {}
+
+        @Override
+        protected void exceptionHandler(Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The limits and statistics of the LRU cache holding container configurations.
+ */
+public class BoundedLruCacheTest {
+    private final List<String> evicted = new ArrayList<String>();
+
+    private BoundedLruCache<String, String> newCache(int maxEntries, long maxBytes) {
+        return new BoundedLruCache<String, String>(maxEntries, maxBytes) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+
+            @Override
+            protected void entryEvicted(String key, String value) {
+                evicted.add(key);
+            }
+        };
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedBeyondMaxEntries() {
+        BoundedLruCache<String, String> cache = newCache(2, 1024);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+        assertEquals(1, evicted.size());
+        assertEquals("b", evicted.get(0));
+    }
+
+    @Test
+    public void testEvictsBeyondMaxBytes() {
+        BoundedLruCache<String, String> cache = newCache(16, 10);
+        cache.put("a", "xxxx");
+        cache.put("b", "xxxx");
+        cache.put("c", "xxxx");
+
+        assertFalse(cache.contains("a"));
+        assertTrue(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+        assertEquals(8, cache.getStats().getByteCount());
+
+        // replacing an entry accounts for the new size only
+        cache.put("b", "xx");
+        assertEquals(6, cache.getStats().getByteCount());
+        assertEquals(2, cache.getStats().getEntryCount());
+    }
+
+    @Test
+    public void testEntryLargerThanLimitIsNotCached() {
+        BoundedLruCache<String, String> cache = newCache(16, 4);
+        cache.put("a", "xx");
+        cache.put("b", "xxxxxxxx");
+
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertTrue(evicted.isEmpty());
+    }
+
+    @Test
+    public void testLoweringLimitsEvicts() {
+        BoundedLruCache<String, String> cache = newCache(16, 1024);
+        for (int i = 0; i < 8; ++i)
+            cache.put("k" + i, "v");
+        cache.setLimits(3, 1024);
+
+        assertEquals(3, cache.getStats().getEntryCount());
+        assertTrue(cache.contains("k7"));
+        assertFalse(cache.contains("k4"));
+
+        cache.setLimits(0, 0);
+        assertEquals(0, cache.getStats().getEntryCount());
+        assertEquals(0, cache.getStats().getByteCount());
+    }
+
+    @Test
+    public void testStatistics() {
+        BoundedLruCache<String, String> cache = newCache(1, 1024);
+        cache.put("a", "xyz");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        cache.put("b", "xy");
+        // contains() neither counts nor reorders
+        cache.contains("a");
+
+        CacheStats stats = cache.getStats();
+        assertEquals(2, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(1, stats.getEvictionCount());
+        assertEquals(1, stats.getEntryCount());
+        assertEquals(2, stats.getByteCount());
+
+        // invalidation is not eviction
+        cache.remove("b");
+        cache.clear();
+        assertEquals(1, cache.getStats().getEvictionCount());
+        assertEquals(0, cache.getStats().getEntryCount());
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import de.fraunhofer.aisec.trustme.Control.ControllerToDaemon;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testReleasedBufferIsReused() {
+        BufferPool pool = new BufferPool(64*1024, 2);
+        byte[] buffer = pool.acquire(5000);
+        assertEquals(8192, buffer.length);
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(6000));
+        assertNotSame(buffer, pool.acquire(6000));
+    }
+
+    @Test
+    public void testForeignBuffersAreNotPooled() {
+        BufferPool pool = new BufferPool(64*1024, 2);
+        // neither a size class nor within the pooled sizes
+        pool.release(new byte[5000]);
+        pool.release(new byte[128*1024]);
+        assertEquals(8192, pool.acquire(5000).length);
+        assertEquals(128*1024 + 1, pool.acquire(128*1024 + 1).length);
+    }
+
+    @Test
+    public void testTransportBufferIsNotReleasedIntoPool() throws Exception {
+        final List<byte[]> received = new ArrayList<byte[]>();
+        Receiver receiver = new Receiver(null) {
+            @Override
+            protected void handleMessage(byte[] encodedMessage) {
+                received.add(encodedMessage);
+            }
+
+            @Override
+            protected void exceptionHandler(Exception e) {
+                throw new AssertionError(e);
+            }
+        };
+        receiver.setPooledBuffers(true);
+
+        // a buffer of a pooled size class, as handed over by a transport
+        byte[] first = Loopback.encode(Loopback.message(Loopback.payload(3000, false, 1)));
+        byte[] transportBuffer = Arrays.copyOf(first, 4096);
+        receiver.receiveFrame(transportBuffer, first.length, 0);
+
+        // inflating acquires a buffer of the same size class from the pool
+        ControllerToDaemon msg = Loopback.message(Loopback.payload(3500, true, 2));
+        byte[] compressed = compress(Loopback.encode(msg));
+        receiver.receiveFrame(compressed, compressed.length, Framing.FLAG_COMPRESSED);
+
+        assertEquals(2, received.size());
+        assertArrayEquals(first, received.get(0));
+        assertArrayEquals(Loopback.encode(msg), received.get(1));
+        assertArrayEquals(first, Arrays.copyOf(transportBuffer, first.length));
+    }
+
+    @Test
+    public void testDecodedResponseIsNotCopied() throws Exception {
+        Receiver receiver = new Receiver(null) {
+            @Override
+            protected boolean isResponse(ReceivedFrame frame, PendingResponse oldest) {
+                try {
+                    frame.setDecoded(ControllerToDaemon.parseFrom(frame.newCodedInput()));
+                }
+                catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+                return true;
+            }
+
+            @Override
+            protected void handleFrame(ReceivedFrame frame) {
+            }
+
+            @Override
+            protected void handleMessage(byte[] encodedMessage) {
+            }
+
+            @Override
+            protected void exceptionHandler(Exception e) {
+                throw new AssertionError(e);
+            }
+        };
+        receiver.setPooledBuffers(true);
+        PendingResponse response = receiver.expectResponse("request");
+        final List<byte[]> passed = new ArrayList<byte[]>();
+        response.addListener(new PendingResponse.DecodedListener() {
+            @Override
+            public void onResponse(byte[] encodedMessage) {
+                passed.add(encodedMessage);
+            }
+
+            @Override
+            public void onFailure(IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+
+        byte[] encoded = Loopback.encode(Loopback.message(Loopback.payload(3000, false, 3)));
+        byte[] buffer = Arrays.copyOf(encoded, 4096);
+        receiver.receiveFrame(buffer, encoded.length, 0);
+
+        assertTrue(response.getDecoded() instanceof ControllerToDaemon);
+        assertEquals(1, passed.size());
+        assertNull(passed.get(0));
+        // the frame's buffer is not referenced by the response
+        Arrays.fill(buffer, (byte) 0);
+        assertArrayEquals(encoded, response.get());
+        assertArrayEquals(encoded, receiver.getMessageAfterMarker());
+    }
+
+    /**
+     * Returns the payload of a compressed frame carrying the message.
+     */
+    private static byte[] compress(byte[] message) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        byte[] prefix = new byte[Framing.COMPRESSED_PREFIX_SIZE];
+        Framing.writeInt(prefix, 0, message.length);
+        payload.write(prefix, 0, prefix.length);
+
+        Deflater deflater = new Deflater();
+        deflater.setInput(message);
+        deflater.finish();
+        byte[] chunk = new byte[1024];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            payload.write(chunk, 0, n);
+        }
+        deflater.end();
+        assertTrue(payload.size() < message.length);
+        return payload.toByteArray();
+    }
+}
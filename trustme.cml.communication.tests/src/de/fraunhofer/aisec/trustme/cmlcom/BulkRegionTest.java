@@ -0,0 +1,126 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.fraunhofer.aisec.trustme.Control.ControllerToDaemon;
+
+public class BulkRegionTest {
+    private static final int CAPACITY = 64*1024;
+
+    private final List<BulkRegion> regions = new ArrayList<BulkRegion>();
+    private Loopback loopback;
+
+    @After
+    public void tearDown() throws Exception {
+        if (loopback != null)
+            loopback.close();
+        for (BulkRegion region : regions) {
+            region.close();
+            region.getFile().delete();
+        }
+    }
+
+    /**
+     * Sets up the loopback with a region of the given capacity on both ends
+     * and returns the Sender's side.
+     */
+    private BulkRegion connectRegion(int capacity) throws IOException {
+        BulkRegion region = BulkRegion.createTemp(capacity);
+        regions.add(region);
+        BulkRegion receiving = BulkRegion.open(region.getFile());
+        regions.add(receiving);
+
+        loopback = new Loopback();
+        loopback.sender.setBulkRegion(region, 1024);
+        loopback.receiver.setBulkRegion(receiving);
+        loopback.start();
+        return region;
+    }
+
+    @Test
+    public void testRoundTripReusesRegion() throws Exception {
+        BulkRegion region = connectRegion(CAPACITY);
+
+        for (int i = 0; i < 10; ++i) {
+            ControllerToDaemon msg = Loopback.message(Loopback.payload(20*1024, false, i), "small");
+            byte[] response = loopback.sender.sendMessageSyncWithResponse(msg, loopback.receiver, 5, TimeUnit.SECONDS);
+            assertArrayEquals(Loopback.encode(msg), response);
+        }
+        // every message went through the region, whose space has been reused
+        assertTrue(region.getWritePosition() > 3 * CAPACITY);
+        assertTrue(loopback.exceptions.isEmpty());
+    }
+
+    @Test
+    public void testMessageExceedingFreeSpaceIsSentInline() throws Exception {
+        BulkRegion region = connectRegion(16*1024);
+
+        ControllerToDaemon msg = Loopback.message(Loopback.payload(20*1024, false, 1));
+        byte[] response = loopback.sender.sendMessageSyncWithResponse(msg, loopback.receiver, 5, TimeUnit.SECONDS);
+        assertArrayEquals(Loopback.encode(msg), response);
+        assertEquals(0, region.getWritePosition());
+    }
+
+    @Test
+    public void testUndeliveredDescriptorsAreTakenBack() throws Exception {
+        BulkRegion region = BulkRegion.createTemp(CAPACITY);
+        regions.add(region);
+        final List<Exception> exceptions = new ArrayList<Exception>();
+        Sender sender = new Sender(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        }) {
+            @Override
+            protected void exceptionHandler(Exception e) {
+                exceptions.add(e);
+            }
+        };
+        sender.setBulkRegion(region, 1024);
+
+        for (int i = 0; i < 5; ++i)
+            sender.sendMessageSync(Loopback.message(Loopback.payload(20*1024, false, i)));
+        assertEquals(5, exceptions.size());
+        assertEquals(0, region.getWritePosition());
+    }
+}
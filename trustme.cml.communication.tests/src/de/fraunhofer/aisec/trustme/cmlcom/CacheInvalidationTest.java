@@ -0,0 +1,91 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import de.fraunhofer.aisec.trustme.Container;
+import de.fraunhofer.aisec.trustme.Container.ContainerStatus;
+
+public class CacheInvalidationTest {
+    private static ContainerStatus status(String uuid, int state) {
+        ContainerStatus status = new ContainerStatus();
+        status.uuid = uuid;
+        status.name = uuid;
+        status.state = state;
+        return status;
+    }
+
+    @Test
+    public void testLateResponseDoesNotRefillInvalidatedStatus() {
+        ContainerStatusCache cache = new ContainerStatusCache(60*1000);
+        long version = cache.getVersion();
+        // a stop is sent while the status request is in flight
+        cache.invalidate("a");
+
+        assertFalse(cache.update(new ContainerStatus[] { status("a", Container.RUNNING) }, version));
+        assertNull(cache.get("a"));
+        assertFalse(cache.replaceAll(new ContainerStatus[] { status("a", Container.RUNNING) }, version));
+        assertNull(cache.getAll());
+
+        assertTrue(cache.update(new ContainerStatus[] { status("a", Container.STOPPED) }, cache.getVersion()));
+        assertEquals(Container.STOPPED, cache.get("a").state);
+    }
+
+    @Test
+    public void testNotificationsAlwaysUpdate() {
+        ContainerStatusCache cache = new ContainerStatusCache(60*1000);
+        cache.invalidate("a");
+        cache.update(new ContainerStatus[] { status("a", Container.STOPPED) });
+        assertNotNull(cache.get("a"));
+    }
+
+    @Test
+    public void testLateLoadDoesNotRefillRemovedEntry() {
+        BoundedLruCache<String, String> cache = new BoundedLruCache<String, String>(8, 1024) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+        };
+        long version = cache.getVersion();
+        cache.put("b", "other");
+        assertTrue(cache.putIfUnchanged("a", "loaded", version));
+
+        version = cache.getVersion();
+        cache.remove("a");
+        assertFalse(cache.putIfUnchanged("a", "stale", version));
+        assertNull(cache.get("a"));
+
+        version = cache.getVersion();
+        cache.clear();
+        assertFalse(cache.putIfUnchanged("a", "stale", version));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import de.fraunhofer.aisec.trustme.Control.ControllerToDaemon;
+
+public class ChannelMetricsTest {
+    @Test
+    public void testQueueDepthIsRecordedOnDequeue() throws Exception {
+        ChannelMetrics metrics = new ChannelMetrics();
+        Sender sender = new Sender(new ByteArrayOutputStream()) {
+            @Override
+            protected void exceptionHandler(Exception e) {
+                throw new AssertionError(e);
+            }
+        };
+        sender.setMetrics(metrics);
+        for (int i = 0; i < 3; ++i)
+            sender.sendMessage(Loopback.message("a" + i));
+        assertEquals(3, metrics.snapshot().getQueueDepth());
+
+        Thread thread = new Thread(sender);
+        thread.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sender.getQueueSize() > 0 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        sender.stop();
+        thread.join();
+
+        ChannelMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(0, snapshot.getQueueDepth());
+        assertEquals(3, snapshot.getMaxQueueDepth());
+        assertEquals(3, snapshot.getQueueWait().getCount());
+    }
+
+    @Test
+    public void testSnapshotIsImmutable() {
+        ChannelMetrics metrics = new ChannelMetrics();
+        metrics.recordLatency(ControllerToDaemon.GET_CONTAINER_STATUS, 1000);
+        metrics.recordException(new IOException());
+        ChannelMetrics.Snapshot snapshot = metrics.snapshot();
+
+        metrics.recordLatency(ControllerToDaemon.GET_CONTAINER_STATUS, 1000);
+        metrics.recordException(new IOException());
+        assertEquals(1, snapshot.getCommandLatencies().get(ControllerToDaemon.GET_CONTAINER_STATUS).getCount());
+        assertEquals(1L, (long) snapshot.getExceptions().get(IOException.class.getName()));
+
+        try {
+            snapshot.getExceptions().clear();
+            fail("Exception counts are modifiable");
+        }
+        catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            snapshot.getCommandLatencies().get(ControllerToDaemon.GET_CONTAINER_STATUS).record(1000);
+            fail("Latency histogram is modifiable");
+        }
+        catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fraunhofer.aisec.trustme.Control.ControllerToDaemon;
+
+public class ChunkedTransferTest {
+    private Loopback loopback;
+
+    @Before
+    public void setUp() throws Exception {
+        loopback = new Loopback();
+        loopback.sender.setSocketSendBufferSize(1024);
+        loopback.sender.setChunkedTransfer(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        loopback.close();
+    }
+
+    @Test
+    public void testLargeMessagesAreReassembled() throws Exception {
+        loopback.start();
+        ControllerToDaemon[] sent = new ControllerToDaemon[] {
+            Loopback.message(Loopback.payload(1019, false, 1)),
+            Loopback.message(Loopback.payload(100*1024, false, 2)),
+            Loopback.message("between"),
+            Loopback.message(Loopback.payload(3000, true, 3), Loopback.payload(5000, false, 4)),
+        };
+        for (ControllerToDaemon msg : sent)
+            loopback.sender.sendMessage(msg);
+        for (ControllerToDaemon msg : sent)
+            assertArrayEquals(Loopback.encode(msg), loopback.poll());
+        assertTrue(loopback.exceptions.isEmpty());
+    }
+
+    @Test
+    public void testChunkedResponse() throws Exception {
+        loopback.start();
+        ControllerToDaemon msg = Loopback.message(Loopback.payload(256*1024, false, 5));
+        byte[] response = loopback.sender.sendMessageSyncWithResponse(msg, loopback.receiver, 5, TimeUnit.SECONDS);
+        assertArrayEquals(Loopback.encode(msg), response);
+    }
+
+    @Test
+    public void testMessageExceedingMaximumSizeIsDiscarded() throws Exception {
+        loopback.receiver.setMaxMessageSize(16*1024);
+        loopback.start();
+        ControllerToDaemon small = Loopback.message("small");
+        loopback.sender.sendMessage(Loopback.message(Loopback.payload(64*1024, false, 6)));
+        loopback.sender.sendMessage(small);
+        assertArrayEquals(Loopback.encode(small), loopback.poll());
+        assertEquals(1, loopback.exceptions.size());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fraunhofer.aisec.trustme.Control.ControllerToDaemon;
+
+public class CompressionTest {
+    private Loopback loopback;
+
+    @Before
+    public void setUp() throws Exception {
+        loopback = new Loopback();
+        loopback.sender.setCompressionThreshold(1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        loopback.close();
+    }
+
+    private ControllerToDaemon[] messages() {
+        return new ControllerToDaemon[] {
+            Loopback.message(Loopback.payload(64*1024, true, 1)),
+            Loopback.message("below threshold"),
+            Loopback.message(Loopback.payload(8*1024, false, 2)),
+            Loopback.message(Loopback.payload(3000, true, 3), Loopback.payload(2000, false, 4)),
+            Loopback.message(Loopback.payload(512*1024, true, 5)),
+        };
+    }
+
+    @Test
+    public void testCompressedMessagesRoundTrip() throws Exception {
+        loopback.start();
+        ControllerToDaemon[] sent = messages();
+        for (ControllerToDaemon msg : sent)
+            loopback.sender.sendMessage(msg);
+        for (ControllerToDaemon msg : sent)
+            assertArrayEquals(Loopback.encode(msg), loopback.poll());
+        assertTrue(loopback.exceptions.isEmpty());
+    }
+
+    @Test
+    public void testCompressedMessagesRoundTripWithPooledBuffers() throws Exception {
+        loopback.receiver.setPooledBuffers(true);
+        loopback.start();
+        // pooled buffers are reused for later messages, the messages handed
+        // out before must not change
+        ControllerToDaemon[] sent = messages();
+        for (int i = 0; i < 3; ++i) {
+            for (ControllerToDaemon msg : sent)
+                loopback.sender.sendMessage(msg);
+        }
+        for (int i = 0; i < 3; ++i) {
+            for (ControllerToDaemon msg : sent)
+                assertArrayEquals(Loopback.encode(msg), loopback.poll());
+        }
+        assertTrue(loopback.exceptions.isEmpty());
+    }
+
+    @Test
+    public void testCompressedResponse() throws Exception {
+        loopback.receiver.setPooledBuffers(true);
+        loopback.start();
+        ControllerToDaemon msg = Loopback.message(Loopback.payload(100*1024, true, 6));
+        byte[] response = loopback.sender.sendMessageSyncWithResponse(msg, loopback.receiver, 5, TimeUnit.SECONDS);
+        assertArrayEquals(Loopback.encode(msg), response);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ContainerItemCodecTest {
+
+    @After
+    public void tearDown() {
+        ScreenshotCache.setLoader(null);
+        ScreenshotCache.clear();
+    }
+
+    private static ContainerItem item(int i) {
+        ContainerItem item = new ContainerItem(String.format("%08x-1e42-4cd5-9e70-0f5b3c2b1a7d", i), "a" + i, i % 2 == 0);
+        item.setColor(0xff000000 | i * 0x10101);
+        item.setPartition_size(1024.5f + i);
+        item.setEncryption(i % 3 == 0);
+        item.setPhone_ability(i % 4 == 0);
+        item.setInternet_ability(true);
+        item.setNew_mail_notification(i % 5 == 0);
+        return item;
+    }
+
+    private static byte[] screenshot(int length) {
+        byte[] screenshot = new byte[length];
+        for (int i = 0; i < length; ++i)
+            screenshot[i] = (byte) (i * 31);
+        return screenshot;
+    }
+
+    private static void assertItemEquals(ContainerItem expected, ContainerItem actual) {
+        assertEquals(expected.getUuid(), actual.getUuid());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getColor(), actual.getColor());
+        assertEquals(expected.getPartition_size(), actual.getPartition_size(), 0);
+        assertEquals(expected.isRunning(), actual.isRunning());
+        assertEquals(expected.isPhone_ability(), actual.isPhone_ability());
+        assertEquals(expected.isInternet_ability(), actual.isInternet_ability());
+        assertEquals(expected.isScreenshot_enabled(), actual.isScreenshot_enabled());
+        assertEquals(expected.isEncryption(), actual.isEncryption());
+        assertEquals(expected.isNew_mail_notification(), actual.isNew_mail_notification());
+        assertEquals(expected.isNew_phone_notification(), actual.isNew_phone_notification());
+        assertEquals(expected.getScreenshotHandle(), actual.getScreenshotHandle());
+    }
+
+    @Test
+    public void testItemRoundTrip() throws Exception {
+        ContainerItem item = item(3);
+        item.setName("Geschäftlich ❤ 💼");
+        item.setScreenshot_enabled(true);
+        item.setNew_phone_notification(true);
+
+        byte[] encoded = ContainerItemCodec.toByteArray(item, false);
+        assertEquals(ContainerItemCodec.encodedSize(item, false), encoded.length);
+        assertItemEquals(item, ContainerItemCodec.decode(ByteBuffer.wrap(encoded)));
+    }
+
+    @Test
+    public void testItemWithoutNameAndUuid() throws Exception {
+        ContainerItem item = new ContainerItem();
+        ContainerItem decoded = ContainerItemCodec.decode(ByteBuffer.wrap(ContainerItemCodec.toByteArray(item, true)));
+        assertNull(decoded.getName());
+        assertNull(decoded.getUuid());
+        assertNull(decoded.getScreenshotHandle());
+    }
+
+    @Test
+    public void testListRoundTrip() throws Exception {
+        List<ContainerItem> items = new ArrayList<ContainerItem>();
+        for (int i = 0; i < 200; ++i)
+            items.add(item(i));
+
+        ByteBuffer buffer = ByteBuffer.allocate(ContainerItemCodec.encodedSize(items, false));
+        ContainerItemCodec.encode(items, false, buffer);
+        assertEquals(0, buffer.remaining());
+        buffer.flip();
+
+        List<ContainerItem> decoded = ContainerItemCodec.decodeList(buffer);
+        assertEquals(items.size(), decoded.size());
+        for (int i = 0; i < items.size(); ++i)
+            assertItemEquals(items.get(i), decoded.get(i));
+    }
+
+    @Test
+    public void testInlinedScreenshot() throws Exception {
+        ContainerItem item = item(1);
+        item.setScreenshot(screenshot(70000));
+        byte[] encoded = ContainerItemCodec.toByteArray(item, true);
+
+        ScreenshotCache.clear();
+        ContainerItem decoded = ContainerItemCodec.decode(ByteBuffer.wrap(encoded));
+        assertItemEquals(item, decoded);
+        assertArrayEquals(screenshot(70000), decoded.getScreenshot());
+    }
+
+    @Test
+    public void testScreenshotReference() throws Exception {
+        ContainerItem item = item(2);
+        item.setScreenshot(screenshot(70000));
+        byte[] encoded = ContainerItemCodec.toByteArray(item, false);
+        assertEquals(ContainerItemCodec.encodedSize(item, false), encoded.length);
+        // the reference is written instead of the data
+        assertEquals(ContainerItemCodec.toByteArray(item(2), false).length + 37 + 32 + 3, encoded.length);
+
+        ContainerItem decoded = ContainerItemCodec.decode(ByteBuffer.wrap(encoded));
+        assertItemEquals(item, decoded);
+        assertArrayEquals(screenshot(70000), decoded.getScreenshot());
+
+        // a receiver without the screenshot resolves the reference through its loader
+        ScreenshotCache.clear();
+        ScreenshotCache.setLoader(new ScreenshotCache.Loader() {
+            @Override
+            public byte[] load(ScreenshotHandle handle) {
+                return screenshot(handle.getLength());
+            }
+        });
+        decoded = ContainerItemCodec.decode(ByteBuffer.wrap(encoded));
+        assertArrayEquals(screenshot(70000), decoded.getScreenshot());
+    }
+
+    @Test
+    public void testUnavailableScreenshotIsWrittenAsReference() throws Exception {
+        // with a loader, handles do not keep screenshots once cached
+        ScreenshotCache.setLoader(new ScreenshotCache.Loader() {
+            @Override
+            public byte[] load(ScreenshotHandle handle) {
+                return null;
+            }
+        });
+        ContainerItem item = item(4);
+        item.setScreenshot(screenshot(1000));
+        ScreenshotCache.awaitStored();
+        ScreenshotCache.clear();
+
+        byte[] encoded = ContainerItemCodec.toByteArray(item, true);
+        assertEquals(ContainerItemCodec.toByteArray(item, false).length, encoded.length);
+        ContainerItem decoded = ContainerItemCodec.decode(ByteBuffer.wrap(encoded));
+        assertEquals(item.getScreenshotHandle(), decoded.getScreenshotHandle());
+        assertNull(decoded.getScreenshot());
+    }
+
+    @Test
+    public void testMalformedInputIsRejected() {
+        ContainerItem item = item(5);
+        item.setScreenshot(screenshot(100));
+        byte[] encoded = ContainerItemCodec.toByteArray(item, false);
+
+        for (int length = 0; length < encoded.length; ++length)
+            assertRejected(Arrays.copyOf(encoded, length));
+
+        byte[] unknownVersion = encoded.clone();
+        unknownVersion[0] = 2;
+        assertRejected(unknownVersion);
+
+        byte[] unknownFlags = ContainerItemCodec.toByteArray(new ContainerItem(), false);
+        unknownFlags[1] = (byte) 0x80;
+        unknownFlags = Arrays.copyOf(unknownFlags, unknownFlags.length + 1);
+        unknownFlags[2] = 0x10;
+        assertRejected(unknownFlags);
+    }
+
+    private static void assertRejected(byte[] encoded) {
+        try {
+            ContainerItemCodec.decode(ByteBuffer.wrap(encoded));
+            fail("Decoded malformed item of " + encoded.length + " bytes");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+import de.fraunhofer.aisec.trustme.Container;
+import de.fraunhofer.aisec.trustme.Container.ContainerStatus;
+
+public class ContainerListTest {
+    private final ContainerList list = new ContainerList();
+
+    private static ContainerStatus status(String uuid, int state) {
+        ContainerStatus status = new ContainerStatus();
+        status.uuid = uuid;
+        status.name = "name-" + uuid;
+        status.state = state;
+        return status;
+    }
+
+    private static ContainerStatus[] statuses(ContainerStatus... statuses) {
+        return statuses;
+    }
+
+    private static List<String> uuids(List<ContainerItem> items) {
+        List<String> uuids = new ArrayList<String>();
+        for (ContainerItem item : items)
+            uuids.add(item.getUuid());
+        Collections.sort(uuids);
+        return uuids;
+    }
+
+    @Test
+    public void testDeltaReportsAddedChangedAndRemoved() {
+        list.replaceAll(statuses(status("u1", Container.RUNNING), status("u2", Container.STOPPED),
+                status("u3", Container.RUNNING)));
+        long since = list.getVersion();
+
+        assertFalse(list.replaceAll(statuses(status("u1", Container.RUNNING), status("u2", Container.STOPPED),
+                status("u3", Container.RUNNING))));
+        assertTrue(list.replaceAll(statuses(status("u1", Container.RUNNING), status("u2", Container.RUNNING),
+                status("u4", Container.STOPPED))));
+
+        ContainerDelta delta = list.deltaSince(since);
+        assertFalse(delta.isReset());
+        assertEquals(list.getVersion(), delta.getVersion());
+        assertEquals(Arrays.asList("u4"), uuids(delta.getAdded()));
+        assertEquals(Arrays.asList("u2"), uuids(delta.getChanged()));
+        assertTrue(delta.getChanged().get(0).isRunning());
+        assertEquals(Arrays.asList("u3"), delta.getRemoved());
+
+        assertTrue(list.deltaSince(list.getVersion()).isEmpty());
+    }
+
+    @Test
+    public void testContainerAddedAndRemovedSinceIsNotReported() {
+        list.replaceAll(statuses(status("u1", Container.RUNNING)));
+        long since = list.getVersion();
+        list.update(statuses(status("u2", Container.RUNNING)));
+        list.replaceAll(statuses(status("u1", Container.RUNNING)));
+
+        assertTrue(list.deltaSince(since).isEmpty());
+    }
+
+    @Test
+    public void testUnknownVersionIsDeliveredAsReset() {
+        list.replaceAll(statuses(status("u1", Container.RUNNING), status("u2", Container.STOPPED)));
+
+        ContainerDelta delta = list.deltaSince(0);
+        assertTrue(delta.isReset());
+        assertEquals(Arrays.asList("u1", "u2"), uuids(delta.getAdded()));
+        assertTrue(list.deltaSince(list.getVersion() + 1).isReset());
+    }
+
+    @Test
+    public void testDroppedTombstonesForceReset() {
+        list.replaceAll(statuses(status("u0", Container.RUNNING)));
+        long since = list.getVersion();
+        for (int i = 1; i <= 300; ++i) {
+            list.update(statuses(status("t" + i, Container.RUNNING)));
+            list.replaceAll(statuses(status("u0", Container.RUNNING)));
+        }
+
+        assertTrue(list.deltaSince(since).isReset());
+        assertEquals(Arrays.asList("u0"), uuids(list.deltaSince(since).getAdded()));
+    }
+
+    @Test
+    public void testReaddedContainerIsNoTombstone() {
+        // removed, added again and removed again
+        list.replaceAll(statuses(status("x", Container.RUNNING)));
+        list.replaceAll(statuses());
+        list.replaceAll(statuses(status("x", Container.RUNNING)));
+        list.replaceAll(statuses());
+
+        // enough tombstones that the oldest is dropped if x is still one twice
+        for (int i = 1; i <= 255; ++i) {
+            list.update(statuses(status("t" + i, Container.RUNNING)));
+            list.replaceAll(statuses());
+        }
+        list.replaceAll(statuses(status("x", Container.RUNNING)));
+        list.update(statuses(status("t256", Container.RUNNING)));
+        list.replaceAll(statuses(status("x", Container.RUNNING)));
+        list.replaceAll(statuses(status("x", Container.STOPPED)));
+
+        assertEquals(Arrays.asList("x"), uuids(list.deltaSince(0).getAdded()));
+        assertFalse(list.deltaSince(0).getAdded().get(0).isRunning());
+    }
+
+    @Test
+    public void testReaddedContainerIsReportedAsChanged() {
+        list.replaceAll(statuses(status("u1", Container.RUNNING)));
+        long since = list.getVersion();
+        list.replaceAll(statuses());
+        long removedAt = list.getVersion();
+        list.replaceAll(statuses(status("u1", Container.STOPPED)));
+
+        ContainerDelta delta = list.deltaSince(since);
+        assertTrue(delta.getAdded().isEmpty());
+        assertEquals(Arrays.asList("u1"), uuids(delta.getChanged()));
+        assertFalse(delta.getChanged().get(0).isRunning());
+
+        // the caller which saw the removal gets it added
+        delta = list.deltaSince(removedAt);
+        assertEquals(Arrays.asList("u1"), uuids(delta.getAdded()));
+        assertTrue(delta.getChanged().isEmpty());
+    }
+
+    @Test
+    public void testFrequentlyReaddedContainerForcesReset() {
+        list.replaceAll(statuses(status("u1", Container.RUNNING)));
+        long since = list.getVersion();
+        for (int i = 0; i < 10; ++i) {
+            list.replaceAll(statuses());
+            list.replaceAll(statuses(status("u1", Container.RUNNING)));
+        }
+
+        assertTrue(list.deltaSince(since).isReset());
+        assertFalse(list.deltaSince(list.getVersion() - 2).isReset());
+    }
+
+    @Test
+    public void testEmptyListIsDeliveredOnce() {
+        MessageDispatcher dispatcher = new MessageDispatcher();
+        dispatcher.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        final List<ContainerDelta> deltas = new ArrayList<ContainerDelta>();
+        dispatcher.addContainerListener(new ContainerListListener() {
+            @Override
+            public void onContainersChanged(ContainerDelta delta) {
+                deltas.add(delta);
+            }
+        });
+
+        dispatcher.dispatchContainerChanges(list);
+        // another subscriber, which must not redeliver the reset
+        dispatcher.dispatchContainerChanges(list);
+        assertEquals(1, deltas.size());
+        assertTrue(deltas.get(0).isReset());
+
+        list.replaceAll(statuses(status("u1", Container.RUNNING)));
+        dispatcher.dispatchContainerChanges(list);
+        assertEquals(2, deltas.size());
+        assertEquals(Arrays.asList("u1"), uuids(deltas.get(1).getAdded()));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fraunhofer.aisec.trustme.Control.ControllerToDaemon;
+
+public class FramingTest {
+    private Loopback loopback;
+
+    @Before
+    public void setUp() throws Exception {
+        loopback = new Loopback();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        loopback.close();
+    }
+
+    @Test
+    public void testHeaderLayout() {
+        byte[] header = new byte[Framing.HEADER_SIZE];
+        Framing.writeHeader(header, 0, 0x01020304, Framing.FLAG_MORE);
+        assertArrayEquals(new byte[] { (byte) 0x81, 0x02, 0x03, 0x04 }, header);
+
+        // lengths never spill into the flags
+        Framing.writeHeader(header, 0, 0xffffffff, 0);
+        assertArrayEquals(new byte[] { 0x0f, (byte) 0xff, (byte) 0xff, (byte) 0xff }, header);
+    }
+
+    @Test
+    public void testQueuedMessagesRoundTrip() throws Exception {
+        loopback.start();
+        ControllerToDaemon[] sent = new ControllerToDaemon[200];
+        for (int i = 0; i < sent.length; ++i) {
+            sent[i] = Loopback.message(Loopback.payload(i * 37, i % 2 == 0, i));
+            loopback.sender.sendMessage(sent[i]);
+        }
+        for (ControllerToDaemon msg : sent)
+            assertArrayEquals(Loopback.encode(msg), loopback.poll());
+        assertTrue(loopback.exceptions.isEmpty());
+    }
+
+    @Test
+    public void testSyncRoundTrip() throws Exception {
+        loopback.start();
+        for (int size : new int[] { 0, 1, 127, 128, 4096, 60000 }) {
+            ControllerToDaemon msg = Loopback.message(Loopback.payload(size, false, size));
+            byte[] response = loopback.sender.sendMessageSyncWithResponse(msg, loopback.receiver, 5, TimeUnit.SECONDS);
+            assertArrayEquals(Loopback.encode(msg), response);
+        }
+        assertTrue(loopback.exceptions.isEmpty());
+    }
+
+    @Test
+    public void testOversizedMessageIsNotSentWithoutChunking() throws Exception {
+        loopback.sender.setSocketSendBufferSize(1024);
+        loopback.start();
+        ControllerToDaemon small = Loopback.message("small");
+        loopback.sender.sendMessage(Loopback.message(Loopback.payload(4096, false, 1)));
+        loopback.sender.sendMessage(small);
+        assertArrayEquals(Loopback.encode(small), loopback.poll());
+        assertEquals(1, loopback.exceptions.size());
+    }
+}
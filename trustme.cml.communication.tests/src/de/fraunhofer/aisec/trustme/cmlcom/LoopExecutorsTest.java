@@ -0,0 +1,112 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LoopExecutorsTest {
+
+    /**
+     * Runs tasks which only finish once all of them have started, so they
+     * must not be queued behind each other, and returns their threads.
+     */
+    private static List<Thread> runConcurrently(Executor executor, int count) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(count);
+        final CountDownLatch finished = new CountDownLatch(count);
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        for (int i = 0; i < count; ++i) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    threads.add(Thread.currentThread());
+                    started.countDown();
+                    try {
+                        started.await(5, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    finished.countDown();
+                }
+            });
+        }
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        return threads;
+    }
+
+    @Test
+    public void testThreadPerTaskUsesFactory() throws Exception {
+        final List<Runnable> created = Collections.synchronizedList(new ArrayList<Runnable>());
+        Executor executor = LoopExecutors.threadPerTask(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                created.add(r);
+                return new Thread(r, "test-loop");
+            }
+        });
+        List<Thread> threads = runConcurrently(executor, 3);
+        assertEquals(3, created.size());
+        for (Thread thread : threads)
+            assertEquals("test-loop", thread.getName());
+    }
+
+    @Test
+    public void testPlatformThreadsRunEachTaskOnItsOwnThread() throws Exception {
+        List<Thread> threads = runConcurrently(LoopExecutors.platformThreads(), 3);
+        assertEquals(3, threads.size());
+        for (Thread thread : threads)
+            assertTrue(thread.getName(), thread.getName().startsWith("cml-control-"));
+    }
+
+    @Test
+    public void testVirtualThreadsFallBackToPlatformThreads() throws Exception {
+        List<Thread> threads = runConcurrently(LoopExecutors.virtualThreads(), 3);
+        boolean supported = LoopExecutors.isVirtualThreadSupported();
+        for (Thread thread : threads) {
+            assertEquals(supported, isVirtual(thread));
+            assertTrue(thread.getName(), thread.getName().startsWith(supported ? "cml-control-virtual-" : "cml-control-"));
+        }
+    }
+
+    // Thread.isVirtual() is only available from Java 21 on
+    private static boolean isVirtual(Thread thread) throws Exception {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.nano.MessageNano;
+
+import de.fraunhofer.aisec.trustme.Control.ControllerToDaemon;
+
+/**
+ * A Sender and a Receiver connected to each other over a loopback socket,
+ * so every message sent comes back as a frame and every request is
+ * answered by itself.
+ */
+class Loopback {
+    final Sender sender;
+    final Receiver receiver;
+    final List<Exception> exceptions = Collections.synchronizedList(new ArrayList<Exception>());
+
+    private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<byte[]>();
+    private final Socket out;
+    private final Socket in;
+
+    Loopback() throws IOException {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        try {
+            out = new Socket(server.getInetAddress(), server.getLocalPort());
+            in = server.accept();
+        }
+        finally {
+            server.close();
+        }
+
+        sender = new Sender(out.getOutputStream()) {
+            @Override
+            protected void exceptionHandler(Exception e) {
+                exceptions.add(e);
+            }
+        };
+        receiver = new Receiver(in.getInputStream()) {
+            @Override
+            protected void handleMessage(byte[] encodedMessage) {
+                received.add(encodedMessage);
+            }
+
+            @Override
+            protected void exceptionHandler(Exception e) {
+                exceptions.add(e);
+            }
+        };
+    }
+
+    Loopback start() {
+        startThread(sender, "loopback-sender");
+        startThread(receiver, "loopback-receiver");
+        return this;
+    }
+
+    private static void startThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the next message received, or null if none arrives in time.
+     */
+    byte[] poll() throws InterruptedException {
+        return received.poll(5, TimeUnit.SECONDS);
+    }
+
+    void close() throws IOException {
+        sender.stop();
+        receiver.stop();
+        out.close();
+        in.close();
+    }
+
+    /**
+     * Returns a request carrying the given strings, which may be large.
+     */
+    static ControllerToDaemon message(String... payload) {
+        ControllerToDaemon msg = new ControllerToDaemon();
+        msg.command = ControllerToDaemon.GET_CONTAINER_STATUS;
+        msg.containerUuids = payload;
+        return msg;
+    }
+
+    /**
+     * Returns a string of the given length which compresses well if
+     * compressible is true and hardly at all otherwise.
+     */
+    static String payload(int length, boolean compressible, long seed) {
+        Random random = new Random(seed);
+        StringBuilder s = new StringBuilder(length);
+        for (int i = 0; i < length; ++i)
+            s.append(compressible ? (char) ('a' + i % 7) : (char) ('!' + random.nextInt(94)));
+        return s.toString();
+    }
+
+    static byte[] encode(MessageNano message) {
+        return MessageNano.toByteArray(message);
+    }
+}
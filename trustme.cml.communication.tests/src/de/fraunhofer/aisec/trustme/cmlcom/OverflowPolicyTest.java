@@ -0,0 +1,203 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.protobuf.nano.MessageNano;
+
+import de.fraunhofer.aisec.trustme.Control.ControllerToDaemon;
+
+public class OverflowPolicyTest {
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+    private final Sender sender = new Sender(written, 4) {
+        @Override
+        protected void exceptionHandler(Exception e) {
+            throw new AssertionError(e);
+        }
+
+        @Override
+        protected Object getCoalescingKey(MessageNano message) {
+            ControllerToDaemon msg = (ControllerToDaemon) message;
+            return msg.command == ControllerToDaemon.CONTAINER_SWITCH ? null : msg.containerUuids[0];
+        }
+    };
+
+    private static ControllerToDaemon message(int command, String uuid) {
+        ControllerToDaemon msg = new ControllerToDaemon();
+        msg.command = command;
+        msg.containerUuids = new String[] { uuid };
+        return msg;
+    }
+
+    /**
+     * Sends the enqueued messages and returns the encoded messages written.
+     */
+    private List<byte[]> drain() throws Exception {
+        Thread thread = new Thread(sender);
+        thread.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sender.getQueueSize() > 0 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        sender.stop();
+        thread.join();
+
+        List<byte[]> messages = new ArrayList<byte[]>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(written.toByteArray()));
+        while (in.available() > 0) {
+            byte[] message = new byte[in.readInt()];
+            in.readFully(message);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    @Test
+    public void testCoalescedMessageKeepsPosition() throws Exception {
+        sender.setOverflowPolicy(OverflowPolicy.COALESCE);
+        ControllerToDaemon stopA = message(ControllerToDaemon.CONTAINER_STOP, "a");
+        ControllerToDaemon switchB = message(ControllerToDaemon.CONTAINER_SWITCH, "b");
+        ControllerToDaemon startA = message(ControllerToDaemon.CONTAINER_START, "a");
+
+        assertTrue(sender.trySendMessage(stopA, 0, TimeUnit.MILLISECONDS));
+        assertTrue(sender.trySendMessage(switchB, 0, TimeUnit.MILLISECONDS));
+        assertTrue(sender.trySendMessage(startA, 0, TimeUnit.MILLISECONDS));
+        assertEquals(2, sender.getQueueSize());
+        assertEquals(1, sender.getDroppedMessageCount());
+
+        List<byte[]> messages = drain();
+        assertEquals(2, messages.size());
+        assertArrayEquals(MessageNano.toByteArray(startA), messages.get(0));
+        assertArrayEquals(MessageNano.toByteArray(switchB), messages.get(1));
+    }
+
+    @Test
+    public void testCoalesceDropsWhenFullWithoutMatch() throws Exception {
+        sender.setOverflowPolicy(OverflowPolicy.COALESCE);
+        for (int i = 0; i < 4; ++i)
+            assertTrue(sender.trySendMessage(message(ControllerToDaemon.CONTAINER_STOP, "c" + i), 0, TimeUnit.MILLISECONDS));
+        assertFalse(sender.trySendMessage(message(ControllerToDaemon.CONTAINER_STOP, "d"), 0, TimeUnit.MILLISECONDS));
+        // replacing does not need space
+        assertTrue(sender.trySendMessage(message(ControllerToDaemon.CONTAINER_START, "c2"), 0, TimeUnit.MILLISECONDS));
+        assertEquals(4, drain().size());
+    }
+
+    @Test
+    public void testLatestSwitchWinsWithCommunicatorKey() throws Exception {
+        Sender communicatorSender = new Sender(written, 4) {
+            @Override
+            protected void exceptionHandler(Exception e) {
+                throw new AssertionError(e);
+            }
+
+            @Override
+            protected Object getCoalescingKey(MessageNano message) {
+                return Communicator.coalescingKey((ControllerToDaemon) message);
+            }
+        };
+        communicatorSender.setOverflowPolicy(OverflowPolicy.COALESCE);
+
+        ControllerToDaemon stopC = message(ControllerToDaemon.CONTAINER_STOP, "c");
+        ControllerToDaemon stopD = message(ControllerToDaemon.CONTAINER_STOP, "d");
+        ControllerToDaemon switchA = message(ControllerToDaemon.CONTAINER_SWITCH, "a");
+        assertTrue(communicatorSender.trySendMessage(switchA, 0, TimeUnit.MILLISECONDS));
+        assertTrue(communicatorSender.trySendMessage(stopC, 0, TimeUnit.MILLISECONDS));
+        assertTrue(communicatorSender.trySendMessage(message(ControllerToDaemon.CONTAINER_SWITCH, "b"), 0, TimeUnit.MILLISECONDS));
+        assertTrue(communicatorSender.trySendMessage(stopD, 0, TimeUnit.MILLISECONDS));
+        assertTrue(communicatorSender.trySendMessage(switchA, 0, TimeUnit.MILLISECONDS));
+        assertTrue(communicatorSender.trySendMessage(stopC, 0, TimeUnit.MILLISECONDS));
+        assertEquals(3, communicatorSender.getQueueSize());
+
+        Thread thread = new Thread(communicatorSender);
+        thread.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (communicatorSender.getQueueSize() > 0 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        communicatorSender.stop();
+        thread.join();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(written.toByteArray()));
+        List<byte[]> messages = new ArrayList<byte[]>();
+        while (in.available() > 0) {
+            byte[] message = new byte[in.readInt()];
+            in.readFully(message);
+            messages.add(message);
+        }
+        // the final switch is to a, not to b
+        assertEquals(3, messages.size());
+        assertArrayEquals(MessageNano.toByteArray(switchA), messages.get(0));
+        assertArrayEquals(MessageNano.toByteArray(stopC), messages.get(1));
+        assertArrayEquals(MessageNano.toByteArray(stopD), messages.get(2));
+    }
+
+    @Test
+    public void testCoalesceWaitsForSpaceWithoutKey() throws Exception {
+        sender.setOverflowPolicy(OverflowPolicy.COALESCE);
+        for (int i = 0; i < 4; ++i)
+            sender.sendMessage(message(ControllerToDaemon.CONTAINER_SWITCH, "s" + i));
+
+        final CountDownLatch enqueued = new CountDownLatch(1);
+        Thread blocked = new Thread() {
+            @Override
+            public void run() {
+                sender.sendMessage(message(ControllerToDaemon.CONTAINER_SWITCH, "s4"));
+                enqueued.countDown();
+            }
+        };
+        blocked.start();
+        assertFalse(enqueued.await(200, TimeUnit.MILLISECONDS));
+
+        List<byte[]> messages = drain();
+        assertTrue(enqueued.await(5, TimeUnit.SECONDS));
+        blocked.join();
+        assertEquals(0, sender.getDroppedMessageCount());
+        assertEquals(5, messages.size() + sender.getQueueSize());
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        sender.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 6; ++i)
+            sender.sendMessage(message(ControllerToDaemon.CONTAINER_SWITCH, "s" + i));
+        assertEquals(2, sender.getDroppedMessageCount());
+
+        List<byte[]> messages = drain();
+        assertEquals(4, messages.size());
+        assertArrayEquals(MessageNano.toByteArray(message(ControllerToDaemon.CONTAINER_SWITCH, "s2")), messages.get(0));
+    }
+}
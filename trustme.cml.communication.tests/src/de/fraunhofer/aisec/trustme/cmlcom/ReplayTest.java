@@ -0,0 +1,286 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.google.protobuf.nano.MessageNano;
+
+import de.fraunhofer.aisec.trustme.Control.ControllerToDaemon;
+
+public class ReplayTest {
+    private final CountDownLatch failed = new CountDownLatch(1);
+
+    private final Sender sender = new Sender(new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            throw new IOException("Broken pipe");
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            throw new IOException("Broken pipe");
+        }
+    }) {
+        @Override
+        protected void exceptionHandler(Exception e) {
+            failed.countDown();
+        }
+    };
+
+    private static byte[] frame(MessageNano message) {
+        byte[] encoded = MessageNano.toByteArray(message);
+        byte[] frame = new byte[Framing.HEADER_SIZE + encoded.length];
+        Framing.writeHeader(frame, 0, encoded.length, 0);
+        System.arraycopy(encoded, 0, frame, Framing.HEADER_SIZE, encoded.length);
+        return frame;
+    }
+
+    @Test
+    public void testDirectSendWaitsForReplay() throws Exception {
+        sender.setReplayAfterReconnect(true);
+        Thread loop = new Thread(sender);
+        loop.start();
+
+        final ControllerToDaemon queued = Loopback.message(Loopback.payload(100, false, 1));
+        final ControllerToDaemon direct = Loopback.message("direct");
+        sender.sendMessage(queued);
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+
+        // the batch is held for replay, the direct send must not overtake it
+        Thread directSender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sender.sendMessageSync(direct);
+            }
+        });
+        directSender.start();
+        Thread.sleep(100);
+        assertTrue(directSender.isAlive());
+
+        ByteArrayOutputStream reconnected = new ByteArrayOutputStream();
+        sender.setSocketOutputStream(reconnected);
+        directSender.join(5000);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(frame(queued));
+        expected.write(frame(direct));
+        assertArrayEquals(expected.toByteArray(), reconnected.toByteArray());
+
+        sender.stop();
+        loop.join();
+    }
+
+    @Test
+    public void testDirectSendFailsWhileDisconnected() throws Exception {
+        sender.setReplayAfterReconnect(true);
+        Thread loop = new Thread(sender);
+        loop.start();
+
+        sender.sendMessage(Loopback.message("queued"));
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        sender.setSocketOutputStream(null);
+
+        try {
+            sender.sendMessageWithResponse(Loopback.message("direct"), null);
+            throw new AssertionError("sent while disconnected");
+        }
+        catch (ConnectionLostException e) {
+            // expected
+        }
+
+        sender.stop();
+        loop.join();
+    }
+
+    /**
+     * A stream keeping the bytes of each complete write, which fails every
+     * write once the given number of bytes would be exceeded.
+     */
+    private static final class FlakyStream extends OutputStream {
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private final int limit;
+
+        FlakyStream(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (written.size() + len > limit)
+                throw new IOException("Broken pipe");
+            written.write(b, off, len);
+        }
+
+        synchronized byte[] toByteArray() {
+            return written.toByteArray();
+        }
+    }
+
+    /**
+     * Returns the payloads of the messages in the stream's frames, failing
+     * on a frame which has been torn apart.
+     */
+    private static List<String> payloads(FlakyStream stream) throws IOException {
+        List<String> payloads = new ArrayList<String>();
+        ByteBuffer frames = ByteBuffer.wrap(stream.toByteArray());
+        while (frames.hasRemaining()) {
+            assertTrue("torn header", frames.remaining() >= Framing.HEADER_SIZE);
+            int header = frames.getInt();
+            assertEquals(0, header & Framing.FLAGS_MASK);
+            int length = header & Framing.LENGTH_MASK;
+            assertTrue("torn frame", frames.remaining() >= length);
+            ControllerToDaemon msg = new ControllerToDaemon();
+            MessageNano.mergeFrom(msg, frames.array(), frames.position(), length);
+            frames.position(frames.position() + length);
+            payloads.add(msg.containerUuids[0]);
+        }
+        return payloads;
+    }
+
+    @Test
+    public void testReplayRacesWithSendersAndReconnects() throws Exception {
+        final List<FlakyStream> streams = Collections.synchronizedList(new ArrayList<FlakyStream>());
+        FlakyStream first = new FlakyStream(2000);
+        streams.add(first);
+        final Sender racing = new Sender(first) {
+            @Override
+            protected void exceptionHandler(Exception e) {
+            }
+        };
+        racing.setReplayAfterReconnect(true);
+        Thread loop = new Thread(racing);
+        loop.start();
+
+        // messages which must arrive: all queued ones and direct ones sent without an exception
+        final Set<String> sent = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        List<Thread> senders = new ArrayList<Thread>();
+        for (int t = 0; t < 4; ++t) {
+            final int id = t;
+            senders.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 500; ++i) {
+                        String payload = id + ":" + i;
+                        ControllerToDaemon msg = Loopback.message(payload);
+                        if (id % 2 == 0) {
+                            racing.sendMessage(msg);
+                            sent.add(payload);
+                            continue;
+                        }
+                        try {
+                            racing.sendMessageWithResponse(msg, null);
+                            sent.add(payload);
+                        }
+                        catch (IOException e) {
+                            // lost with the stream it was written to
+                        }
+                    }
+                }
+            });
+        }
+
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread reconnector = new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random(1);
+                while (!done.get()) {
+                    if (random.nextInt(4) == 0)
+                        racing.setSocketOutputStream(null);
+                    FlakyStream stream = new FlakyStream(200 + random.nextInt(4000));
+                    streams.add(stream);
+                    racing.setSocketOutputStream(stream);
+                    try {
+                        Thread.sleep(1);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        reconnector.start();
+        for (Thread sender : senders)
+            sender.start();
+        for (Thread sender : senders)
+            sender.join(20000);
+        done.set(true);
+        reconnector.join();
+
+        FlakyStream last = new FlakyStream(Integer.MAX_VALUE);
+        streams.add(last);
+        racing.setSocketOutputStream(last);
+        racing.sendMessage(Loopback.message("fence"));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!payloads(last).contains("fence") && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        racing.stop();
+        loop.join();
+
+        Set<String> delivered = new HashSet<String>();
+        for (FlakyStream stream : streams) {
+            // within a stream, the messages of each sender keep their order
+            Map<String, Integer> lastSeen = new HashMap<String, Integer>();
+            for (String payload : payloads(stream)) {
+                delivered.add(payload);
+                if (payload.equals("fence"))
+                    continue;
+                String id = payload.substring(0, payload.indexOf(':'));
+                int seq = Integer.parseInt(payload.substring(payload.indexOf(':') + 1));
+                Integer previous = lastSeen.put(id, seq);
+                assertTrue(payload + " after " + previous, previous == null || previous < seq);
+            }
+        }
+        assertTrue(delivered.contains("fence"));
+        for (String payload : sent)
+            assertTrue(payload + " was lost", delivered.contains(payload));
+    }
+}
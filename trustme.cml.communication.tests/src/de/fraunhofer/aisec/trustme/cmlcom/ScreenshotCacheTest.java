@@ -0,0 +1,204 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ScreenshotCacheTest {
+    private static final String UUID = "6f1e2a3b-1e42-4cd5-9e70-0f5b3c2b1a7d";
+
+    private File directory;
+
+    @After
+    public void tearDown() throws Exception {
+        ScreenshotCache.setStorageDirectory(null);
+        ScreenshotCache.setLoader(null);
+        ScreenshotCache.setLimits(32, 16*1024*1024);
+        ScreenshotCache.setStorageLimits(256, 64*1024*1024);
+        ScreenshotCache.awaitStored();
+        ScreenshotCache.clear();
+        if (directory != null) {
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+
+    private static byte[] screenshot(int seed) {
+        byte[] screenshot = new byte[10000];
+        for (int i = 0; i < screenshot.length; ++i)
+            screenshot[i] = (byte) (i * seed);
+        return screenshot;
+    }
+
+    @Test
+    public void testHandlesAreKeyedByUuidAndContent() {
+        ScreenshotHandle handle = ScreenshotCache.put(UUID, screenshot(1));
+        assertEquals(handle, ScreenshotCache.put(UUID, screenshot(1)));
+        assertNotEquals(handle, ScreenshotCache.put(UUID, screenshot(2)));
+        assertNotEquals(handle, ScreenshotCache.put("other", screenshot(1)));
+        assertTrue(handle.getKey().startsWith(UUID + "_"));
+        assertEquals(64, handle.getHash().length());
+    }
+
+    @Test
+    public void testEvictedScreenshotIsLoadedFromStorageDirectory() throws Exception {
+        directory = Files.createTempDirectory("screenshots").toFile();
+        ScreenshotCache.setStorageDirectory(directory);
+        ContainerItem item = new ContainerItem(UUID, "a1", true);
+        item.setScreenshot(screenshot(3));
+        ScreenshotCache.awaitStored();
+
+        ScreenshotCache.clear();
+        assertFalse(item.getScreenshotHandle().isAvailable());
+        assertArrayEquals(screenshot(3), item.getScreenshot());
+        assertTrue(item.getScreenshotHandle().isAvailable());
+    }
+
+    @Test
+    public void testSerializedHandleIsResolvedThroughLoader() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        ScreenshotCache.setLoader(new ScreenshotCache.Loader() {
+            @Override
+            public byte[] load(ScreenshotHandle handle) {
+                loads.incrementAndGet();
+                return UUID.equals(handle.getUuid()) ? screenshot(4) : null;
+            }
+        });
+        ContainerItem item = new ContainerItem(UUID, "a1", true);
+        item.setScreenshot(screenshot(4));
+        ScreenshotCache.awaitStored();
+        ScreenshotCache.clear();
+
+        ContainerItem copy = (ContainerItem) copy(item);
+        assertArrayEquals(screenshot(4), copy.getScreenshot());
+        assertArrayEquals(screenshot(4), copy.getScreenshot());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testLoadedDataNotMatchingHandleIsIgnored() throws Exception {
+        ScreenshotCache.setLoader(new ScreenshotCache.Loader() {
+            @Override
+            public byte[] load(ScreenshotHandle handle) {
+                return screenshot(6);
+            }
+        });
+        ScreenshotHandle handle = ScreenshotCache.put(UUID, screenshot(5));
+        ScreenshotCache.awaitStored();
+        ScreenshotCache.clear();
+        assertNull(handle.getBytes());
+        assertFalse(handle.isAvailable());
+    }
+
+    @Test
+    public void testHandleKeepsScreenshotWithoutStorage() throws Exception {
+        ContainerItem item = new ContainerItem(UUID, "a1", true);
+        item.setScreenshot(screenshot(7));
+        ScreenshotCache.awaitStored();
+
+        ScreenshotCache.clear();
+        assertTrue(item.getScreenshotHandle().isAvailable());
+        assertArrayEquals(screenshot(7), item.getScreenshot());
+        ContainerItem copy = (ContainerItem) copy(item);
+        ScreenshotCache.clear();
+        assertArrayEquals(screenshot(7), copy.getScreenshot());
+    }
+
+    @Test
+    public void testHandleKeepsScreenshotLargerThanCache() throws Exception {
+        ScreenshotCache.setLimits(32, 1000);
+        ScreenshotHandle handle = ScreenshotCache.put(UUID, screenshot(8));
+        ScreenshotCache.awaitStored();
+        assertArrayEquals(screenshot(8), handle.getBytes());
+    }
+
+    @Test
+    public void testReplacedAndEvictedFilesAreDeleted() throws Exception {
+        directory = Files.createTempDirectory("screenshots").toFile();
+        ScreenshotCache.setStorageDirectory(directory);
+        ScreenshotCache.setStorageLimits(2, 1024*1024);
+
+        ScreenshotHandle first = ScreenshotCache.put(UUID, screenshot(9));
+        ScreenshotCache.awaitStored();
+        assertTrue(new File(directory, first.getKey()).isFile());
+
+        ScreenshotHandle second = ScreenshotCache.put(UUID, screenshot(10));
+        ScreenshotCache.awaitStored();
+        assertFalse(new File(directory, first.getKey()).exists());
+        assertTrue(new File(directory, second.getKey()).isFile());
+
+        ScreenshotHandle third = ScreenshotCache.put("b", screenshot(11));
+        ScreenshotHandle fourth = ScreenshotCache.put("c", screenshot(12));
+        ScreenshotCache.awaitStored();
+        assertFalse(new File(directory, second.getKey()).exists());
+        assertTrue(new File(directory, third.getKey()).isFile());
+        assertTrue(new File(directory, fourth.getKey()).isFile());
+        assertEquals(2, directory.listFiles().length);
+    }
+
+    @Test
+    public void testExistingFilesCountTowardsStorageLimits() throws Exception {
+        directory = Files.createTempDirectory("screenshots").toFile();
+        File old = new File(directory, "old");
+        Files.write(old.toPath(), screenshot(13));
+        File temp = new File(directory, "partial.tmp");
+        Files.write(temp.toPath(), screenshot(14));
+        ScreenshotCache.setStorageLimits(1, 1024*1024);
+        ScreenshotCache.setStorageDirectory(directory);
+        ScreenshotCache.awaitStored();
+        assertTrue(old.isFile());
+        assertFalse(temp.exists());
+
+        ScreenshotHandle handle = ScreenshotCache.put(UUID, screenshot(15));
+        ScreenshotCache.awaitStored();
+        assertFalse(old.exists());
+        assertTrue(new File(directory, handle.getKey()).isFile());
+    }
+
+    private static Object copy(Object object) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+}
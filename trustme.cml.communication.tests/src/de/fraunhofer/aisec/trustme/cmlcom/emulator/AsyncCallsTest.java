@@ -0,0 +1,166 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom.emulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.fraunhofer.aisec.trustme.Container;
+import de.fraunhofer.aisec.trustme.Control.ControllerToDaemon;
+import de.fraunhofer.aisec.trustme.cmlcom.Communicator;
+import de.fraunhofer.aisec.trustme.cmlcom.ConnectionLostException;
+
+/**
+ * Completion of the futures returned by the asynchronous Communicator calls
+ * against the CmldEmulator.
+ */
+public class AsyncCallsTest {
+    private static final String CONTAINERS = "u0:a0:" + Container.RUNNING + ", u1:a1:" + Container.STOPPED;
+
+    private Path dir;
+    private CmldEmulator emulator;
+    private Communicator communicator;
+
+    private void start(String... properties) throws Exception {
+        Properties script = new Properties();
+        script.setProperty("containers", CONTAINERS);
+        for (int i = 0; i < properties.length; i += 2)
+            script.setProperty(properties[i], properties[i + 1]);
+
+        dir = Files.createTempDirectory("cmld-emulator");
+        Path socket = dir.resolve("cml-control");
+        emulator = new CmldEmulator(socket, new EmulatorScript(script));
+        emulator.start();
+
+        communicator = new Communicator(new UnixSocketConnector(socket.toString()), true);
+        communicator.setStatusCacheMaxAge(0);
+        communicator.setConfigCacheLimits(0, 0);
+        communicator.whenConnected().get(5, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (communicator != null)
+            communicator.cleanup();
+        if (emulator != null)
+            emulator.stop();
+        if (dir != null)
+            Files.deleteIfExists(dir);
+    }
+
+    private static Throwable causeOf(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("Future completed normally");
+        return null;
+    }
+
+    @Test
+    public void testFuturesCompleteInRequestOrder() throws Exception {
+        start("latency.ms", "2", "jitter.ms", "2");
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        List<CompletableFuture<Integer>> states = new ArrayList<CompletableFuture<Integer>>();
+        for (int i = 0; i < 100; ++i) {
+            final int index = i;
+            CompletableFuture<Integer> state = communicator.getContainerStateAsync(i % 2 == 0 ? "u0" : "u1");
+            state.thenRun(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(index);
+                }
+            });
+            states.add(state);
+        }
+        for (int i = 0; i < states.size(); ++i)
+            assertEquals(i % 2 == 0 ? Container.RUNNING : Container.STOPPED, (int) states.get(i).get(5, TimeUnit.SECONDS));
+
+        assertEquals(states.size(), order.size());
+        for (int i = 0; i < order.size(); ++i)
+            assertEquals(i, (int) order.get(i));
+    }
+
+    @Test
+    public void testLostConnectionCompletesFuturesExceptionally() throws Exception {
+        start("error.close." + ControllerToDaemon.GET_CONTAINER_CONFIG, "1");
+
+        CompletableFuture<?> config = communicator.getContainerConfigAsync("u0");
+        CompletableFuture<Integer> state = communicator.getContainerStateAsync("u1");
+
+        assertTrue(causeOf(config) instanceof ConnectionLostException);
+        assertTrue(config.isCompletedExceptionally());
+        // either lost while waiting, or its write to the closed socket failed
+        // and was replayed once the connection had been re-established
+        try {
+            assertEquals(Container.STOPPED, (int) state.get(5, TimeUnit.SECONDS));
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+        // later calls go through the re-established connection
+        assertEquals(Container.STOPPED, (int) communicator.getContainerStateAsync("u1").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCancelledFutureFailsLaterRequests() throws Exception {
+        start("latency.ms." + ControllerToDaemon.GET_CONTAINER_CONFIG, "500");
+
+        CompletableFuture<?> config = communicator.getContainerConfigAsync("u0");
+        // queued behind the cancelled request, so its response cannot be matched
+        CompletableFuture<Integer> state = communicator.getContainerStateAsync("u1");
+
+        assertTrue(config.cancel(true));
+        try {
+            config.get();
+            fail("Cancelled future completed");
+        }
+        catch (CancellationException e) {
+            // expected
+        }
+        assertTrue(causeOf(state) instanceof ConnectionLostException);
+
+        assertEquals(Container.RUNNING, (int) communicator.getContainerStateAsync("u0").get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom.emulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fraunhofer.aisec.trustme.Container;
+import de.fraunhofer.aisec.trustme.cmlcom.Communicator;
+import de.fraunhofer.aisec.trustme.cmlcom.Connection;
+import de.fraunhofer.aisec.trustme.cmlcom.ConnectionLostException;
+import de.fraunhofer.aisec.trustme.cmlcom.Connector;
+
+/**
+ * Connecting to the CmldEmulator in the background: requests issued before
+ * the connection is ready and connect failures.
+ */
+public class ConnectTest {
+    private Path dir;
+    private Path socket;
+    private CmldEmulator emulator;
+    private Communicator communicator;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("cmld-emulator");
+        socket = dir.resolve("cml-control");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (communicator != null)
+            communicator.cleanup();
+        if (emulator != null)
+            emulator.stop();
+        Files.deleteIfExists(socket);
+        Files.deleteIfExists(dir);
+    }
+
+    private void startEmulator() throws IOException {
+        Properties script = new Properties();
+        script.setProperty("containers", "u0:a0:" + Container.RUNNING);
+        emulator = new CmldEmulator(socket, new EmulatorScript(script));
+        emulator.start();
+    }
+
+    @Test
+    public void testRequestBeforeConnectIsSentOnceConnected() throws Exception {
+        communicator = new Communicator(new UnixSocketConnector(socket.toString()), true);
+        communicator.setConnectTimeout(5000);
+        assertFalse(communicator.isConnected());
+
+        CompletableFuture<Integer> async = communicator.getContainerStateAsync("u0");
+        final AtomicInteger state = new AtomicInteger(-1);
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    state.set(communicator.getContainerState("u0"));
+                }
+                catch (IOException e) {
+                    // state stays -1
+                }
+            }
+        };
+        caller.start();
+
+        Thread.sleep(300);
+        assertFalse(async.isDone());
+        startEmulator();
+
+        assertEquals(Container.RUNNING, (int) async.get(5, TimeUnit.SECONDS));
+        caller.join(5000);
+        assertEquals(Container.RUNNING, state.get());
+        assertTrue(communicator.isConnected());
+    }
+
+    @Test
+    public void testRequestFailsAfterConnectTimeout() throws Exception {
+        communicator = new Communicator(new UnixSocketConnector(socket.toString()), true);
+        communicator.setConnectTimeout(200);
+
+        long start = System.nanoTime();
+        try {
+            communicator.getContainerState("u0");
+            fail("Request succeeded without cmld");
+        }
+        catch (ConnectionLostException e) {
+            // expected
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Failed after " + elapsed + " ms", elapsed >= 150 && elapsed < 2000);
+        assertFalse(communicator.whenConnected().isDone());
+    }
+
+    @Test
+    public void testFailedConnectIsRetried() throws Exception {
+        startEmulator();
+        final Connector connector = new UnixSocketConnector(socket.toString());
+        final AtomicInteger attempts = new AtomicInteger();
+        communicator = new Communicator(new Connector() {
+            @Override
+            public Connection connect() throws IOException {
+                if (attempts.incrementAndGet() <= 2)
+                    throw new IOException("Refused");
+                return connector.connect();
+            }
+        }, false);
+
+        // the constructor returns after the first attempt failed
+        assertFalse(communicator.isConnected());
+        communicator.whenConnected().get(5, TimeUnit.SECONDS);
+        assertEquals(3, attempts.get());
+        assertEquals(Container.RUNNING, communicator.getContainerState("u0"));
+    }
+}
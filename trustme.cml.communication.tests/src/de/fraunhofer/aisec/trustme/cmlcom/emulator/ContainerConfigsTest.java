@@ -0,0 +1,144 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom.emulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fraunhofer.aisec.trustme.Container;
+import de.fraunhofer.aisec.trustme.Container.ContainerConfig;
+import de.fraunhofer.aisec.trustme.cmlcom.Communicator;
+
+/**
+ * Fetching container configurations from the CmldEmulator in bulk, with
+ * some of them cached already.
+ */
+public class ContainerConfigsTest {
+    private static final int CONTAINERS = 40;
+
+    private Path dir;
+    private Path socket;
+    private CmldEmulator emulator;
+    private Communicator communicator;
+
+    @Before
+    public void setUp() throws Exception {
+        StringBuilder containers = new StringBuilder();
+        for (int i = 0; i < CONTAINERS; ++i)
+            containers.append(i > 0 ? ", " : "").append("u" + i + ":a" + i + ":" + Container.RUNNING);
+        Properties script = new Properties();
+        script.setProperty("containers", containers.toString());
+
+        dir = Files.createTempDirectory("cmld-emulator");
+        socket = dir.resolve("cml-control");
+        emulator = new CmldEmulator(socket, new EmulatorScript(script));
+        emulator.start();
+
+        communicator = new Communicator(new UnixSocketConnector(socket.toString()), true);
+        communicator.setRequestTimeout(5000);
+        communicator.whenConnected().get(5, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (communicator != null)
+            communicator.cleanup();
+        if (emulator != null)
+            emulator.stop();
+        Files.deleteIfExists(socket);
+        Files.deleteIfExists(dir);
+    }
+
+    private static List<String> uuids(int from, int to) {
+        List<String> uuids = new ArrayList<String>();
+        for (int i = from; i < to; ++i)
+            uuids.add("u" + i);
+        return uuids;
+    }
+
+    private long framesSent() {
+        return communicator.getMetrics().snapshot().getFramesSent();
+    }
+
+    @Test
+    public void testMissingConfigsAreFetchedInBatches() throws Exception {
+        for (String uuid : uuids(0, 4))
+            communicator.getContainerConfig(uuid);
+        long sent = framesSent();
+
+        List<String> requested = uuids(0, CONTAINERS);
+        Map<String, ContainerConfig> configs = communicator.getContainerConfigs(requested);
+
+        // 36 missing configs take three requests of up to 16 containers
+        assertEquals(3, framesSent() - sent);
+        assertEquals(requested, new ArrayList<String>(configs.keySet()));
+        for (int i = 0; i < CONTAINERS; ++i)
+            assertEquals("a" + i, configs.get("u" + i).name);
+        assertEquals(4, communicator.getConfigCacheStats().getHitCount());
+    }
+
+    @Test
+    public void testCachedConfigsAreNotRequested() throws Exception {
+        communicator.getContainerConfigs(uuids(0, 8));
+        long sent = framesSent();
+
+        Map<String, ContainerConfig> configs = communicator.getContainerConfigs(uuids(0, 8));
+        assertEquals(0, framesSent() - sent);
+        assertEquals(8, configs.size());
+
+        // copies are returned, so callers cannot change the cached configs
+        configs.get("u0").name = "changed";
+        assertEquals("a0", communicator.getContainerConfig("u0").name);
+    }
+
+    @Test
+    public void testUnknownContainersAreMissing() throws Exception {
+        Map<String, ContainerConfig> configs = communicator.getContainerConfigs(
+                Arrays.asList("u0", "unknown", "u1", "u0"));
+
+        assertEquals(2, configs.size());
+        assertEquals("a0", configs.get("u0").name);
+        assertEquals("a1", configs.get("u1").name);
+        assertFalse(configs.containsKey("unknown"));
+        // the known configs of the batch are cached nonetheless
+        long sent = framesSent();
+        communicator.getContainerConfigs(Arrays.asList("u0", "u1"));
+        assertEquals(0, framesSent() - sent);
+        assertTrue(communicator.getConfigCacheStats().getEntryCount() >= 2);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom.emulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.fraunhofer.aisec.trustme.Container;
+import de.fraunhofer.aisec.trustme.Control.ControllerToDaemon;
+import de.fraunhofer.aisec.trustme.cmlcom.Communicator;
+import de.fraunhofer.aisec.trustme.cmlcom.ConnectionLostException;
+import de.fraunhofer.aisec.trustme.cmlcom.ContainerItem;
+import de.fraunhofer.aisec.trustme.cmlcom.ResponseTimeoutException;
+
+/**
+ * Matches responses of the CmldEmulator to requests in the presence of
+ * unsolicited notifications and dropped responses.
+ */
+public class ResponseMatchingTest {
+    private static final String CONTAINERS = "u0:a0:" + Container.RUNNING + ", u1:a1:" + Container.STOPPED;
+
+    private Path dir;
+    private CmldEmulator emulator;
+    private Communicator communicator;
+
+    private void start(String... properties) throws Exception {
+        Properties script = new Properties();
+        script.setProperty("containers", CONTAINERS);
+        for (int i = 0; i < properties.length; i += 2)
+            script.setProperty(properties[i], properties[i + 1]);
+
+        dir = Files.createTempDirectory("cmld-emulator");
+        Path socket = dir.resolve("cml-control");
+        emulator = new CmldEmulator(socket, new EmulatorScript(script));
+        emulator.start();
+
+        communicator = new Communicator(new UnixSocketConnector(socket.toString()), true);
+        communicator.setRequestTimeout(5000);
+        communicator.setStatusCacheMaxAge(0);
+        communicator.setConfigCacheLimits(0, 0);
+        communicator.whenConnected().get(5, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (communicator != null)
+            communicator.cleanup();
+        if (emulator != null)
+            emulator.stop();
+        if (dir != null)
+            Files.deleteIfExists(dir);
+    }
+
+    private static Throwable causeOf(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("Future completed normally");
+        return null;
+    }
+
+    @Test
+    public void testNotificationsDoNotShiftResponses() throws Exception {
+        start("notify.ms", "1");
+
+        List<CompletableFuture<Integer>> states = new ArrayList<CompletableFuture<Integer>>();
+        for (int i = 0; i < 200; ++i) {
+            states.add(communicator.getContainerStateAsync("u0"));
+            states.add(communicator.getContainerStateAsync("u1"));
+            assertEquals("a1", communicator.getContainerConfig("u1").name);
+        }
+        for (int i = 0; i < states.size(); i += 2) {
+            assertEquals(Container.RUNNING, (int) states.get(i).get(5, TimeUnit.SECONDS));
+            assertEquals(Container.STOPPED, (int) states.get(i + 1).get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testStatusRequestWithoutUuidsListsAllContainers() throws Exception {
+        start();
+
+        // a0 is never presented
+        List<ContainerItem> items = communicator.getContainers();
+        assertEquals(1, items.size());
+        assertEquals("u1", items.get(0).getUuid());
+        assertEquals("a1", items.get(0).getName());
+    }
+
+    @Test
+    public void testDroppedResponseResetsConnection() throws Exception {
+        start("error.drop." + ControllerToDaemon.GET_CONTAINER_CONFIG, "1");
+
+        CompletableFuture<?> config = communicator.getContainerConfigAsync("u0", 200, TimeUnit.MILLISECONDS);
+        // answered, but queued behind the request which is never answered
+        CompletableFuture<Integer> state = communicator.getContainerStateAsync("u1");
+
+        assertTrue(causeOf(config) instanceof ResponseTimeoutException);
+        assertTrue(causeOf(state) instanceof ConnectionLostException);
+
+        // the connection has been re-established and responses match again
+        assertEquals(Container.RUNNING, communicator.getContainerState("u0"));
+        assertEquals(Container.STOPPED, communicator.getContainerState("u1"));
+    }
+
+    @Test
+    public void testPerCallDeadline() throws Exception {
+        start("error.drop." + ControllerToDaemon.GET_CONTAINER_CONFIG, "1");
+
+        long start = System.nanoTime();
+        try {
+            communicator.getContainerConfig("u0", 100, TimeUnit.MILLISECONDS);
+            fail("Dropped request did not time out");
+        }
+        catch (ResponseTimeoutException e) {
+            // expected
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(Container.STOPPED, communicator.getContainerState("u1", 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testMalformedResponseKeepsConnection() throws Exception {
+        start("error.garbage." + ControllerToDaemon.GET_CONTAINER_CONFIG, "1");
+
+        CompletableFuture<?> config = communicator.getContainerConfigAsync("u0");
+        // answered after the malformed response on the same connection
+        CompletableFuture<Integer> state = communicator.getContainerStateAsync("u1");
+
+        Throwable failure = causeOf(config);
+        assertTrue(failure instanceof IOException);
+        assertFalse(failure instanceof ConnectionLostException);
+        assertEquals(Container.STOPPED, (int) state.get(5, TimeUnit.SECONDS));
+    }
+}
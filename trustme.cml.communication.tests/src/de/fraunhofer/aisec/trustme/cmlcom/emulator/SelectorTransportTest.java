@@ -0,0 +1,241 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom.emulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.fraunhofer.aisec.trustme.Container;
+import de.fraunhofer.aisec.trustme.Container.ContainerConfig;
+import de.fraunhofer.aisec.trustme.Control.ControllerToDaemon;
+import de.fraunhofer.aisec.trustme.cmlcom.Communicator;
+import de.fraunhofer.aisec.trustme.cmlcom.Connection;
+import de.fraunhofer.aisec.trustme.cmlcom.Receiver;
+import de.fraunhofer.aisec.trustme.cmlcom.SelectorTransport;
+import de.fraunhofer.aisec.trustme.cmlcom.Sender;
+import de.fraunhofer.aisec.trustme.cmlcom.TransportAccess;
+
+public class SelectorTransportTest {
+    private Path dir;
+    private CmldEmulator emulator;
+    private SelectorTransport transport;
+    private final List<ServerSocketChannel> servers = new ArrayList<ServerSocketChannel>();
+    private final List<SocketChannel> peers = new ArrayList<SocketChannel>();
+
+    @After
+    public void tearDown() throws Exception {
+        if (transport != null)
+            transport.shutdown();
+        if (emulator != null)
+            emulator.stop();
+        for (SocketChannel peer : peers)
+            peer.close();
+        for (ServerSocketChannel server : servers)
+            server.close();
+        if (dir != null) {
+            for (String name : new String[] { "cml-control", "stalled", "dead", "healthy" })
+                Files.deleteIfExists(dir.resolve(name));
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private Communicator connect(Path socket) throws Exception {
+        Communicator communicator = new Communicator(transport.connector(UnixDomainSocketAddress.of(socket)), true);
+        communicator.setRequestTimeout(5000);
+        communicator.setStatusCacheMaxAge(0);
+        communicator.whenConnected().get(5, TimeUnit.SECONDS);
+        return communicator;
+    }
+
+    @Test
+    public void testBlockingListenerStallsOnlyItsConnection() throws Exception {
+        Properties script = new Properties();
+        script.setProperty("containers", "u0:a0:" + Container.RUNNING + ", u1:a1:" + Container.STOPPED);
+        // the blocking stage is attached before the config arrives
+        script.setProperty("latency.ms." + ControllerToDaemon.GET_CONTAINER_CONFIG, "200");
+        dir = Files.createTempDirectory("cmld-emulator");
+        Path socket = dir.resolve("cml-control");
+        emulator = new CmldEmulator(socket, new EmulatorScript(script));
+        emulator.start();
+        transport = new SelectorTransport();
+
+        Communicator blocked = connect(socket);
+        Communicator other = connect(socket);
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Void> stage = blocked.getContainerConfigAsync("u0").thenAccept(new Consumer<ContainerConfig>() {
+            @Override
+            public void accept(ContainerConfig config) {
+                entered.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        try {
+            for (int i = 0; i < 10; ++i)
+                assertEquals(Container.STOPPED, other.getContainerState("u1", 1, TimeUnit.SECONDS));
+        }
+        finally {
+            release.countDown();
+        }
+        stage.get(5, TimeUnit.SECONDS);
+        assertEquals(Container.RUNNING, blocked.getContainerState("u0"));
+
+        blocked.cleanup();
+        other.cleanup();
+    }
+
+    private ServerSocketChannel listen(String name) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        servers.add(server);
+        server.bind(UnixDomainSocketAddress.of(dir.resolve(name)));
+        return server;
+    }
+
+    private SocketChannel accept(ServerSocketChannel server) throws IOException {
+        SocketChannel peer = server.accept();
+        peers.add(peer);
+        return peer;
+    }
+
+    /**
+     * Connects a Sender to the server through the transport, so that its
+     * enqueued messages are sent by the transport's shared writer thread.
+     */
+    private Sender attach(ServerSocketChannel server, boolean replay) throws IOException {
+        Connection connection = transport.connector(server.getLocalAddress()).connect();
+        Sender sender = new Sender(connection.getOutputStream(), 256) {
+            @Override
+            protected void exceptionHandler(Exception e) {
+                // expected for the dead peer
+            }
+        };
+        sender.setReplayAfterReconnect(replay);
+        Receiver receiver = new Receiver(null) {
+            @Override
+            protected void handleMessage(byte[] encodedMessage) {
+            }
+
+            @Override
+            protected void exceptionHandler(Exception e) {
+            }
+        };
+        TransportAccess.attach(connection, sender, receiver);
+        return sender;
+    }
+
+    private static ControllerToDaemon message(int length) {
+        ControllerToDaemon msg = new ControllerToDaemon();
+        msg.command = ControllerToDaemon.GET_CONTAINER_STATUS;
+        char[] payload = new char[length];
+        Arrays.fill(payload, 'x');
+        msg.containerUuids = new String[] { new String(payload) };
+        return msg;
+    }
+
+    @Test
+    public void testStalledAndDeadPeersDoNotBlockSharedWriter() throws Exception {
+        dir = Files.createTempDirectory("cmld-transport");
+        transport = new SelectorTransport();
+
+        // never reads, so its connection gets congested
+        ServerSocketChannel stalledServer = listen("stalled");
+        Sender stalled = attach(stalledServer, false);
+        accept(stalledServer);
+
+        // closes right away, a failed batch is held for a replay that never happens
+        ServerSocketChannel deadServer = listen("dead");
+        Sender dead = attach(deadServer, true);
+        accept(deadServer).close();
+
+        ServerSocketChannel healthyServer = listen("healthy");
+        Sender healthy = attach(healthyServer, false);
+        final SocketChannel healthyPeer = accept(healthyServer);
+
+        for (int i = 0; i < 200; ++i)
+            stalled.sendMessage(message(60*1024));
+        for (int i = 0; i < 100; ++i)
+            dead.sendMessage(message(1024));
+
+        ControllerToDaemon msg = message(100);
+        int frameLength = 4 + msg.getSerializedSize();
+        final long expected = 100L * frameLength;
+        final AtomicLong received = new AtomicLong();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(64*1024);
+                try {
+                    while (received.get() < expected) {
+                        buffer.clear();
+                        int n = healthyPeer.read(buffer);
+                        if (n < 0)
+                            return;
+                        received.addAndGet(n);
+                    }
+                }
+                catch (IOException e) {
+                    // closed by tearDown
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+
+        for (int i = 0; i < 100; ++i)
+            healthy.sendMessage(msg);
+        reader.join(5000);
+        assertEquals(expected, received.get());
+        // the stalled peer's messages are held back, not lost
+        assertTrue(stalled.getQueueSize() > 0);
+    }
+}
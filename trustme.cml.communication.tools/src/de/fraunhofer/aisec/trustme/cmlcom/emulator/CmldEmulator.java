@@ -0,0 +1,366 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom.emulator;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.nano.MessageNano;
+
+import de.fraunhofer.aisec.trustme.Container;
+import de.fraunhofer.aisec.trustme.Container.ContainerConfig;
+import de.fraunhofer.aisec.trustme.Container.ContainerStatus;
+import de.fraunhofer.aisec.trustme.Control.ControllerToDaemon;
+import de.fraunhofer.aisec.trustme.Control.DaemonToController;
+
+/**
+ * Emulates cmld's control socket on a Unix domain socket, answering requests
+ * from its own container list with the latency and faults given by an
+ * EmulatorScript. Each client is served by its own thread and requests are
+ * answered strictly in order, as clients match responses to requests by
+ * their order.
+ */
+public class CmldEmulator {
+    private static final int MAX_FRAME_SIZE = 64*1024*1024;
+
+    private final Path path;
+    private final EmulatorScript script;
+    private final List<Session> sessions = new CopyOnWriteArrayList<Session>();
+
+    // guarded by containers
+    private final List<ContainerStatus> containers;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong faults = new AtomicLong();
+
+    private ServerSocketChannel serverChannel;
+
+    public CmldEmulator(Path path, EmulatorScript script) {
+        this.path = path;
+        this.script = script;
+        this.containers = script.containers;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: CmldEmulator <socket> [script.properties]");
+            System.exit(1);
+        }
+        EmulatorScript script = EmulatorScript.load(args.length > 1 ? Paths.get(args[1]) : null);
+        CmldEmulator emulator = new CmldEmulator(Paths.get(args[0]), script);
+        emulator.start();
+
+        for (;;) {
+            Thread.sleep(10*1000);
+            System.out.println(emulator.sessions.size() + " clients, " + emulator.requests.get()
+                    + " requests, " + emulator.faults.get() + " faults injected");
+        }
+    }
+
+    /**
+     * Binds the socket, replacing a stale one, and starts accepting clients.
+     */
+    public void start() throws IOException {
+        Files.deleteIfExists(path);
+        serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        serverChannel.bind(UnixDomainSocketAddress.of(path));
+
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "cmld-emulator-accept");
+
+        if (script.notifyMillis > 0) {
+            startThread(new Runnable() {
+                @Override
+                public void run() {
+                    notifyClients();
+                }
+            }, "cmld-emulator-notify");
+        }
+    }
+
+    public void stop() throws IOException {
+        serverChannel.close();
+        for (Session session : sessions)
+            session.close();
+        Files.deleteIfExists(path);
+    }
+
+    private static void startThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void accept() {
+        while (serverChannel.isOpen()) {
+            try {
+                final Session session = new Session(serverChannel.accept());
+                sessions.add(session);
+                startThread(session, "cmld-emulator-session");
+            }
+            catch (IOException e) {
+                if (serverChannel.isOpen())
+                    System.err.println("Accepting client failed: " + e);
+            }
+        }
+    }
+
+    private void notifyClients() {
+        Random random = ThreadLocalRandom.current();
+        for (;;) {
+            try {
+                Thread.sleep(script.notifyMillis);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            DaemonToController msg = new DaemonToController();
+            synchronized (containers) {
+                if (containers.isEmpty())
+                    continue;
+                msg.containerStatus = new ContainerStatus[] {
+                    copy(containers.get(random.nextInt(containers.size())))
+                };
+            }
+            for (Session session : sessions) {
+                try {
+                    session.send(msg);
+                }
+                catch (IOException e) {
+                    session.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the response to the given request, or null if cmld does not
+     * answer the request.
+     */
+    private DaemonToController respond(ControllerToDaemon request) {
+        DaemonToController response = new DaemonToController();
+        String[] uuids = request.containerUuids != null ? request.containerUuids : new String[0];
+
+        synchronized (containers) {
+            switch (request.command) {
+            case ControllerToDaemon.LIST_CONTAINERS:
+                response.containerStatus = copyAll(containers);
+                return response;
+            case ControllerToDaemon.GET_CONTAINER_STATUS:
+                // like cmld, answer with all containers if none are named
+                if (uuids.length == 0) {
+                    response.containerStatus = copyAll(containers);
+                    return response;
+                }
+                List<ContainerStatus> status = new ArrayList<ContainerStatus>();
+                for (String uuid : uuids) {
+                    ContainerStatus container = find(uuid);
+                    if (container != null)
+                        status.add(copy(container));
+                }
+                response.containerStatus = status.toArray(new ContainerStatus[status.size()]);
+                return response;
+            case ControllerToDaemon.GET_CONTAINER_CONFIG:
+                List<ContainerConfig> configs = new ArrayList<ContainerConfig>();
+                for (String uuid : uuids) {
+                    ContainerStatus container = find(uuid);
+                    if (container != null)
+                        configs.add(configOf(container));
+                }
+                response.containerConfigs = configs.toArray(new ContainerConfig[configs.size()]);
+                return response;
+            case ControllerToDaemon.CONTAINER_START:
+                setState(uuids, Container.RUNNING);
+                response.response = DaemonToController.CONTAINER_START_OK;
+                return response;
+            case ControllerToDaemon.CONTAINER_STOP:
+                setState(uuids, Container.STOPPED);
+                return null;
+            default:
+                return null;
+            }
+        }
+    }
+
+    private ContainerStatus find(String uuid) {
+        for (ContainerStatus container : containers) {
+            if (container.uuid.equals(uuid))
+                return container;
+        }
+        return null;
+    }
+
+    private void setState(String[] uuids, int state) {
+        for (String uuid : uuids) {
+            ContainerStatus container = find(uuid);
+            if (container != null)
+                container.state = state;
+        }
+    }
+
+    private static ContainerStatus copy(ContainerStatus container) {
+        ContainerStatus status = new ContainerStatus();
+        status.uuid = container.uuid;
+        status.name = container.name;
+        status.state = container.state;
+        return status;
+    }
+
+    private static ContainerStatus[] copyAll(List<ContainerStatus> containers) {
+        ContainerStatus[] status = new ContainerStatus[containers.size()];
+        for (int i = 0; i < status.length; ++i)
+            status[i] = copy(containers.get(i));
+        return status;
+    }
+
+    private static ContainerConfig configOf(ContainerStatus container) {
+        ContainerConfig config = new ContainerConfig();
+        config.name = container.name;
+        // RGBA, derived from the name so it stays the same across runs
+        config.color = container.name.hashCode() | 0xff;
+        return config;
+    }
+
+    private class Session implements Runnable {
+        private final SocketChannel channel;
+        private final DataInputStream in;
+        private final OutputStream out;
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+            this.in = new DataInputStream(ChannelStreams.newInputStream(channel));
+            this.out = ChannelStreams.newOutputStream(channel);
+        }
+
+        @Override
+        public void run() {
+            Random random = ThreadLocalRandom.current();
+            byte[] buffer = new byte[4096];
+            try {
+                for (;;) {
+                    int length = in.readInt();
+                    if ((length & ~0x0fffffff) != 0 || length > MAX_FRAME_SIZE)
+                        throw new IOException("Invalid frame header 0x" + Integer.toHexString(length));
+                    if (length > buffer.length)
+                        buffer = new byte[length];
+                    in.readFully(buffer, 0, length);
+                    requests.incrementAndGet();
+
+                    ControllerToDaemon request = new ControllerToDaemon();
+                    MessageNano.mergeFrom(request, buffer, 0, length);
+                    handle(request, random);
+                }
+            }
+            catch (EOFException e) {
+                // client disconnected
+            }
+            catch (IOException e) {
+                if (channel.isOpen())
+                    System.err.println("Session failed: " + e);
+            }
+            catch (InterruptedException e) {
+                // stopped
+            }
+            finally {
+                close();
+            }
+        }
+
+        private void handle(ControllerToDaemon request, Random random) throws IOException, InterruptedException {
+            EmulatorScript.Fault fault = script.nextFault(request.command, random);
+            if (fault != EmulatorScript.Fault.NONE)
+                faults.incrementAndGet();
+
+            switch (fault) {
+            case CLOSE:
+                close();
+                return;
+            case DROP:
+                return;
+            default:
+                break;
+            }
+
+            long delay = script.delayMillis(request.command, random);
+            if (delay > 0)
+                Thread.sleep(delay);
+
+            if (fault == EmulatorScript.Fault.GARBAGE) {
+                // an overlong varint, which never parses
+                byte[] garbage = new byte[16];
+                Arrays.fill(garbage, (byte) 0xff);
+                sendFrame(garbage);
+                return;
+            }
+
+            DaemonToController response = respond(request);
+            if (response != null)
+                send(response);
+        }
+
+        void send(DaemonToController msg) throws IOException {
+            sendFrame(MessageNano.toByteArray(msg));
+        }
+
+        private synchronized void sendFrame(byte[] payload) throws IOException {
+            byte[] frame = new byte[4 + payload.length];
+            frame[0] = (byte) (payload.length >>> 24);
+            frame[1] = (byte) (payload.length >>> 16);
+            frame[2] = (byte) (payload.length >>> 8);
+            frame[3] = (byte) payload.length;
+            System.arraycopy(payload, 0, frame, 4, payload.length);
+            out.write(frame);
+        }
+
+        void close() {
+            sessions.remove(this);
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
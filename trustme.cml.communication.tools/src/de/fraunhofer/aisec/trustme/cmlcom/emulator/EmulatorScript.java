@@ -0,0 +1,157 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom.emulator;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.UUID;
+
+import de.fraunhofer.aisec.trustme.Container;
+import de.fraunhofer.aisec.trustme.Container.ContainerStatus;
+
+/**
+ * Behaviour of the CmldEmulator, read from a properties file:
+ *
+ * <pre>
+ * # containers as uuid:name:state, state being a Container state constant,
+ * # or a number of containers a0, a1, ... generated with random uuids
+ * containers = 3f1a...:a0:4, 9c2e...:a1:1
+ * containers.count = 4
+ *
+ * # response latency in milliseconds, uniformly jittered by +/- jitter,
+ * # optionally overridden per ControllerToDaemon command
+ * latency.ms = 2
+ * jitter.ms = 1
+ * latency.ms.3 = 20
+ *
+ * # probabilities of faults per request: closing the connection, not
+ * # answering at all, answering with a frame which does not parse,
+ * # optionally overridden per ControllerToDaemon command
+ * error.close = 0.0001
+ * error.drop = 0.001
+ * error.garbage = 0.001
+ * error.drop.3 = 0.01
+ *
+ * # interval of unsolicited status notifications to all clients, 0 for none
+ * notify.ms = 0
+ * </pre>
+ */
+final class EmulatorScript {
+    enum Fault { NONE, CLOSE, DROP, GARBAGE }
+
+    private final Properties properties;
+
+    final List<ContainerStatus> containers = new ArrayList<ContainerStatus>();
+    final long latencyMillis;
+    final long jitterMillis;
+    final double closeRate;
+    final double dropRate;
+    final double garbageRate;
+    final long notifyMillis;
+
+    EmulatorScript(Properties properties) {
+        this.properties = properties;
+
+        latencyMillis = getLong("latency.ms", 0);
+        jitterMillis = getLong("jitter.ms", 0);
+        closeRate = getDouble("error.close", 0);
+        dropRate = getDouble("error.drop", 0);
+        garbageRate = getDouble("error.garbage", 0);
+        notifyMillis = getLong("notify.ms", 0);
+
+        String list = properties.getProperty("containers", "").trim();
+        if (!list.isEmpty()) {
+            for (String entry : list.split("\\s*,\\s*")) {
+                String[] fields = entry.split(":");
+                if (fields.length != 3)
+                    throw new IllegalArgumentException("Invalid container " + entry);
+                containers.add(newStatus(fields[0], fields[1], Integer.parseInt(fields[2])));
+            }
+        }
+        else {
+            int count = (int) getLong("containers.count", 3);
+            for (int i = 0; i < count; ++i)
+                containers.add(newStatus(UUID.randomUUID().toString(), "a" + i,
+                        i == 0 ? Container.RUNNING : Container.STOPPED));
+        }
+    }
+
+    static EmulatorScript load(Path path) throws IOException {
+        Properties properties = new Properties();
+        if (path != null) {
+            try (Reader reader = Files.newBufferedReader(path)) {
+                properties.load(reader);
+            }
+        }
+        return new EmulatorScript(properties);
+    }
+
+    private static ContainerStatus newStatus(String uuid, String name, int state) {
+        ContainerStatus status = new ContainerStatus();
+        status.uuid = uuid;
+        status.name = name;
+        status.state = state;
+        return status;
+    }
+
+    /**
+     * Returns how long to delay the response to the given command.
+     */
+    long delayMillis(int command, Random random) {
+        long latency = getLong("latency.ms." + command, latencyMillis);
+        if (jitterMillis > 0)
+            latency += (long) ((random.nextDouble() * 2 - 1) * jitterMillis);
+        return Math.max(latency, 0);
+    }
+
+    /**
+     * Draws the fault to inject into the response to the given command.
+     */
+    Fault nextFault(int command, Random random) {
+        double p = random.nextDouble();
+        if ((p -= getDouble("error.close." + command, closeRate)) < 0)
+            return Fault.CLOSE;
+        if ((p -= getDouble("error.drop." + command, dropRate)) < 0)
+            return Fault.DROP;
+        if ((p -= getDouble("error.garbage." + command, garbageRate)) < 0)
+            return Fault.GARBAGE;
+        return Fault.NONE;
+    }
+
+    private long getLong(String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        return value != null ? Long.parseLong(value.trim()) : defaultValue;
+    }
+
+    private double getDouble(String key, double defaultValue) {
+        String value = properties.getProperty(key);
+        return value != null ? Double.parseDouble(value.trim()) : defaultValue;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom.emulator;
+
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.fraunhofer.aisec.trustme.Container;
+import de.fraunhofer.aisec.trustme.Container.ContainerConfig;
+import de.fraunhofer.aisec.trustme.cmlcom.Communicator;
+import de.fraunhofer.aisec.trustme.cmlcom.Connector;
+import de.fraunhofer.aisec.trustme.cmlcom.ContainerItem;
+import de.fraunhofer.aisec.trustme.cmlcom.LatencyHistogram;
+import de.fraunhofer.aisec.trustme.cmlcom.LoopExecutors;
+import de.fraunhofer.aisec.trustme.cmlcom.SelectorTransport;
+
+/**
+ * Drives a number of Communicators, each shared by a number of threads
+ * issuing requests back to back, against a socket speaking cmld's control
+ * protocol and reports throughput, failures and latency percentiles.
+ * Caching is disabled, so every call reaches the socket.
+ *
+ * Each result is checked against the container list fetched when a worker
+ * starts, so containers must not be started or stopped during the run:
+ * a config must carry the name of the container requested, a state and
+ * the list must agree with it. A response matched to the wrong request
+ * therefore shows up as a failure named ResponseMismatch, or as the
+ * exception the Communicator threw decoding a response of the wrong type.
+ *
+ * <pre>
+ * LoadGenerator &lt;socket&gt; [connections=4] [threads=4] [seconds=30]
+ *               [timeout.ms=5000] [report.s=5] [ops=state,config,containers]
+ *               [transport=stream|selector] [loops=platform|virtual]
+ * </pre>
+ *
+ * With transport=stream, each Communicator runs its own Sender and Receiver
+ * loops, on platform or virtual threads as given by loops, with
+ * transport=selector all of them share a SelectorTransport.
+ *
+ * Percentiles are upper bounds accurate to a factor of two, see
+ * LatencyHistogram.
+ */
+public class LoadGenerator {
+    private final String socketPath;
+    private final int connections;
+    private final int threads;
+    private final long seconds;
+    private final long timeoutMillis;
+    private final long reportSeconds;
+    private final String[] ops;
+    private final SelectorTransport transport;
+    private final Executor loopExecutor;
+
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<String, LatencyHistogram>();
+    private final Map<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+
+    private volatile boolean running = true;
+
+    LoadGenerator(String socketPath, Map<String, String> options) {
+        this.socketPath = socketPath;
+        this.connections = Integer.parseInt(option(options, "connections", "4"));
+        this.threads = Integer.parseInt(option(options, "threads", "4"));
+        this.seconds = Long.parseLong(option(options, "seconds", "30"));
+        this.timeoutMillis = Long.parseLong(option(options, "timeout.ms", "5000"));
+        this.reportSeconds = Long.parseLong(option(options, "report.s", "5"));
+        this.ops = option(options, "ops", "state,config,containers").split(",");
+
+        String transportName = option(options, "transport", "stream");
+        if (transportName.equals("selector"))
+            this.transport = new SelectorTransport();
+        else if (transportName.equals("stream"))
+            this.transport = null;
+        else
+            throw new IllegalArgumentException("Unknown transport " + transportName);
+
+        String loops = option(options, "loops", "platform");
+        if (loops.equals("virtual"))
+            this.loopExecutor = LoopExecutors.virtualThreads();
+        else if (loops.equals("platform"))
+            this.loopExecutor = LoopExecutors.platformThreads();
+        else
+            throw new IllegalArgumentException("Unknown loops " + loops);
+
+        for (String op : ops) {
+            if (!op.equals("state") && !op.equals("config") && !op.equals("containers"))
+                throw new IllegalArgumentException("Unknown operation " + op);
+            latencies.put(op, new LatencyHistogram());
+        }
+    }
+
+    private static String option(Map<String, String> options, String key, String defaultValue) {
+        String value = options.remove(key);
+        return value != null ? value : defaultValue;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: LoadGenerator <socket> [key=value...]");
+            System.exit(1);
+        }
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 1; i < args.length; ++i) {
+            int eq = args[i].indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException("Expected key=value: " + args[i]);
+            options.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        LoadGenerator generator = new LoadGenerator(args[0], options);
+        if (!options.isEmpty())
+            throw new IllegalArgumentException("Unknown options " + options.keySet());
+        generator.run();
+    }
+
+    void run() throws Exception {
+        List<Communicator> communicators = new ArrayList<Communicator>();
+        List<Thread> workers = new ArrayList<Thread>();
+
+        for (int i = 0; i < connections; ++i) {
+            final Communicator communicator = new Communicator(newConnector(), true, loopExecutor);
+            communicator.setRequestTimeout(timeoutMillis);
+            communicator.setConnectTimeout(timeoutMillis);
+            communicator.setStatusCacheMaxAge(0);
+            communicator.setConfigCacheLimits(0, 0);
+            communicator.whenConnected().get(timeoutMillis, TimeUnit.MILLISECONDS);
+            communicators.add(communicator);
+
+            for (int j = 0; j < threads; ++j) {
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        work(communicator);
+                    }
+                }, "load-" + i + "-" + j);
+                workers.add(worker);
+            }
+        }
+
+        long start = System.nanoTime();
+        for (Thread worker : workers)
+            worker.start();
+
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(reportSeconds), TimeUnit.NANOSECONDS.toMillis(end - now) + 1));
+            report(System.nanoTime() - start);
+        }
+
+        running = false;
+        for (Thread worker : workers)
+            worker.join();
+        for (Communicator communicator : communicators)
+            communicator.cleanup();
+        if (transport != null)
+            transport.shutdown();
+
+        System.out.println("final:");
+        report(System.nanoTime() - start);
+        System.exit(0);
+    }
+
+    private Connector newConnector() {
+        if (transport != null)
+            return transport.connector(UnixDomainSocketAddress.of(socketPath));
+        return new UnixSocketConnector(socketPath);
+    }
+
+    private void work(Communicator communicator) {
+        Map<String, ContainerItem> expected = new LinkedHashMap<String, ContainerItem>();
+        try {
+            for (ContainerItem item : communicator.getContainers())
+                expected.put(item.getUuid(), item);
+        }
+        catch (IOException e) {
+            fail("containers", e);
+            return;
+        }
+        if (expected.isEmpty()) {
+            System.err.println("No containers to query");
+            return;
+        }
+        List<String> uuids = new ArrayList<String>(expected.keySet());
+
+        for (int i = 0; running; ++i) {
+            String op = ops[i % ops.length];
+            String uuid = uuids.get(i % uuids.size());
+            long start = System.nanoTime();
+            try {
+                if (op.equals("state"))
+                    checkState(uuid, communicator.getContainerState(uuid), expected);
+                else if (op.equals("config"))
+                    checkConfig(uuid, communicator.getContainerConfig(uuid), expected);
+                else
+                    checkContainers(communicator.getContainers(), expected);
+                latencies.get(op).record(System.nanoTime() - start);
+            }
+            catch (Exception e) {
+                fail(op, e);
+            }
+        }
+    }
+
+    /**
+     * Thrown if a result does not belong to the request it was returned for.
+     */
+    private static class ResponseMismatch extends Exception {
+        ResponseMismatch(String message) {
+            super(message);
+        }
+    }
+
+    private static void checkState(String uuid, int state, Map<String, ContainerItem> expected) throws ResponseMismatch {
+        if ((state != Container.STOPPED) != expected.get(uuid).isRunning())
+            throw new ResponseMismatch("Unexpected state " + state + " of " + uuid);
+    }
+
+    private static void checkConfig(String uuid, ContainerConfig config, Map<String, ContainerItem> expected) throws ResponseMismatch {
+        if (config == null || !expected.get(uuid).getName().equals(config.name))
+            throw new ResponseMismatch("Config of another container returned for " + uuid);
+    }
+
+    private static void checkContainers(List<ContainerItem> items, Map<String, ContainerItem> expected) throws ResponseMismatch {
+        if (items.size() != expected.size())
+            throw new ResponseMismatch("Got " + items.size() + " containers instead of " + expected.size());
+        for (ContainerItem item : items) {
+            ContainerItem known = expected.get(item.getUuid());
+            if (known == null || known.isRunning() != item.isRunning())
+                throw new ResponseMismatch("Unexpected container " + item.getUuid());
+        }
+    }
+
+    private void fail(String op, Exception e) {
+        String key = op + ": " + e.getClass().getSimpleName();
+        AtomicLong count = failures.get(key);
+        if (count == null) {
+            failures.putIfAbsent(key, new AtomicLong());
+            count = failures.get(key);
+        }
+        count.incrementAndGet();
+    }
+
+    private void report(long elapsedNanos) {
+        double elapsed = elapsedNanos / 1e9;
+        long total = 0;
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram histogram = entry.getValue().copy();
+            total += histogram.getCount();
+            sb.append(String.format("  %-10s %9.1f ops/s  p50=%dus p99=%dus p999=%dus max=%dus%n",
+                    entry.getKey(), histogram.getCount() / elapsed,
+                    histogram.getPercentileMicros(50), histogram.getPercentileMicros(99),
+                    histogram.getPercentileMicros(99.9), histogram.getMaxMicros()));
+        }
+        for (Map.Entry<String, AtomicLong> entry : failures.entrySet())
+            sb.append("  failed ").append(entry.getKey()).append(": ").append(entry.getValue().get()).append('\n');
+
+        System.out.printf("%.1fs: %d connections x %d threads, %.1f ops/s%n%s",
+                elapsed, connections, threads, total / elapsed, sb);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom.emulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+
+import de.fraunhofer.aisec.trustme.cmlcom.Connection;
+import de.fraunhofer.aisec.trustme.cmlcom.Connector;
+
+/**
+ * Connects a Communicator running on the host to a Unix domain socket, e.g.
+ * the one of the CmldEmulator.
+ */
+public class UnixSocketConnector implements Connector {
+    private final UnixDomainSocketAddress address;
+
+    public UnixSocketConnector(String path) {
+        this.address = UnixDomainSocketAddress.of(path);
+    }
+
+    @Override
+    public Connection connect() throws IOException {
+        final SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(address);
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        final InputStream in = ChannelStreams.newInputStream(channel);
+        final OutputStream out = ChannelStreams.newOutputStream(channel);
+        return new Connection() {
+            @Override
+            public InputStream getInputStream() {
+                return in;
+            }
+
+            @Override
+            public OutputStream getOutputStream() {
+                return out;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return address.getPath().toString();
+    }
+}
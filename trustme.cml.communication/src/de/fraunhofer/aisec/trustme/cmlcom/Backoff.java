@@ -0,0 +1,62 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.util.Random;
+
+/**
+ * Computes exponentially growing delays with random jitter for retrying an
+ * operation, e.g. reconnecting to cmld. Each delay is chosen uniformly from
+ * the upper half of the current exponential bound, so that several clients
+ * do not retry in lockstep.
+ */
+final class Backoff {
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final Random random = new Random();
+    private int attempt;
+
+    Backoff(long initialDelayMillis, long maxDelayMillis) {
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Returns the delay before the next attempt in milliseconds.
+     */
+    long nextDelay() {
+        long bound = initialDelayMillis << Math.min(attempt, 30);
+        if (bound <= 0 || bound > maxDelayMillis)
+            bound = maxDelayMillis;
+        else
+            ++attempt;
+
+        long half = bound / 2;
+        return half + (long) (random.nextDouble() * (bound - half));
+    }
+
+    void reset() {
+        attempt = 0;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache bounded by both the number of entries and the
+ * total size of the entries as determined by sizeOf().
+ */
+abstract class BoundedLruCache<K, V> {
+    private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+    private int maxEntries;
+    private long maxBytes;
+    private long bytes;
+    // incremented whenever entries are removed, see putIfUnchanged
+    private long version;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    private static final class Entry<V> {
+        final V value;
+        final int size;
+
+        Entry(V value, int size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    BoundedLruCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the (approximate) size of an entry in bytes. It is evaluated
+     * once when the entry is added.
+     */
+    protected abstract int sizeOf(K key, V value);
+
+    /**
+     * Invoked for each entry evicted to stay within the limits, holding the
+     * cache's lock. The default implementation does nothing.
+     */
+    protected void entryEvicted(K key, V value) {
+    }
+
+    synchronized V get(K key) {
+        Entry<V> entry = map.get(key);
+        if (entry == null) {
+            ++missCount;
+            return null;
+        }
+        ++hitCount;
+        return entry.value;
+    }
+
+    /**
+     * Returns true if there is an entry for the given key, without counting
+     * a hit or miss or changing the order of the entries.
+     */
+    synchronized boolean contains(K key) {
+        return map.containsKey(key);
+    }
+
+    synchronized void put(K key, V value) {
+        removeEntry(key);
+
+        int size = sizeOf(key, value);
+        if (size > maxBytes)
+            return;
+
+        map.put(key, new Entry<V>(value, size));
+        bytes += size;
+        trim();
+    }
+
+    /**
+     * Returns the current version of the cache, which changes whenever an
+     * entry is removed or the cache is cleared.
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Adds the entry unless an entry has been removed or the cache has been
+     * cleared since getVersion() returned the given version. A value loaded
+     * before an invalidation may be stale and is thus not cached. Returns
+     * true if the entry has been added.
+     */
+    synchronized boolean putIfUnchanged(K key, V value, long version) {
+        if (version != this.version)
+            return false;
+        put(key, value);
+        return true;
+    }
+
+    synchronized V remove(K key) {
+        ++version;
+        return removeEntry(key);
+    }
+
+    private V removeEntry(K key) {
+        Entry<V> entry = map.remove(key);
+        if (entry == null)
+            return null;
+        bytes -= entry.size;
+        return entry.value;
+    }
+
+    synchronized void clear() {
+        ++version;
+        map.clear();
+        bytes = 0;
+    }
+
+    synchronized void setLimits(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    synchronized CacheStats getStats() {
+        return new CacheStats(hitCount, missCount, evictionCount, map.size(), bytes);
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<K, Entry<V>>> it = map.entrySet().iterator();
+        while ((map.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            Map.Entry<K, Entry<V>> evicted = it.next();
+            bytes -= evicted.getValue().size;
+            it.remove();
+            ++evictionCount;
+            entryEvicted(evicted.getKey(), evicted.getValue().value);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A simple pool of byte arrays. Arrays are handed out in power of two size
+ * classes so that a released array can be reused for any smaller message.
+ * Arrays larger than the maximum pooled size are neither pooled nor rounded.
+ */
+final class BufferPool {
+    private static final int MIN_BUFFER_SIZE = 4096;
+
+    private final int maxPooledSize;
+    private final int maxBuffersPerSize;
+    private final List<ArrayDeque<byte[]>> freeBuffers;
+
+    BufferPool(int maxPooledSize, int maxBuffersPerSize) {
+        this.maxPooledSize = Math.max(MIN_BUFFER_SIZE, maxPooledSize);
+        this.maxBuffersPerSize = maxBuffersPerSize;
+        this.freeBuffers = new ArrayList<ArrayDeque<byte[]>>();
+        for (int size = MIN_BUFFER_SIZE; size > 0 && size <= this.maxPooledSize; size <<= 1)
+            freeBuffers.add(new ArrayDeque<byte[]>());
+    }
+
+    /**
+     * Returns an array with at least the given length.
+     */
+    byte[] acquire(int minLength) {
+        int index = sizeClass(minLength);
+        if (index < 0)
+            return new byte[minLength];
+
+        ArrayDeque<byte[]> free = freeBuffers.get(index);
+        synchronized (free) {
+            byte[] buffer = free.poll();
+            if (buffer != null)
+                return buffer;
+        }
+        return new byte[MIN_BUFFER_SIZE << index];
+    }
+
+    /**
+     * Returns an array obtained by acquire() to the pool.
+     */
+    void release(byte[] buffer) {
+        int index = sizeClass(buffer.length);
+        if (index < 0 || (MIN_BUFFER_SIZE << index) != buffer.length)
+            return;
+
+        ArrayDeque<byte[]> free = freeBuffers.get(index);
+        synchronized (free) {
+            if (free.size() < maxBuffersPerSize)
+                free.push(buffer);
+        }
+    }
+
+    private int sizeClass(int length) {
+        int index = 0;
+        for (int size = MIN_BUFFER_SIZE; index < freeBuffers.size(); size <<= 1, ++index) {
+            if (length <= size)
+                return index;
+        }
+        return -1;
+    }
+}
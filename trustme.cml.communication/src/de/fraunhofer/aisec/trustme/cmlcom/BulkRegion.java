@@ -0,0 +1,225 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Shared memory for passing large messages from a Sender to a Receiver
+ * without copying them through the socket. The region is a ring buffer in a
+ * memory-mapped file: the Sender copies a message into it and sends only a
+ * descriptor (position, length and checksum) in a frame flagged with
+ * Framing.FLAG_BULK, the Receiver hands out a read-only view of the mapping.
+ * Once the Receiver is done with a message, it publishes how far it has
+ * consumed the region in the file's header, which frees the space for the
+ * Sender. A message which does not fit into the free space is sent inline.
+ *
+ * A region carries messages in one direction between exactly one Sender
+ * and one Receiver, which may be in different processes. Both sides must be
+ * configured with the same file; the Sender's side creates it.
+ *
+ * @see Sender#setBulkRegion
+ * @see Receiver#setBulkRegion
+ */
+public final class BulkRegion implements Closeable {
+    private static final int MAGIC = 0x636d6c62; // "cmlb"
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int CONSUMED_OFFSET = 8;
+    private static final int DATA_OFFSET = 64;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    // position at which the next message is placed, Sender side only
+    private long writePosition;
+
+    private BulkRegion(File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer, int capacity) {
+        this.file = file;
+        this.randomAccessFile = randomAccessFile;
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates (or truncates) the given file as a region holding up to
+     * capacity bytes of messages and maps it. Used by the sending side.
+     */
+    public static BulkRegion create(File file, int capacity) throws IOException {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(DATA_OFFSET + (long) capacity);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + (long) capacity);
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.putInt(CAPACITY_OFFSET, capacity);
+            buffer.putLong(CONSUMED_OFFSET, 0);
+            return new BulkRegion(file, raf, buffer, capacity);
+        }
+        catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a region in a new temporary file which is deleted on exit.
+     */
+    public static BulkRegion createTemp(int capacity) throws IOException {
+        File file = File.createTempFile("cml-bulk", ".shm");
+        file.deleteOnExit();
+        return create(file, capacity);
+    }
+
+    /**
+     * Maps a region created by the sending side. Used by the receiving side.
+     */
+    public static BulkRegion open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < DATA_OFFSET)
+                throw new IOException("Not a bulk region: " + file);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            int capacity = buffer.getInt(CAPACITY_OFFSET);
+            if (buffer.getInt(MAGIC_OFFSET) != MAGIC || capacity <= 0 || DATA_OFFSET + (long) capacity > raf.length())
+                throw new IOException("Not a bulk region: " + file);
+            return new BulkRegion(file, raf, buffer, capacity);
+        }
+        catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the position at which a message of the given length is placed
+     * by the next write, or -1 if the free space does not suffice. Messages
+     * are never split at the end of the ring; the remainder is skipped
+     * instead. As the Receiver only frees space, the position stays valid
+     * until the next write.
+     */
+    synchronized long nextPosition(int length) {
+        if (length > capacity)
+            return -1;
+
+        long position = writePosition;
+        int start = (int) (position % capacity);
+        if (start + length > capacity)
+            position += capacity - start;
+
+        long consumed = buffer.getLong(CONSUMED_OFFSET);
+        if (position + length - consumed > capacity)
+            return -1;
+        return position;
+    }
+
+    /**
+     * Copies the data into the region at the position returned by
+     * nextPosition(length).
+     */
+    synchronized void write(long position, byte[] data, int offset, int length) {
+        ByteBuffer target = buffer.duplicate();
+        target.position(DATA_OFFSET + (int) (position % capacity));
+        target.put(data, offset, length);
+        writePosition = position + length;
+    }
+
+    /**
+     * Returns the position up to which messages have been written.
+     */
+    synchronized long getWritePosition() {
+        return writePosition;
+    }
+
+    /**
+     * Takes back the messages written from the given position on, as their
+     * descriptors will never reach the Receiver, which thus would never free
+     * their space.
+     */
+    synchronized void rewind(long position) {
+        if (position >= 0 && position < writePosition)
+            writePosition = position;
+    }
+
+    /**
+     * Returns a read-only view of the message at the given position.
+     */
+    ByteBuffer read(long position, int length) throws IOException {
+        if (position < 0 || length < 0 || (position % capacity) + length > capacity)
+            throw new IOException("Invalid bulk descriptor (position " + position + ", length " + length + ")");
+
+        int start = DATA_OFFSET + (int) (position % capacity);
+        ByteBuffer view = buffer.duplicate();
+        view.limit(start + length);
+        view.position(start);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Frees the region up to the given position for the Sender.
+     */
+    synchronized void release(long position) {
+        buffer.putLong(CONSUMED_OFFSET, position);
+    }
+
+    static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    static int checksum(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Unmaps the region as far as the runtime allows and closes the file.
+     * The file itself is not deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+}
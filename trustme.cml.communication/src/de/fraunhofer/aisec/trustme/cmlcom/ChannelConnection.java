@@ -0,0 +1,474 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A non-blocking channel served by a SelectorTransport. It has no input
+ * stream: the selector thread decodes the frames read from the channel and
+ * queues them for the attached Receiver, which gets them in order on the
+ * transport's delivery executor. Thus responses are completed and
+ * handleFrame runs off the selector thread, and a Receiver or a response
+ * listener that blocks only holds up its own connection. Once more than
+ * MAX_PENDING_DELIVERIES bytes await delivery, the channel is not read from
+ * until the Receiver has caught up. Its output stream writes right away as
+ * far as the socket allows and leaves the rest to the selector thread.
+ * Callers block while more than MAX_PENDING_WRITES bytes are outstanding,
+ * except for the transport's writer thread, which serves all connections:
+ * the Sender stops draining on it while the connection is congested, see
+ * Sender.Backpressure.
+ */
+final class ChannelConnection implements Connection, Sender.Backpressure {
+    private static final int MAX_PENDING_WRITES = 1024*1024;
+    private static final int MAX_PENDING_DELIVERIES = 4*1024*1024;
+    private static final int INITIAL_MESSAGE_BUFFER_SIZE = 4096;
+
+    private final SelectorTransport transport;
+    private final SocketChannel channel;
+    private final OutputStream outputStream = new ChannelOutputStream();
+
+    private volatile Sender sender;
+    private volatile Receiver receiver;
+
+    // accessed by the selector thread only
+    private SelectionKey key;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64*1024);
+    private byte[] messageBuffer = new byte[INITIAL_MESSAGE_BUFFER_SIZE];
+    private int messageLength;
+    private int frameHeader;
+    private int frameLength = -1;
+    private int frameReceived;
+
+    // guarded by pendingWrites
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<ByteBuffer>();
+    private int pendingWriteBytes;
+    private boolean closed;
+    // the Sender stopped draining as the connection is congested
+    private boolean drainHeld;
+
+    // guarded by deliveries
+    private final ArrayDeque<Delivery> deliveries = new ArrayDeque<Delivery>();
+    private int pendingDeliveryBytes;
+    private boolean deliveryScheduled;
+    private boolean readingPaused;
+    private boolean discardingDeliveries;
+
+    private final Runnable deliveryTask = new Runnable() {
+        @Override
+        public void run() {
+            drainDeliveries();
+        }
+    };
+
+    private final Runnable updateInterestTask = new Runnable() {
+        @Override
+        public void run() {
+            updateInterest();
+        }
+    };
+
+    /**
+     * A callback of the Receiver queued by the selector thread, accounting
+     * for the given number of bytes until it has run.
+     */
+    private abstract static class Delivery {
+        final int bytes;
+
+        Delivery(int bytes) {
+            this.bytes = bytes;
+        }
+
+        abstract void run();
+    }
+
+    ChannelConnection(SelectorTransport transport, SocketChannel channel) {
+        this.transport = transport;
+        this.channel = channel;
+    }
+
+    /**
+     * Connects the Sender and Receiver to this connection: received frames
+     * are passed to the Receiver and the Sender's enqueued messages are sent
+     * by the transport's writer thread.
+     */
+    void attach(Sender sender, Receiver receiver) {
+        this.sender = sender;
+        this.receiver = receiver;
+        sender.setDrainExecutor(transport.getWriter(), this);
+        transport.register(this);
+    }
+
+    /**
+     * Returns null, received frames are passed to the attached Receiver.
+     */
+    @Override
+    public InputStream getInputStream() {
+        return null;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Closes the channel. Frames read but not yet delivered are discarded,
+     * as the Receiver may already be attached to the successor.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (deliveries) {
+            discardingDeliveries = true;
+        }
+        closeChannel();
+    }
+
+    private void closeChannel() throws IOException {
+        synchronized (pendingWrites) {
+            closed = true;
+            pendingWrites.clear();
+            pendingWriteBytes = 0;
+            pendingWrites.notifyAll();
+        }
+        channel.close();
+    }
+
+    void register(Selector selector) {
+        try {
+            key = channel.register(selector, interestOps(), this);
+        }
+        catch (ClosedChannelException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Returns true while more than MAX_PENDING_WRITES bytes are outstanding,
+     * in which case the Sender is resumed once half of them are written.
+     */
+    @Override
+    public boolean isCongested() {
+        synchronized (pendingWrites) {
+            if (closed || pendingWriteBytes <= MAX_PENDING_WRITES)
+                return false;
+            drainHeld = true;
+            return true;
+        }
+    }
+
+    private boolean hasPendingWrites() {
+        synchronized (pendingWrites) {
+            return !pendingWrites.isEmpty();
+        }
+    }
+
+    private int interestOps() {
+        boolean paused;
+        synchronized (deliveries) {
+            paused = readingPaused;
+        }
+        return (paused ? 0 : SelectionKey.OP_READ) | (hasPendingWrites() ? SelectionKey.OP_WRITE : 0);
+    }
+
+    /**
+     * Updates the operations the selector waits for. Must be called on the
+     * selector thread.
+     */
+    private void updateInterest() {
+        if (key != null && key.isValid())
+            key.interestOps(interestOps());
+    }
+
+    /**
+     * Reads what is available and queues each complete frame for delivery.
+     */
+    void onReadable() {
+        try {
+            if (channel.read(readBuffer) < 0)
+                throw new EOFException("Connection closed by peer");
+            readBuffer.flip();
+            try {
+                while (decodeFrame())
+                    ;
+            }
+            finally {
+                readBuffer.compact();
+            }
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Consumes the read buffer up to the end of the current frame and returns
+     * true if the frame is complete.
+     */
+    private boolean decodeFrame() throws IOException {
+        if (frameLength < 0) {
+            if (readBuffer.remaining() < Framing.HEADER_SIZE)
+                return false;
+            frameHeader = readBuffer.getInt();
+            int flags = frameHeader & Framing.FLAGS_MASK;
+            if (flags != 0 && flags != Framing.FLAG_MORE && flags != Framing.FLAG_BULK && flags != Framing.FLAG_COMPRESSED)
+                throw new IOException("Received frame with unsupported flags 0x" + Integer.toHexString(frameHeader));
+            frameLength = frameHeader & Framing.LENGTH_MASK;
+            frameReceived = 0;
+
+            int maxMessageSize = receiver.getMaxMessageSize();
+            if ((long) messageLength + frameLength > maxMessageSize)
+                throw new IOException("Received message exceeding maximum message size (" + maxMessageSize + ")");
+            if (messageLength + frameLength > messageBuffer.length)
+                messageBuffer = Arrays.copyOf(messageBuffer,
+                        (int) Math.min(maxMessageSize, Math.max(messageLength + frameLength, 2L * messageBuffer.length)));
+        }
+
+        int n = Math.min(readBuffer.remaining(), frameLength - frameReceived);
+        readBuffer.get(messageBuffer, messageLength + frameReceived, n);
+        frameReceived += n;
+        if (frameReceived < frameLength)
+            return false;
+
+        messageLength += frameLength;
+        frameLength = -1;
+        final Receiver r = receiver;
+        if ((frameHeader & Framing.FLAG_MORE) != 0) {
+            final int received = messageLength;
+            deliver(new Delivery(0) {
+                @Override
+                void run() {
+                    r.onPartialMessage(received);
+                }
+            });
+            return true;
+        }
+
+        // the message buffer is reused for the next frame right away
+        final byte[] message = Arrays.copyOf(messageBuffer, messageLength);
+        final int flags = frameHeader & Framing.FLAGS_MASK;
+        deliver(new Delivery(message.length) {
+            @Override
+            void run() {
+                try {
+                    r.receiveFrame(message, message.length, flags);
+                }
+                catch (Exception e) {
+                    r.reportException(e);
+                }
+            }
+        });
+        messageLength = 0;
+        // do not hold on to the buffer of a single large message
+        if (messageBuffer.length > 1024*1024)
+            messageBuffer = new byte[INITIAL_MESSAGE_BUFFER_SIZE];
+        return true;
+    }
+
+    /**
+     * Queues a callback of the Receiver, to be run after all queued before,
+     * and stops reading if too much data awaits delivery. Must be called on
+     * the selector thread.
+     */
+    private void deliver(Delivery delivery) {
+        boolean schedule;
+        boolean pause = false;
+        synchronized (deliveries) {
+            deliveries.add(delivery);
+            pendingDeliveryBytes += delivery.bytes;
+            if (pendingDeliveryBytes > MAX_PENDING_DELIVERIES && !readingPaused) {
+                readingPaused = true;
+                pause = true;
+            }
+            schedule = !deliveryScheduled;
+            deliveryScheduled = true;
+        }
+        if (pause)
+            updateInterest();
+        if (!schedule)
+            return;
+        try {
+            transport.getDelivery().execute(deliveryTask);
+        }
+        catch (RejectedExecutionException e) {
+            // the transport has been shut down
+            synchronized (deliveries) {
+                deliveries.clear();
+                deliveryScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Runs the queued callbacks in order, on the delivery executor.
+     */
+    private void drainDeliveries() {
+        for (;;) {
+            Delivery delivery;
+            boolean discard;
+            synchronized (deliveries) {
+                delivery = deliveries.poll();
+                if (delivery == null) {
+                    deliveryScheduled = false;
+                    return;
+                }
+                discard = discardingDeliveries;
+            }
+            if (!discard)
+                delivery.run();
+
+            boolean resume = false;
+            synchronized (deliveries) {
+                pendingDeliveryBytes -= delivery.bytes;
+                if (readingPaused && pendingDeliveryBytes <= MAX_PENDING_DELIVERIES / 2) {
+                    readingPaused = false;
+                    resume = true;
+                }
+            }
+            if (resume)
+                transport.execute(updateInterestTask);
+        }
+    }
+
+    /**
+     * Writes pending data until the socket would block.
+     */
+    void onWritable() {
+        boolean resume = false;
+        try {
+            synchronized (pendingWrites) {
+                ByteBuffer data;
+                while ((data = pendingWrites.peek()) != null) {
+                    pendingWriteBytes -= channel.write(data);
+                    if (data.hasRemaining())
+                        break;
+                    pendingWrites.poll();
+                }
+                if (pendingWrites.isEmpty())
+                    updateInterest();
+                if (drainHeld && pendingWriteBytes <= MAX_PENDING_WRITES / 2) {
+                    drainHeld = false;
+                    resume = true;
+                }
+                pendingWrites.notifyAll();
+            }
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+        Sender s = sender;
+        if (resume && s != null)
+            s.resumeDrain();
+    }
+
+    /**
+     * Closes the connection and reports the failure to the Receiver as end
+     * of stream, after the frames received before, so the connection is
+     * re-established. Must be called on the selector thread.
+     */
+    private void fail(IOException e) {
+        boolean closedBefore;
+        synchronized (pendingWrites) {
+            closedBefore = closed;
+        }
+        try {
+            closeChannel();
+        }
+        catch (IOException ignored) {
+            // already failed
+        }
+        if (key != null)
+            key.cancel();
+
+        // a connection closed on purpose is not reported, the Receiver may
+        // already be attached to its successor
+        Receiver r = receiver;
+        if (r == null || closedBefore)
+            return;
+        if (!(e instanceof EOFException)) {
+            EOFException eof = new EOFException("Connection failed: " + e.getMessage());
+            eof.initCause(e);
+            e = eof;
+        }
+        final IOException failure = e;
+        deliver(new Delivery(0) {
+            @Override
+            void run() {
+                r.reportException(failure);
+            }
+        });
+    }
+
+    private class ChannelOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            ByteBuffer data = ByteBuffer.wrap(buffer, offset, length);
+            synchronized (pendingWrites) {
+                if (closed)
+                    throw new ConnectionLostException("Connection to cmld has been closed");
+                if (pendingWrites.isEmpty()) {
+                    channel.write(data);
+                    if (!data.hasRemaining())
+                        return;
+                }
+
+                // the caller reuses its buffer, keep a copy of the rest
+                ByteBuffer pending = ByteBuffer.allocate(data.remaining());
+                pending.put(data);
+                pending.flip();
+                pendingWrites.add(pending);
+                pendingWriteBytes += pending.remaining();
+                transport.execute(updateInterestTask);
+
+                // the writer thread is held back by isCongested() instead
+                while (pendingWriteBytes > MAX_PENDING_WRITES && !closed && !transport.isWriterThread()) {
+                    try {
+                        pendingWrites.wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while writing to cmld");
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of a control channel to cmld, recorded by a Sender, a Receiver and
+ * a Communicator sharing an instance. All recording methods are lock-free and
+ * cheap enough to stay enabled in production.
+ *
+ * @see Communicator#getMetrics
+ */
+public final class ChannelMetrics {
+    private static final String TAG = "ChannelMetrics";
+
+    private final ConcurrentHashMap<Integer, LatencyHistogram> commandLatencies =
+        new ConcurrentHashMap<Integer, LatencyHistogram>();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram encodeTime = new LatencyHistogram();
+    private final LatencyHistogram decodeTime = new LatencyHistogram();
+    private final LatencyHistogram writeLockWait = new LatencyHistogram();
+
+    private final AtomicLong queueDepth = new AtomicLong();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private final ConcurrentHashMap<String, AtomicLong> exceptions = new ConcurrentHashMap<String, AtomicLong>();
+
+    private ScheduledExecutorService dumpExecutor;
+
+    /**
+     * Records the time from sending a request with the given command until its response arrived.
+     */
+    public void recordLatency(int command, long nanos) {
+        LatencyHistogram histogram = commandLatencies.get(command);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = commandLatencies.putIfAbsent(command, created);
+            if (histogram == null)
+                histogram = created;
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Records the number of messages enqueued in a Sender, whenever a message
+     * has been enqueued or dequeued.
+     */
+    public void recordQueueDepth(int depth) {
+        queueDepth.set(depth);
+        long max;
+        while (depth > (max = maxQueueDepth.get())) {
+            if (maxQueueDepth.compareAndSet(max, depth))
+                break;
+        }
+    }
+
+    /**
+     * Records the time a message spent in a Sender's queue.
+     */
+    public void recordQueueWait(long nanos) {
+        queueWait.record(nanos);
+    }
+
+    public void recordEncode(long nanos) {
+        encodeTime.record(nanos);
+    }
+
+    public void recordDecode(long nanos) {
+        decodeTime.record(nanos);
+    }
+
+    /**
+     * Records the time a thread waited for a Sender's write lock held by
+     * another thread. Uncontended acquisitions are not recorded.
+     */
+    public void recordWriteLockWait(long nanos) {
+        writeLockWait.record(nanos);
+    }
+
+    public void recordSent(int frames, long bytes) {
+        framesSent.addAndGet(frames);
+        bytesSent.addAndGet(bytes);
+    }
+
+    public void recordReceived(int frames, long bytes) {
+        framesReceived.addAndGet(frames);
+        bytesReceived.addAndGet(bytes);
+    }
+
+    /**
+     * Counts an exception where it occurred. Failures of requests caused by
+     * it, e.g. a ConnectionLostException of each outstanding request after
+     * a failed read, are not counted again.
+     */
+    public void recordException(Throwable e) {
+        String type = e.getClass().getName();
+        AtomicLong counter = exceptions.get(type);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = exceptions.putIfAbsent(type, created);
+            if (counter == null)
+                counter = created;
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Returns a copy of the current metrics.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Periodically writes a snapshot of the metrics to logcat or, if file is
+     * not null, appends it to the given file. Replaces any previous dump.
+     */
+    public synchronized void startPeriodicDump(long periodMillis, final File file) {
+        stopPeriodicDump();
+        dumpExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cml-control-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        dumpExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                dump(file);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopPeriodicDump() {
+        if (dumpExecutor != null)
+            dumpExecutor.shutdownNow();
+        dumpExecutor = null;
+    }
+
+    private void dump(File file) {
+        String snapshot = snapshot().toString();
+        if (file == null) {
+            Log.i(TAG, snapshot);
+            return;
+        }
+
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file, true);
+            writer.write(System.currentTimeMillis() + "\n" + snapshot + "\n");
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Couldn't write metrics to " + file + ": " + e.getMessage());
+        }
+        finally {
+            try {
+                if (writer != null)
+                    writer.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    /**
+     * An immutable copy of the metrics at a point in time. Its maps are
+     * unmodifiable and its histograms read-only.
+     */
+    public static final class Snapshot {
+        private final Map<Integer, LatencyHistogram> commandLatencies;
+        private final LatencyHistogram queueWait;
+        private final LatencyHistogram encodeTime;
+        private final LatencyHistogram decodeTime;
+        private final LatencyHistogram writeLockWait;
+        private final long queueDepth;
+        private final long maxQueueDepth;
+        private final long framesSent;
+        private final long bytesSent;
+        private final long framesReceived;
+        private final long bytesReceived;
+        private final Map<String, Long> exceptions;
+
+        private Snapshot(ChannelMetrics metrics) {
+            Map<Integer, LatencyHistogram> latencies = new TreeMap<Integer, LatencyHistogram>();
+            for (Map.Entry<Integer, LatencyHistogram> entry : metrics.commandLatencies.entrySet())
+                latencies.put(entry.getKey(), entry.getValue().readOnlyCopy());
+            commandLatencies = Collections.unmodifiableMap(latencies);
+            queueWait = metrics.queueWait.readOnlyCopy();
+            encodeTime = metrics.encodeTime.readOnlyCopy();
+            decodeTime = metrics.decodeTime.readOnlyCopy();
+            writeLockWait = metrics.writeLockWait.readOnlyCopy();
+            queueDepth = metrics.queueDepth.get();
+            maxQueueDepth = metrics.maxQueueDepth.get();
+            framesSent = metrics.framesSent.get();
+            bytesSent = metrics.bytesSent.get();
+            framesReceived = metrics.framesReceived.get();
+            bytesReceived = metrics.bytesReceived.get();
+            Map<String, Long> counts = new TreeMap<String, Long>();
+            for (Map.Entry<String, AtomicLong> entry : metrics.exceptions.entrySet())
+                counts.put(entry.getKey(), entry.getValue().get());
+            exceptions = Collections.unmodifiableMap(counts);
+        }
+
+        /**
+         * Returns the request latency histograms keyed by ControllerToDaemon command.
+         */
+        public Map<Integer, LatencyHistogram> getCommandLatencies() {
+            return commandLatencies;
+        }
+
+        public LatencyHistogram getQueueWait() {
+            return queueWait;
+        }
+
+        public LatencyHistogram getEncodeTime() {
+            return encodeTime;
+        }
+
+        public LatencyHistogram getDecodeTime() {
+            return decodeTime;
+        }
+
+        /**
+         * Returns the waits for a contended write lock of the Sender.
+         */
+        public LatencyHistogram getWriteLockWait() {
+            return writeLockWait;
+        }
+
+        public long getQueueDepth() {
+            return queueDepth;
+        }
+
+        public long getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        public long getFramesSent() {
+            return framesSent;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getFramesReceived() {
+            return framesReceived;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        /**
+         * Returns the number of exceptions keyed by their class name.
+         */
+        public Map<String, Long> getExceptions() {
+            return exceptions;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("sent: ").append(framesSent).append(" frames, ").append(bytesSent).append(" bytes\n");
+            sb.append("received: ").append(framesReceived).append(" frames, ").append(bytesReceived).append(" bytes\n");
+            sb.append("queue: depth=").append(queueDepth).append(" max=").append(maxQueueDepth)
+                .append(" wait ").append(queueWait).append('\n');
+            sb.append("encode: ").append(encodeTime).append('\n');
+            sb.append("decode: ").append(decodeTime).append('\n');
+            sb.append("write lock wait: ").append(writeLockWait).append('\n');
+            for (Map.Entry<Integer, LatencyHistogram> entry : commandLatencies.entrySet())
+                sb.append("command ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            for (Map.Entry<String, Long> entry : exceptions.entrySet())
+                sb.append("exception ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            return sb.toString();
+        }
+    }
+}
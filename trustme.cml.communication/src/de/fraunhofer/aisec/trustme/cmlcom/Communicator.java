@@ -25,16 +25,14 @@ package de.fraunhofer.aisec.trustme.cmlcom;
 
 import android.content.Context;
 import android.content.res.AssetManager;
-import android.net.LocalSocket;
-import android.net.LocalSocketAddress;
 import android.util.Log;
 import android.graphics.Color;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.EOFException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -42,7 +40,21 @@ import java.io.StringWriter;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
+import com.google.protobuf.nano.InvalidProtocolBufferNanoException;
 import com.google.protobuf.nano.MessageNano;
 import de.fraunhofer.aisec.trustme.Control;
 import de.fraunhofer.aisec.trustme.Container;
@@ -52,51 +64,509 @@ import de.fraunhofer.aisec.trustme.Container.ContainerStatus;
 import de.fraunhofer.aisec.trustme.Container.ContainerConfig;
 
 public class Communicator {
-    private static final String SOCK_ADDR = "/dev/socket/cml-control";
+    /**
+     * Subscribes to messages regardless of their response type.
+     *
+     * @see subscribe
+     */
+    public static final int ANY_RESPONSE = Integer.MIN_VALUE;
+
     private static final String TAG = "Communicator";
 
-    private LocalSocket socket;
+    // maximum number of containers queried by a single request
+    private static final int MAX_UUIDS_PER_REQUEST = 16;
+
+    private final Connector connector;
+    private final Executor executor;
+    private Connection connection;
     private InputStream socketInputStream;
     private OutputStream socketOutputStream;
 
     private Sender sender;
     private CReceiver receiver;
 
+    private final ContainerStatusCache statusCache = new ContainerStatusCache(1000);
+    private final ContainerList containerList = new ContainerList();
+    private final MessageDispatcher dispatcher = new MessageDispatcher();
+    private final ChannelMetrics metrics = new ChannelMetrics();
+    // encoded, so that every caller gets a copy of its own
+    private final BoundedLruCache<String, byte[]> configCache =
+        new BoundedLruCache<String, byte[]>(64, 256*1024) {
+            @Override
+            protected int sizeOf(String uuid, byte[] config) {
+                return uuid.length() + config.length;
+            }
+        };
+
+    // guarded by this
+    private boolean threadsStarted;
+    private boolean connecting;
+    private Thread connectThread;
+    private boolean closed;
+    private CompletableFuture<Void> connectedFuture = new CompletableFuture<Void>();
+    private long connectTimeoutMillis = 5*1000;
+    private long requestTimeoutMillis;
+    private ScheduledThreadPoolExecutor timeoutScheduler;
+
+    /**
+     * Creates a Communicator and connects to cmld before returning. In case
+     * cmld is not available, the connection is established in the background.
+     */
     public Communicator() {
-        try {
-            socket = new LocalSocket(LocalSocket.SOCKET_STREAM);
-            Log.d(TAG, "Trying to connect to socket " + SOCK_ADDR);
-            socket.connect(new LocalSocketAddress(SOCK_ADDR, LocalSocketAddress.Namespace.FILESYSTEM));
-            Log.d(TAG, "Successfully connected to socket");
+        this(false);
+    }
 
-            // Set up input and output streams.
-            socketInputStream = socket.getInputStream();
-            socketOutputStream = socket.getOutputStream();
-        }
-        catch (IOException e) {
-            Log.d(TAG,"Couldn't connect to socket " + SOCK_ADDR);
-            e.printStackTrace();
-            cleanup();
-            return;
-        }
+    /**
+     * Creates a Communicator. If connectInBackground is true, the constructor
+     * returns immediately and the connection to cmld is established in the
+     * background. Requests issued before the connection is ready are held
+     * back until it is, synchronous ones for at most the connect timeout.
+     *
+     * @see whenConnected
+     * @see setConnectTimeout
+     */
+    public Communicator(boolean connectInBackground) {
+        this(new LocalSocketConnector(), connectInBackground);
+    }
+
+    /**
+     * Creates a Communicator which establishes its connections with the given
+     * connector instead of connecting to cmld's control socket, e.g. to talk
+     * to a cmld emulator.
+     *
+     * @see Communicator(boolean)
+     */
+    public Communicator(Connector connector, boolean connectInBackground) {
+        this(connector, connectInBackground, LoopExecutors.platformThreads());
+    }
+
+    /**
+     * Creates a Communicator which runs the Sender and Receiver loops and
+     * the task re-establishing the connection on the given executor, e.g.
+     * LoopExecutors.virtualThreads(). Each of these tasks runs until
+     * cleanup() is called or, for the reconnect task, until connected, so
+     * the executor must not make them wait for each other.
+     *
+     * @see LoopExecutors
+     */
+    public Communicator(Connector connector, boolean connectInBackground, Executor executor) {
+        this.connector = connector;
+        this.executor = executor;
 
-        // Start sender thread.
-        sender = new Sender(socketOutputStream) {
+        sender = new Sender(null) {
             @Override
             protected void exceptionHandler(Exception e) {
                 Log.e(TAG, "The Sender's run loop threw an exception: " + e.getMessage());
                 // We don't exit here and let the Sender proceed.
             }
+
+            @Override
+            protected Object getCoalescingKey(MessageNano message) {
+                return coalescingKey((ControllerToDaemon) message);
+            }
         };
-        new Thread(sender).start();
+        // A stalled cmld must not block the callers of switchTo and
+        // stopContainer, other messages wait for space in the queue.
+        sender.setOverflowPolicy(OverflowPolicy.COALESCE);
+        sender.setReplayAfterReconnect(true);
+        sender.setMetrics(metrics);
 
-        // Start receiver thread.
-        receiver = new CReceiver(socketInputStream);
-        new Thread(receiver).start();
+        receiver = new CReceiver(null, this);
+        receiver.setPooledBuffers(true);
+        receiver.setMetrics(metrics);
+
+        if (!connectInBackground) {
+            try {
+                connect();
+                attachStreams();
+                return;
+            }
+            catch (IOException e) {
+                Log.d(TAG,"Couldn't connect to socket " + connector);
+                e.printStackTrace();
+            }
+        }
+        startConnecting();
+    }
+
+    /**
+     * Returns a future which completes once the Communicator is connected to
+     * cmld. If it is currently connected, the future is already completed.
+     * The future completes exceptionally if the Communicator is cleaned up
+     * before a connection could be established.
+     */
+    public synchronized CompletableFuture<Void> whenConnected() {
+        return connectedFuture;
+    }
+
+    /**
+     * Returns true if the Communicator is currently connected to cmld.
+     */
+    public synchronized boolean isConnected() {
+        return !closed && connectedFuture.isDone() && !connectedFuture.isCompletedExceptionally();
+    }
+
+    /**
+     * Sets how long synchronous requests issued while not connected to cmld
+     * wait for the connection before failing with a ConnectionLostException.
+     */
+    public synchronized void setConnectTimeout(long millis) {
+        connectTimeoutMillis = millis;
+    }
+
+    private void connect() throws IOException {
+        Log.d(TAG, "Trying to connect to socket " + connector);
+        Connection newConnection = connector.connect();
+        Log.d(TAG, "Successfully connected to socket");
+
+        // Set up input and output streams.
+        socketInputStream = newConnection.getInputStream();
+        socketOutputStream = newConnection.getOutputStream();
+        synchronized (this) {
+            connection = newConnection;
+        }
+    }
+
+    /**
+     * Hands the streams of a freshly connected socket to the Sender and
+     * Receiver and reports the Communicator as connected.
+     */
+    private void attachStreams() {
+        CompletableFuture<Void> connected;
+        Connection attached;
+        synchronized (this) {
+            if (closed) {
+                closeSocket();
+                return;
+            }
+            connecting = false;
+            connected = connectedFuture;
+            attached = connection;
+        }
+        if (attached instanceof ChannelConnection) {
+            // served by the transport's threads
+            ((ChannelConnection) attached).attach(sender, receiver);
+        }
+        else {
+            startThreads();
+            receiver.setSocketInputStream(socketInputStream);
+        }
+        sender.setSocketOutputStream(socketOutputStream);
+        connected.complete(null);
+    }
+
+    /**
+     * Starts the Sender and Receiver threads serving stream connections.
+     */
+    private synchronized void startThreads() {
+        if (threadsStarted || closed)
+            return;
+        threadsStarted = true;
+        executor.execute(sender);
+        executor.execute(receiver);
+    }
+
+    /**
+     * Called by the Receiver's thread once cmld closed the connection, e.g.
+     * because it has been restarted. Outstanding requests fail with a
+     * ConnectionLostException, enqueued messages are kept and the connection
+     * is re-established in the background with jittered exponential backoff.
+     */
+    void handleConnectionLost() {
+        dropConnection("Lost connection to socket " + connector,
+                new ConnectionLostException("Lost connection to cmld"));
+    }
+
+    /**
+     * Called once a request has been abandoned while awaiting its response,
+     * e.g. because of its deadline. cmld may still answer it, so responses
+     * cannot be matched to requests by their order anymore: outstanding
+     * requests fail and the connection is re-established like after a loss.
+     */
+    void resetConnection(IOException reason) {
+        metrics.recordException(reason);
+        dropConnection("Resetting connection to socket " + connector + " after abandoned request: "
+                + reason.getMessage(),
+                new ConnectionLostException("Connection to cmld reset after abandoned request", reason));
+    }
+
+    private void dropConnection(String logMessage, ConnectionLostException failure) {
+        synchronized (this) {
+            if (connecting)
+                return;
+            if (connectedFuture.isDone() && !closed)
+                connectedFuture = new CompletableFuture<Void>();
+        }
+        Log.w(TAG, logMessage);
+
+        receiver.setSocketInputStream(null);
+        sender.setSocketOutputStream(null);
+        receiver.failPendingResponses(failure);
+        // cmld may have been restarted with different containers
+        statusCache.clear();
+        configCache.clear();
+        closeSocket();
+
+        startConnecting();
+    }
+
+    private void startConnecting() {
+        synchronized (this) {
+            if (connecting || closed)
+                return;
+            connecting = true;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Communicator.this) {
+                    connectThread = Thread.currentThread();
+                }
+                try {
+                    reconnect();
+                }
+                finally {
+                    synchronized (Communicator.this) {
+                        connectThread = null;
+                    }
+                    // do not leave the interrupt of cleanup() to the executor's next task
+                    Thread.interrupted();
+                }
+            }
+        });
+    }
+
+    private void reconnect() {
+        Backoff backoff = new Backoff(100, 30*1000);
+
+        for (;;) {
+            synchronized (this) {
+                if (closed)
+                    return;
+            }
+            try {
+                connect();
+                break;
+            }
+            catch (IOException e) {
+                Log.d(TAG, "Couldn't connect to socket " + connector + ": " + e.getMessage());
+            }
+            try {
+                Thread.sleep(backoff.nextDelay());
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+        attachStreams();
+    }
+
+    /**
+     * Waits for the connection to cmld, if necessary, for at most the
+     * connect timeout.
+     */
+    private void awaitConnection() throws IOException {
+        CompletableFuture<Void> connected;
+        long timeout;
+        synchronized (this) {
+            connected = connectedFuture;
+            timeout = connectTimeoutMillis;
+        }
+        try {
+            connected.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            throw new ConnectionLostException("Not connected to cmld");
+        }
+        catch (ExecutionException e) {
+            throw new ConnectionLostException("Not connected to cmld", e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for connection to cmld");
+        }
+    }
+
+    /**
+     * Sets the deadline for requests to cmld in milliseconds, 0 waits forever
+     * (the default), as requests like starting a container may wait for the
+     * user to unlock a smartcard or enter a password. Blocking calls fail
+     * with a ResponseTimeoutException and the futures of asynchronous calls
+     * complete exceptionally with it once the deadline has passed. For calls
+     * querying several containers, the deadline applies to the call as a
+     * whole. Individual calls can be given a deadline of their own by the
+     * variants taking a timeout, and asynchronous calls can be cancelled
+     * earlier by cancelling their future. A request whose deadline passed or
+     * whose future was cancelled resets the connection, failing all other
+     * outstanding requests with a ConnectionLostException, as a late response
+     * could otherwise be taken for the response to a later request.
+     */
+    public synchronized void setRequestTimeout(long millis) {
+        requestTimeoutMillis = millis;
+    }
+
+    /**
+     * Returns the deadline for requests to cmld in milliseconds.
+     */
+    public synchronized long getRequestTimeout() {
+        return requestTimeoutMillis;
+    }
+
+    /**
+     * Waits for a response until the given deadline in nanoseconds, counted
+     * from the System.nanoTime() at which the call started, has passed.
+     * A deadline of 0 waits forever.
+     */
+    private void awaitResponse(PendingResponse response, long startNanos, long timeoutNanos) throws IOException {
+        if (timeoutNanos <= 0) {
+            response.await(0, TimeUnit.NANOSECONDS);
+            return;
+        }
+        long remaining = timeoutNanos - (System.nanoTime() - startNanos);
+        response.await(Math.max(remaining, 1), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Waits for a response like awaitResponse and returns it decoded.
+     */
+    private DaemonToController awaitMessage(PendingResponse response, long startNanos, long timeoutNanos) throws IOException {
+        awaitResponse(response, startNanos, timeoutNanos);
+        return decode(response);
+    }
+
+    /**
+     * Returns the received response as decoded by the Receiver, decoding it
+     * only if the Receiver did not.
+     */
+    private static DaemonToController decode(PendingResponse response) throws IOException {
+        Object decoded = response.getDecoded();
+        if (decoded instanceof DaemonToController)
+            return (DaemonToController) decoded;
+        return DaemonToController.parseFrom(response.get());
+    }
+
+    private synchronized ScheduledThreadPoolExecutor getTimeoutScheduler() {
+        if (timeoutScheduler == null) {
+            timeoutScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "cml-control-timeouts");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            timeoutScheduler.setRemoveOnCancelPolicy(true);
+        }
+        return timeoutScheduler;
+    }
+
+    /**
+     * Sends a request once connected and returns the slot of its response.
+     */
+    private PendingResponse sendRequest(ControllerToDaemon msg) throws IOException {
+        awaitConnection();
+        return recordLatency(msg.command, sender.sendMessageWithResponse(msg, receiver));
+    }
+
+    private PendingResponse recordLatency(final int command, final PendingResponse response) {
+        response.addListener(new PendingResponse.DecodedListener() {
+            @Override
+            public void onResponse(byte[] encodedMessage) {
+                metrics.recordLatency(command, response.getLatencyNanos());
+            }
+
+            @Override
+            public void onFailure(IOException e) {
+                // counted where they occur: by the Sender, the Receiver or resetConnection
+            }
+        });
+        return response;
+    }
+
+    private synchronized void closeSocket() {
+        try {
+            if (connection != null)
+                connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        connection = null;
+    }
+
+    /**
+     * Called by the Receiver's thread for every message of cmld. Responses
+     * are cached by the requesting threads, which know whether the status
+     * may have changed since the request was sent.
+     */
+    void handleDaemonMessage(DaemonToController co_msg, boolean response) {
+        if (co_msg.containerStatus.length > 0) {
+            if (!response)
+                statusCache.update(co_msg.containerStatus);
+            if (containerList.update(co_msg.containerStatus))
+                dispatcher.dispatchContainerChanges(containerList);
+        }
+        dispatcher.dispatch(co_msg);
+    }
+
+    /**
+     * Replaces the cached status and the container list by a complete list
+     * received from cmld in response to a request sent at the given version
+     * of the status cache.
+     */
+    private void replaceContainers(ContainerStatus[] statuses, long version) {
+        statusCache.replaceAll(statuses, version);
+        if (containerList.replaceAll(statuses))
+            dispatcher.dispatchContainerChanges(containerList);
     }
 
     public void startContainer(String uuid, String key) throws IOException, PasswordException, LockedTillRebootException, SmartcardException {
+        startContainer(uuid, key, getRequestTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Like startContainer, but fails with a ResponseTimeoutException if cmld
+     * did not answer within the given time instead of the request timeout.
+     *
+     * @see setRequestTimeout
+     */
+    public void startContainer(String uuid, String key, long timeout, TimeUnit unit) throws IOException, PasswordException, LockedTillRebootException, SmartcardException {
         Log.d(TAG, "Entering startContainer");
+
+        invalidate(uuid, true);
+        DaemonToController co_msg = awaitMessage(sendRequest(newStartMessage(uuid, key)), System.nanoTime(), unit.toNanos(timeout));
+        invalidate(uuid, true);
+        checkStartResponse(co_msg);
+    }
+
+    /**
+     * Asynchronous variant of startContainer. The returned future completes
+     * exceptionally with a PasswordException, LockedTillRebootException or
+     * SmartcardException in case cmld refused to start the container.
+     */
+    public CompletableFuture<Void> startContainerAsync(String uuid, String key) {
+        return startContainerAsync(uuid, key, getRequestTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Like startContainerAsync, but with a deadline of its own instead of the
+     * request timeout.
+     */
+    public CompletableFuture<Void> startContainerAsync(String uuid, String key, long timeout, TimeUnit unit) {
+        Log.d(TAG, "Entering startContainerAsync");
+
+        final String startUuid = uuid;
+        invalidate(uuid, true);
+        return sendRequestAsync(newStartMessage(uuid, key), unit.toNanos(timeout), new ResponseParser<Void>() {
+            @Override
+            public Void parse(DaemonToController co_msg) throws Exception {
+                invalidate(startUuid, true);
+                checkStartResponse(co_msg);
+                return null;
+            }
+        });
+    }
+
+    private static ControllerToDaemon newStartMessage(String uuid, String key) {
         Control.ContainerStartParams startParams;
         ControllerToDaemon msg;
 
@@ -108,9 +578,10 @@ public class Communicator {
         msg.containerUuids = new String[1];
         msg.containerUuids[0] = uuid;
         msg.containerStartParams = startParams;
+        return msg;
+    }
 
-        DaemonToController co_msg = DaemonToController.parseFrom(sender.sendMessageSyncWithResponse(msg, receiver));
-
+    private static void checkStartResponse(DaemonToController co_msg) throws PasswordException, LockedTillRebootException, SmartcardException {
         if (co_msg.response == Control.DaemonToController.CONTAINER_START_PASSWD_WRONG) {
             throw new PasswordException("Wrong container password");
         }
@@ -132,10 +603,33 @@ public class Communicator {
         msg.containerUuids = new String[1];
         msg.containerUuids[0] = uuid;
 
-        sender.sendMessage(msg);
+        invalidate(uuid, true);
+        if (!enqueue(msg, invalidateWhenSent(uuid, true)))
+            throw new IOException("Outgoing message queue full, cmld is not responding");
+    }
+
+    /**
+     * Returns the key under which the Sender coalesces enqueued messages.
+     * Only the latest switch matters, so all switches share a key, whereas
+     * stops are coalesced per container.
+     */
+    static Object coalescingKey(ControllerToDaemon msg) {
+        if (msg.command == Control.ControllerToDaemon.CONTAINER_SWITCH)
+            return msg.command;
+        if (msg.command != Control.ControllerToDaemon.CONTAINER_STOP)
+            return null;
+        if (msg.containerUuids == null || msg.containerUuids.length != 1)
+            return null;
+        return msg.command + ":" + msg.containerUuids[0];
     }
 
-    public void switchTo(String uuid) {
+    /**
+     * Switches to the given container. The switch is enqueued without
+     * waiting, replacing a switch which has not been sent yet. Returns false
+     * if it has been dropped as the Sender's queue is full, e.g. since cmld
+     * is not responding.
+     */
+    public boolean switchTo(String uuid) {
         Log.d(TAG, "Entering switchTo");
         ControllerToDaemon msg;
 
@@ -144,67 +638,563 @@ public class Communicator {
         msg.containerUuids = new String[1];
         msg.containerUuids[0] = uuid;
 
-        sender.sendMessage(msg);
+        invalidate(uuid, false);
+        if (!enqueue(msg, invalidateWhenSent(uuid, false))) {
+            Log.e(TAG, "Outgoing message queue full, dropped switch to " + uuid);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Drops the cached status and, if config is true, the cached
+     * configuration of the given container.
+     */
+    private void invalidate(String uuid, boolean config) {
+        statusCache.invalidate(uuid);
+        if (config)
+            configCache.remove(uuid);
+    }
+
+    /**
+     * Returns a listener which invalidates the cached state of the given
+     * container once the command changing it has been written to cmld, as
+     * responses to requests sent in the meantime still carry the old state.
+     */
+    private TransferListener invalidateWhenSent(final String uuid, final boolean config) {
+        return new TransferListener() {
+            @Override
+            public void onProgress(long bytesSent, long totalBytes) {
+                if (bytesSent == totalBytes)
+                    invalidate(uuid, config);
+            }
+        };
+    }
+
+    /**
+     * Enqueues a message without waiting for space in the Sender's queue.
+     * Returns false if the message has been dropped.
+     */
+    private boolean enqueue(ControllerToDaemon msg, TransferListener listener) {
+        try {
+            return sender.trySendMessage(msg, listener, 0, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
     public int getContainerState(String uuid) throws IOException {
+        return getContainerState(uuid, getRequestTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Like getContainerState, but fails with a ResponseTimeoutException if
+     * cmld did not answer within the given time instead of the request timeout.
+     *
+     * @see setRequestTimeout
+     */
+    public int getContainerState(String uuid, long timeout, TimeUnit unit) throws IOException {
         Log.d(TAG,"Entering getContainerState");
+
+        ContainerStatus cached = statusCache.get(uuid);
+        if (cached != null)
+            return cached.state;
+
+        long version = statusCache.getVersion();
+        DaemonToController co_msg = awaitMessage(sendRequest(newStatusMessage(uuid)), System.nanoTime(), unit.toNanos(timeout));
+        statusCache.update(co_msg.containerStatus, version);
+
+        ContainerStatus status = co_msg.containerStatus[0];
+        return status.state;
+    }
+
+    /**
+     * Asynchronous variant of getContainerState.
+     */
+    public CompletableFuture<Integer> getContainerStateAsync(String uuid) {
+        return getContainerStateAsync(uuid, getRequestTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Like getContainerStateAsync, but with a deadline of its own instead of
+     * the request timeout.
+     */
+    public CompletableFuture<Integer> getContainerStateAsync(String uuid, long timeout, TimeUnit unit) {
+        Log.d(TAG,"Entering getContainerStateAsync");
+
+        ContainerStatus cached = statusCache.get(uuid);
+        if (cached != null)
+            return CompletableFuture.completedFuture(cached.state);
+
+        final long version = statusCache.getVersion();
+        return sendRequestAsync(newStatusMessage(uuid), unit.toNanos(timeout), new ResponseParser<Integer>() {
+            @Override
+            public Integer parse(DaemonToController co_msg) {
+                statusCache.update(co_msg.containerStatus, version);
+                return co_msg.containerStatus[0].state;
+            }
+        });
+    }
+
+    private static ControllerToDaemon newStatusMessage(String uuid) {
         ControllerToDaemon msg;
 
         msg = new ControllerToDaemon();
         msg.command = Control.ControllerToDaemon.GET_CONTAINER_STATUS;
         msg.containerUuids = new String[1];
         msg.containerUuids[0] = uuid;
+        return msg;
+    }
 
-        DaemonToController co_msg = DaemonToController.parseFrom(sender.sendMessageSyncWithResponse(msg, receiver));
+    /**
+     * Returns the states of the given containers. In contrast to calling
+     * getContainerState for each container, all requests are sent to cmld
+     * before the first response is awaited, so the round trips overlap.
+     */
+    public Map<String, Integer> getContainerStates(Collection<String> uuids) throws IOException {
+        return getContainerStates(uuids, getRequestTimeout(), TimeUnit.MILLISECONDS);
+    }
 
-        ContainerStatus status = co_msg.containerStatus[0];
-        return status.state;
+    /**
+     * Like getContainerStates, but with a deadline of its own for the call
+     * as a whole instead of the request timeout.
+     */
+    public Map<String, Integer> getContainerStates(Collection<String> uuids, long timeout, TimeUnit unit) throws IOException {
+        Log.d(TAG,"Entering getContainerStates");
+        long start = System.nanoTime();
+        long timeoutNanos = unit.toNanos(timeout);
+        Map<String, PendingResponse> responses = new LinkedHashMap<String, PendingResponse>();
+
+        Map<String, Integer> states = new LinkedHashMap<String, Integer>();
+        long version = statusCache.getVersion();
+
+        for (String uuid : uuids) {
+            ContainerStatus cached = statusCache.get(uuid);
+            if (cached != null)
+                states.put(uuid, cached.state);
+            else
+                responses.put(uuid, sendRequest(newStatusMessage(uuid)));
+        }
+
+        for (Map.Entry<String, PendingResponse> entry : responses.entrySet()) {
+            DaemonToController co_msg = awaitMessage(entry.getValue(), start, timeoutNanos);
+            statusCache.update(co_msg.containerStatus, version);
+            states.put(entry.getKey(), co_msg.containerStatus[0].state);
+        }
+        return states;
     }
 
     public ContainerConfig getContainerConfig(String uuid) throws IOException {
+        return getContainerConfig(uuid, getRequestTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Like getContainerConfig, but fails with a ResponseTimeoutException if
+     * cmld did not answer within the given time instead of the request timeout.
+     *
+     * @see setRequestTimeout
+     */
+    public ContainerConfig getContainerConfig(String uuid, long timeout, TimeUnit unit) throws IOException {
         Log.d(TAG,"Entering getContainerConfig");
+
+        ContainerConfig config = getCachedConfig(uuid);
+        if (config != null)
+            return config;
+
+        long version = configCache.getVersion();
+        DaemonToController co_msg = awaitMessage(sendRequest(newConfigMessage(uuid)), System.nanoTime(), unit.toNanos(timeout));
+
+        return cacheConfig(uuid, co_msg.containerConfigs[0], version);
+    }
+
+    /**
+     * Asynchronous variant of getContainerConfig.
+     */
+    public CompletableFuture<ContainerConfig> getContainerConfigAsync(String uuid) {
+        return getContainerConfigAsync(uuid, getRequestTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Like getContainerConfigAsync, but with a deadline of its own instead of
+     * the request timeout.
+     */
+    public CompletableFuture<ContainerConfig> getContainerConfigAsync(String uuid, long timeout, TimeUnit unit) {
+        Log.d(TAG,"Entering getContainerConfigAsync");
+
+        try {
+            ContainerConfig cached = getCachedConfig(uuid);
+            if (cached != null)
+                return CompletableFuture.completedFuture(cached);
+        }
+        catch (IOException e) {
+            CompletableFuture<ContainerConfig> failed = new CompletableFuture<ContainerConfig>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        final String configUuid = uuid;
+        final long version = configCache.getVersion();
+        return sendRequestAsync(newConfigMessage(uuid), unit.toNanos(timeout), new ResponseParser<ContainerConfig>() {
+            @Override
+            public ContainerConfig parse(DaemonToController co_msg) throws IOException {
+                return cacheConfig(configUuid, co_msg.containerConfigs[0], version);
+            }
+        });
+    }
+
+    /**
+     * Returns the configurations of the given containers. Configurations not
+     * cached are requested with as few requests as possible, each carrying
+     * up to 16 containers, and all requests are sent before the first
+     * response is awaited. Containers unknown to cmld are missing
+     * in the returned map.
+     */
+    public Map<String, ContainerConfig> getContainerConfigs(Collection<String> uuids) throws IOException {
+        return getContainerConfigs(uuids, getRequestTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Like getContainerConfigs, but with a deadline of its own for the call
+     * as a whole instead of the request timeout.
+     */
+    public Map<String, ContainerConfig> getContainerConfigs(Collection<String> uuids, long timeout, TimeUnit unit) throws IOException {
+        Log.d(TAG,"Entering getContainerConfigs");
+        long start = System.nanoTime();
+        long timeoutNanos = unit.toNanos(timeout);
+        Map<String, ContainerConfig> configs = new LinkedHashMap<String, ContainerConfig>();
+        List<String> missing = new ArrayList<String>();
+        long version = configCache.getVersion();
+
+        for (String uuid : uuids) {
+            ContainerConfig cached = getCachedConfig(uuid);
+            if (cached != null)
+                configs.put(uuid, cached);
+            else if (!missing.contains(uuid))
+                missing.add(uuid);
+        }
+
+        List<String[]> batches = new ArrayList<String[]>();
+        List<PendingResponse> responses = new ArrayList<PendingResponse>();
+        for (int i = 0; i < missing.size(); i += MAX_UUIDS_PER_REQUEST) {
+            List<String> batch = missing.subList(i, Math.min(i + MAX_UUIDS_PER_REQUEST, missing.size()));
+            ControllerToDaemon msg = new ControllerToDaemon();
+            msg.command = Control.ControllerToDaemon.GET_CONTAINER_CONFIG;
+            msg.containerUuids = batch.toArray(new String[batch.size()]);
+            batches.add(msg.containerUuids);
+            responses.add(sendRequest(msg));
+        }
+
+        for (int i = 0; i < batches.size(); ++i) {
+            String[] batch = batches.get(i);
+            DaemonToController co_msg = awaitMessage(responses.get(i), start, timeoutNanos);
+
+            // cmld answers with the configs in the order requested; if it
+            // skipped any, we cannot tell which, so ask for each one.
+            if (co_msg.containerConfigs.length == batch.length) {
+                for (int j = 0; j < batch.length; ++j)
+                    configs.put(batch[j], cacheConfig(batch[j], co_msg.containerConfigs[j], version));
+            }
+            else {
+                Log.w(TAG, "Got " + co_msg.containerConfigs.length + " configs for "
+                        + batch.length + " containers, requesting them one by one");
+                getContainerConfigsOneByOne(batch, configs, start, timeoutNanos, version);
+            }
+        }
+        return configs;
+    }
+
+    private void getContainerConfigsOneByOne(String[] uuids, Map<String, ContainerConfig> configs, long start, long timeoutNanos, long version) throws IOException {
+        PendingResponse[] responses = new PendingResponse[uuids.length];
+        for (int i = 0; i < uuids.length; ++i)
+            responses[i] = sendRequest(newConfigMessage(uuids[i]));
+
+        for (int i = 0; i < uuids.length; ++i) {
+            DaemonToController co_msg = awaitMessage(responses[i], start, timeoutNanos);
+            if (co_msg.containerConfigs.length == 0)
+                continue;
+            configs.put(uuids[i], cacheConfig(uuids[i], co_msg.containerConfigs[0], version));
+        }
+    }
+
+    /**
+     * Returns a copy of the cached configuration of the given container,
+     * or null if it is not cached.
+     */
+    private ContainerConfig getCachedConfig(String uuid) throws IOException {
+        byte[] encoded = configCache.get(uuid);
+        return encoded != null ? ContainerConfig.parseFrom(encoded) : null;
+    }
+
+    /**
+     * Caches a configuration received in response to a request sent at the
+     * given version of the cache, unless the container has been started or
+     * stopped since, and returns a copy owned by the caller, as the message
+     * it is part of is shared with the listeners of subscribe.
+     */
+    private ContainerConfig cacheConfig(String uuid, ContainerConfig config, long version) throws IOException {
+        byte[] encoded = MessageNano.toByteArray(config);
+        configCache.putIfUnchanged(uuid, encoded, version);
+        return ContainerConfig.parseFrom(encoded);
+    }
+
+    /**
+     * Sets led-color, encryption and phone capability of all given items from
+     * their container configurations, which are fetched in bulk.
+     *
+     * @see ContainerItem#populateFromConfigs
+     */
+    public void populateFromConfigs(List<ContainerItem> items) {
+        ContainerItem.populateFromConfigs(this, items);
+    }
+
+    private static ControllerToDaemon newConfigMessage(String uuid) {
         ControllerToDaemon msg;
 
         msg = new ControllerToDaemon();
         msg.command = Control.ControllerToDaemon.GET_CONTAINER_CONFIG;
         msg.containerUuids = new String[1];
         msg.containerUuids[0] = uuid;
-
-        DaemonToController co_msg = DaemonToController.parseFrom(sender.sendMessageSyncWithResponse(msg, receiver));
-
-        ContainerConfig config = co_msg.containerConfigs[0];
-        return config;
+        return msg;
     }
 
     public ArrayList<ContainerItem> getContainers() throws IOException {
+        return getContainers(getRequestTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Like getContainers, but fails with a ResponseTimeoutException if cmld
+     * did not answer within the given time instead of the request timeout.
+     *
+     * @see setRequestTimeout
+     */
+    public ArrayList<ContainerItem> getContainers(long timeout, TimeUnit unit) throws IOException {
         Log.d(TAG, "Entering getContainers");
-        ArrayList<ContainerItem> containers;
         ControllerToDaemon msg;
 
-        containers = new ArrayList<ContainerItem>();
+        List<ContainerStatus> cached = statusCache.getAll();
+        if (cached != null)
+            return containersFromStatus(cached);
 
         msg = new ControllerToDaemon();
         msg.command = Control.ControllerToDaemon.GET_CONTAINER_STATUS;
 
-        DaemonToController co_msg = DaemonToController.parseFrom(sender.sendMessageSyncWithResponse(msg, receiver));
+        long version = statusCache.getVersion();
+        DaemonToController co_msg = awaitMessage(sendRequest(msg), System.nanoTime(), unit.toNanos(timeout));
+        replaceContainers(co_msg.containerStatus, version);
+        return containersFromStatus(Arrays.asList(co_msg.containerStatus));
+    }
 
-        for (int i = 0; i < co_msg.containerStatus.length; ++i) {
-            ContainerStatus cStatus = co_msg.containerStatus[i];
+    /**
+     * Asynchronous variant of getContainers.
+     */
+    public CompletableFuture<List<ContainerItem>> getContainersAsync() {
+        return getContainersAsync(getRequestTimeout(), TimeUnit.MILLISECONDS);
+    }
 
-            //TODO hard coded stuff. reconsider. ignore a0.
-            if (cStatus.name.equals("a0"))
-                continue;
+    /**
+     * Like getContainersAsync, but with a deadline of its own instead of the
+     * request timeout.
+     */
+    public CompletableFuture<List<ContainerItem>> getContainersAsync(long timeout, TimeUnit unit) {
+        Log.d(TAG, "Entering getContainersAsync");
+        ControllerToDaemon msg;
 
-            ContainerItem contItem =
-                new ContainerItem(cStatus.uuid,
-                                    cStatus.name,
-                                    (cStatus.state != Container.STOPPED));
-            containers.add(contItem);
+        List<ContainerStatus> cached = statusCache.getAll();
+        if (cached != null)
+            return CompletableFuture.<List<ContainerItem>>completedFuture(containersFromStatus(cached));
+
+        msg = new ControllerToDaemon();
+        msg.command = Control.ControllerToDaemon.GET_CONTAINER_STATUS;
+
+        final long version = statusCache.getVersion();
+        return sendRequestAsync(msg, unit.toNanos(timeout), new ResponseParser<List<ContainerItem>>() {
+            @Override
+            public List<ContainerItem> parse(DaemonToController co_msg) {
+                replaceContainers(co_msg.containerStatus, version);
+                return containersFromStatus(Arrays.asList(co_msg.containerStatus));
+            }
+        });
+    }
+
+    /**
+     * Returns the changes of the container list since the given version, as
+     * returned by ContainerDelta.getVersion() of a previous call, or the
+     * complete list as a reset if version is 0 or the changes since are not
+     * known anymore. The list is refreshed from cmld if the cached container
+     * status is stale, so the changes are computed in O(changes) instead of
+     * rebuilding all items like getContainers.
+     *
+     * @see setStatusCacheMaxAge
+     */
+    public ContainerDelta getContainersSince(long version) throws IOException {
+        return getContainersSince(version, getRequestTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Like getContainersSince, but with a deadline of its own for refreshing
+     * the list instead of the request timeout.
+     */
+    public ContainerDelta getContainersSince(long version, long timeout, TimeUnit unit) throws IOException {
+        Log.d(TAG, "Entering getContainersSince");
+
+        if (statusCache.getAll() == null) {
+            ControllerToDaemon msg = new ControllerToDaemon();
+            msg.command = Control.ControllerToDaemon.GET_CONTAINER_STATUS;
+
+            long cacheVersion = statusCache.getVersion();
+            DaemonToController co_msg = awaitMessage(sendRequest(msg), System.nanoTime(), unit.toNanos(timeout));
+            replaceContainers(co_msg.containerStatus, cacheVersion);
+        }
+        return containerList.deltaSince(version);
+    }
+
+    /**
+     * Registers a listener for changes of the container list. The listener
+     * first receives the complete list as a reset delta and afterwards only
+     * the containers added, removed or changed, whenever a message of cmld
+     * carrying container status changes the list. Deliveries happen on the
+     * event executor like those of subscribe; if the listener falls behind,
+     * the pending changes are merged into one delta.
+     *
+     * @see setEventExecutor
+     */
+    public Subscription subscribeContainers(ContainerListListener listener) {
+        Subscription subscription = dispatcher.addContainerListener(listener);
+
+        if (statusCache.getAll() != null) {
+            dispatcher.dispatchContainerChanges(containerList);
+            return subscription;
+        }
+        getContainersAsync().whenComplete(new BiConsumer<List<ContainerItem>, Throwable>() {
+            @Override
+            public void accept(List<ContainerItem> result, Throwable failure) {
+                if (failure != null) {
+                    Log.w(TAG, "Failed to get the container list: " + failure);
+                    return;
+                }
+                // in case the list has not changed, the new listener still lacks it
+                dispatcher.dispatchContainerChanges(containerList);
+            }
+        });
+        return subscription;
+    }
+
+    private static ArrayList<ContainerItem> containersFromStatus(List<ContainerStatus> statuses) {
+        ArrayList<ContainerItem> containers = new ArrayList<ContainerItem>();
+
+        for (ContainerStatus cStatus : statuses) {
+            ContainerItem contItem = containerFromStatus(cStatus);
+            if (contItem != null)
+                containers.add(contItem);
         }
         return containers;
     }
 
+    /**
+     * Returns the item presenting the given container or null if the
+     * container is not to be presented.
+     */
+    static ContainerItem containerFromStatus(ContainerStatus cStatus) {
+        //TODO hard coded stuff. reconsider. ignore a0.
+        if (cStatus.name.equals("a0"))
+            return null;
+
+        return new ContainerItem(cStatus.uuid,
+                                 cStatus.name,
+                                 (cStatus.state != Container.STOPPED));
+    }
+
+    /**
+     * Converts a decoded response into the result of an asynchronous call.
+     */
+    private interface ResponseParser<T> {
+        T parse(DaemonToController co_msg) throws Exception;
+    }
+
+    /**
+     * Sends a request and returns a future which is completed from the
+     * Receiver's thread once the response arrives. Dependent stages which
+     * may block should therefore be attached with the *Async methods of
+     * CompletableFuture. If not connected to cmld, the request is sent
+     * once the connection has been established.
+     */
+    private <T> CompletableFuture<T> sendRequestAsync(final ControllerToDaemon msg, final long timeoutNanos, final ResponseParser<T> parser) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        if (isConnected()) {
+            sendRequestAsync(msg, timeoutNanos, parser, future);
+            return future;
+        }
+
+        whenConnected().whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable failure) {
+                if (failure != null)
+                    future.completeExceptionally(new ConnectionLostException("Not connected to cmld", failure));
+                else
+                    sendRequestAsync(msg, timeoutNanos, parser, future);
+            }
+        });
+        return future;
+    }
+
+    private <T> void sendRequestAsync(ControllerToDaemon msg, final long timeoutNanos, final ResponseParser<T> parser, final CompletableFuture<T> future) {
+        final PendingResponse response;
+
+        try {
+            response = recordLatency(msg.command, sender.sendMessageWithResponse(msg, receiver));
+        }
+        catch (IOException e) {
+            future.completeExceptionally(e);
+            return;
+        }
+
+        final ScheduledFuture<?> timer;
+        if (timeoutNanos > 0) {
+            timer = getTimeoutScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    response.cancel(new ResponseTimeoutException("No response within "
+                            + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms"));
+                }
+            }, timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        else {
+            timer = null;
+        }
+
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T result, Throwable failure) {
+                if (timer != null)
+                    timer.cancel(false);
+                // the response of a cancelled call may still arrive, which
+                // resets the connection, see CReceiver.onResponseAbandoned
+                if (future.isCancelled())
+                    response.cancel();
+            }
+        });
+
+        response.addListener(new PendingResponse.DecodedListener() {
+            @Override
+            public void onResponse(byte[] encodedMessage) {
+                try {
+                    future.complete(parser.parse(decode(response)));
+                }
+                catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onFailure(IOException e) {
+                future.completeExceptionally(e);
+            }
+        });
+    }
+
     /* Currently not used.
     public ArrayList<ContainerItem> getFakeContainers(){
         ArrayList<ContainerItem> containers = new ArrayList<ContainerItem>();
@@ -219,21 +1209,212 @@ public class Communicator {
     }
     */
 
+    /**
+     * Sets the maximum age of cached container status in milliseconds.
+     * getContainerState, getContainerStates and getContainers answer from the
+     * cache as long as the status is younger, otherwise they query cmld. The
+     * cache is refreshed from every message of cmld carrying container status
+     * and the status of a container is invalidated whenever it is started,
+     * stopped or switched to. A value of 0 disables the cache.
+     */
+    public void setStatusCacheMaxAge(long millis) {
+        statusCache.setMaxAge(millis);
+    }
+
+    /**
+     * Returns the maximum age of cached container status in milliseconds.
+     */
+    public long getStatusCacheMaxAge() {
+        return statusCache.getMaxAge();
+    }
+
+    /**
+     * Limits the cache of container configurations, which are cached until
+     * the respective container is started or stopped, to the given number of
+     * entries and (approximate) serialized size in bytes.
+     */
+    public void setConfigCacheLimits(int maxEntries, long maxBytes) {
+        configCache.setLimits(maxEntries, maxBytes);
+    }
+
+    /**
+     * Returns the hit, miss and eviction statistics of the configuration cache.
+     */
+    public CacheStats getConfigCacheStats() {
+        return configCache.getStats();
+    }
+
+    /**
+     * Drops all cached container configurations.
+     */
+    public void invalidateConfigCache() {
+        configCache.clear();
+    }
+
+    /**
+     * Returns the metrics of the connection to cmld: request latencies per
+     * command, queueing, traffic, encoding and decoding times and exceptions.
+     *
+     * @see ChannelMetrics#snapshot
+     * @see ChannelMetrics#startPeriodicDump
+     */
+    public ChannelMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers a listener for messages received from cmld, including
+     * unsolicited notifications and responses to requests. Only messages with
+     * the given response type (or any, if ANY_RESPONSE is given) which carry
+     * the status of the given container (or any message, if uuid is null) are
+     * delivered. Each message is decoded once and delivered through the event
+     * executor, so listeners do not block the reception of further messages.
+     *
+     * @see setEventExecutor
+     */
+    public Subscription subscribe(int response, String uuid, DaemonMessageListener listener) {
+        return dispatcher.add(response, uuid, listener);
+    }
+
+    /**
+     * Sets the executor listeners are invoked on. By default, a single
+     * background thread invokes the listeners in the order the messages have
+     * been received. With an executor running several threads in parallel,
+     * listeners may observe messages out of order.
+     */
+    public void setEventExecutor(Executor executor) {
+        dispatcher.setExecutor(executor);
+    }
+
+    /**
+     * Closes the connection to cmld and stops all threads of the Communicator:
+     * the Sender and Receiver loops and a pending reconnect return, pending
+     * requests fail. The Communicator cannot be used afterwards.
+     */
     public void cleanup() {
-        try {
-            if (socket != null)
-                socket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        CompletableFuture<Void> connected;
+        Thread reconnecting;
+        synchronized (this) {
+            closed = true;
+            connected = connectedFuture;
+            reconnecting = connectThread;
         }
+        if (reconnecting != null)
+            reconnecting.interrupt();
+        sender.stop();
+        receiver.stop();
+        connected.completeExceptionally(new ConnectionLostException("Communicator has been cleaned up"));
+        dispatcher.shutdown();
+        metrics.stopPeriodicDump();
+        synchronized (this) {
+            if (timeoutScheduler != null)
+                timeoutScheduler.shutdownNow();
+            timeoutScheduler = null;
+        }
+        // ends a read the Receiver is blocked in
+        closeSocket();
+        receiver.failPendingResponses(new ConnectionLostException("Communicator has been cleaned up"));
     }
 }
 
 class CReceiver extends Receiver {
     private static final String TAG = "Communicator";
 
-    public CReceiver(InputStream socketInputStream) {
+    private final Communicator communicator;
+
+    public CReceiver(InputStream socketInputStream, Communicator communicator) {
         super(socketInputStream);
+        this.communicator = communicator;
+    }
+
+    @Override
+    protected boolean isResponse(ReceivedFrame frame, PendingResponse oldest) {
+        ControllerToDaemon request = (ControllerToDaemon) oldest.getRequest();
+        if (request == null)
+            return true;
+        try {
+            return answers(request, decode(frame));
+        }
+        catch (IOException e) {
+            // a garbled response still answers the request, handleFrame reports it
+            return true;
+        }
+    }
+
+    /**
+     * Returns true if the given message of cmld is the response to the given
+     * request rather than an unsolicited notification. cmld pushes status
+     * changes as messages carrying container status, so those only answer a
+     * status request covering all of their containers, and only start requests
+     * are answered with one of the CONTAINER_START_* response types.
+     * A notification received while waiting for the status of all containers
+     * cannot be told apart from the response, as neither names containers.
+     */
+    static boolean answers(ControllerToDaemon request, DaemonToController co_msg) {
+        switch (request.command) {
+        case Control.ControllerToDaemon.LIST_CONTAINERS:
+        case Control.ControllerToDaemon.GET_CONTAINER_STATUS:
+            if (co_msg.containerConfigs.length > 0 || isStartResponse(co_msg))
+                return false;
+            if (request.containerUuids == null || request.containerUuids.length == 0)
+                return true;
+            List<String> uuids = Arrays.asList(request.containerUuids);
+            for (ContainerStatus status : co_msg.containerStatus) {
+                if (!uuids.contains(status.uuid))
+                    return false;
+            }
+            return true;
+        case Control.ControllerToDaemon.GET_CONTAINER_CONFIG:
+            return co_msg.containerStatus.length == 0 && !isStartResponse(co_msg);
+        case Control.ControllerToDaemon.CONTAINER_START:
+            return co_msg.containerStatus.length == 0 && co_msg.containerConfigs.length == 0;
+        default:
+            return true;
+        }
+    }
+
+    private static boolean isStartResponse(DaemonToController co_msg) {
+        switch (co_msg.response) {
+        case Control.DaemonToController.CONTAINER_START_PASSWD_WRONG:
+        case Control.DaemonToController.CONTAINER_START_LOCKED_TILL_REBOOT:
+        case Control.DaemonToController.CONTAINER_START_LOCK_FAILED:
+        case Control.DaemonToController.CONTAINER_START_UNLOCK_FAILED:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Decodes the frame, unless isResponse() already did.
+     */
+    private DaemonToController decode(ReceivedFrame frame) throws IOException {
+        DaemonToController co_msg = (DaemonToController) frame.getDecoded();
+        if (co_msg == null) {
+            long start = System.nanoTime();
+            co_msg = DaemonToController.parseFrom(frame.newCodedInput());
+            communicator.getMetrics().recordDecode(System.nanoTime() - start);
+            frame.setDecoded(co_msg);
+        }
+        return co_msg;
+    }
+
+    @Override
+    protected void handleFrame(ReceivedFrame frame) {
+        DaemonToController co_msg;
+        try {
+            co_msg = decode(frame);
+        }
+        catch (IOException e) {
+            // The frame has been read completely, so the stream is still at a
+            // frame boundary and only this message is lost. A requesting
+            // thread fails on it by itself.
+            Log.e(TAG, "Skipping malformed message from cmld: " + e);
+            return;
+        }
+        // Responses are processed by the requesting threads, we only keep
+        // track of container status, solicited or not, and notify listeners.
+        communicator.handleDaemonMessage(co_msg, frame.getResponse() != null);
     }
 
     @Override
@@ -241,14 +1422,22 @@ class CReceiver extends Receiver {
         // empty since we use non-async processing()
     }
 
+    @Override
+    protected void onResponseAbandoned(PendingResponse response, IOException reason) {
+        communicator.resetConnection(reason);
+    }
+
     @Override
     protected void exceptionHandler(Exception e) {
         StringWriter sw = new StringWriter();
         e.printStackTrace(new PrintWriter(sw));
         String exceptionAsString = sw.toString();
         Log.e(TAG, "The Receiver's run loop threw an exception: " + exceptionAsString);
-        // We don't exit here and let the Receiver proceed, except we got EOF.
-        if (e instanceof EOFException)
-            System.exit(-1);
+        // We don't exit here and let the Receiver proceed. After any failed
+        // read, the stream cannot be trusted to be at a frame boundary or to
+        // deliver the responses still awaited, so we reconnect. A message
+        // which does not decode leaves the framing intact.
+        if (e instanceof IOException && !(e instanceof InvalidProtocolBufferNanoException))
+            communicator.handleConnectionLost();
     }
 }
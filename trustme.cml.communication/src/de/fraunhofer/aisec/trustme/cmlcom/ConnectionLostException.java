@@ -0,0 +1,38 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the connection to cmld is lost while a request is outstanding
+ * or before it could be sent. The request may be retried once the connection
+ * has been re-established.
+ */
+public class ConnectionLostException extends IOException {
+    public ConnectionLostException() { super(); }
+    public ConnectionLostException(String message) { super(message); }
+    public ConnectionLostException(String message, Throwable cause) { super(message, cause); }
+    public ConnectionLostException(Throwable cause) { super(cause); }
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes of the container list between two versions: containers which
+ * have been added, removed or have changed their state or name. Pass
+ * getVersion() to the next call of Communicator.getContainersSince to obtain
+ * only the changes after this delta.
+ *
+ * If isReset() is true, the changes since the requested version are not
+ * known anymore and getAdded() returns the complete container list, which
+ * replaces the caller's list instead of being merged into it.
+ *
+ * @see Communicator#getContainersSince
+ * @see Communicator#subscribeContainers
+ */
+public final class ContainerDelta {
+    private final long fromVersion;
+    private final long version;
+    private final boolean reset;
+    private final List<ContainerItem> added;
+    private final List<ContainerItem> changed;
+    private final List<String> removed;
+
+    ContainerDelta(long fromVersion, long version, boolean reset,
+            List<ContainerItem> added, List<ContainerItem> changed, List<String> removed) {
+        this.fromVersion = fromVersion;
+        this.version = version;
+        this.reset = reset;
+        this.added = Collections.unmodifiableList(added);
+        this.changed = Collections.unmodifiableList(changed);
+        this.removed = Collections.unmodifiableList(removed);
+    }
+
+    /**
+     * Returns the version the changes have been requested since.
+     */
+    public long getFromVersion() {
+        return fromVersion;
+    }
+
+    /**
+     * Returns the version of the container list including these changes.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isReset() {
+        return reset;
+    }
+
+    public List<ContainerItem> getAdded() {
+        return added;
+    }
+
+    /**
+     * Returns the containers which have changed their state or name.
+     */
+    public List<ContainerItem> getChanged() {
+        return changed;
+    }
+
+    /**
+     * Returns the uuids of the removed containers.
+     */
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Returns true if there are no changes. An empty reset delta means that
+     * there are no containers at all.
+     */
+    public boolean isEmpty() {
+        return !reset && added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "ContainerDelta[" + fromVersion + ".." + version + (reset ? " reset" : "")
+            + " added=" + added.size() + " changed=" + changed.size() + " removed=" + removed.size() + "]";
+    }
+}
@@ -26,20 +26,30 @@ package de.fraunhofer.aisec.trustme.cmlcom;
 import java.io.Serializable;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import de.fraunhofer.aisec.trustme.Container.ContainerConfig;
 
+/**
+ * A container as presented to the user. The screenshot is not held by the
+ * item itself but by the process-wide ScreenshotCache, so items stay small
+ * when they are listed, copied or serialized, once the cache can store or
+ * load screenshots.
+ */
 public class ContainerItem implements Serializable {
     private String label;
     private String name;
     private String uuid;
     private int color;
-    private byte[] screenshot;
+    private ScreenshotHandle screenshot;
 
     private boolean phone_ability;
     private boolean internet_ability;
@@ -54,7 +64,7 @@ public class ContainerItem implements Serializable {
     public ContainerItem(String name, String color, byte[] screenshot, float partition_size, boolean encryption) {
         this.name = name;
         setColorFromString(color);
-        this.screenshot = screenshot;
+        setScreenshot(screenshot);
         this.partition_size = partition_size;
         this.encryption = encryption;
     }
@@ -75,18 +85,52 @@ public class ContainerItem implements Serializable {
     public void setItemFromConfig(Communicator communicator, Context context) {
 
         try {
-            ContainerConfig conf = communicator.getContainerConfig(uuid);
-            Log.d("ContainerItem","Got color: " + conf.color);
-            setColorFromConf(conf.color);
+            setItemFromConfig(communicator.getContainerConfig(uuid));
         } catch (IOException exp) {
-            // TODO replace this stub with real config data
-            if (this.name.equals("a1")) {
-                setColorFromString("red");
-                this.phone_ability = true;
-            } else if (this.name.equals("a2")) {
-                setColorFromString("blue");
-                this.phone_ability = false;
-            }
+            setItemFromStub();
+        }
+    }
+
+    // Same as setItemFromConfig for all items, but fetches the configs in bulk
+    public static void populateFromConfigs(Communicator communicator, List<ContainerItem> items) {
+        List<String> uuids = new ArrayList<String>(items.size());
+        for (ContainerItem item : items)
+            uuids.add(item.uuid);
+
+        Map<String, ContainerConfig> configs;
+        try {
+            configs = communicator.getContainerConfigs(uuids);
+        } catch (IOException exp) {
+            for (ContainerItem item : items)
+                item.setItemFromStub();
+            return;
+        }
+
+        for (ContainerItem item : items) {
+            ContainerConfig conf = configs.get(item.uuid);
+            if (conf != null)
+                item.setItemFromConfig(conf);
+            else
+                item.setItemFromStub();
+        }
+    }
+
+    void setItemFromConfig(ContainerConfig conf) {
+        Log.d("ContainerItem","Got color: " + conf.color);
+        setColorFromConf(conf.color);
+
+        this.phone_ability = true;
+        this.encryption = true;
+    }
+
+    private void setItemFromStub() {
+        // TODO replace this stub with real config data
+        if (this.name.equals("a1")) {
+            setColorFromString("red");
+            this.phone_ability = true;
+        } else if (this.name.equals("a2")) {
+            setColorFromString("blue");
+            this.phone_ability = false;
         }
 
         this.phone_ability = true;
@@ -101,14 +145,38 @@ public class ContainerItem implements Serializable {
         this.isRunning = isRunning;
     }
 
+    /**
+     * Returns the screenshot or null if there is none or it is neither in the
+     * ScreenshotCache nor can be loaded.
+     */
     public byte[] getScreenshot() {
-        return screenshot;
+        return screenshot != null ? screenshot.getBytes() : null;
     }
 
+    /**
+     * Sets the screenshot, which is put into the ScreenshotCache under the
+     * item's uuid, so the uuid should be set first.
+     */
     public void setScreenshot(byte[] screenshot) {
+        this.screenshot = screenshot != null ? ScreenshotCache.put(uuid, screenshot) : null;
+    }
+
+    public ScreenshotHandle getScreenshotHandle() {
+        return screenshot;
+    }
+
+    public void setScreenshotHandle(ScreenshotHandle screenshot) {
         this.screenshot = screenshot;
     }
 
+    /**
+     * Returns the screenshot downscaled to fit into the given size, or null
+     * if there is none or it cannot be loaded.
+     */
+    public Bitmap getScreenshotThumbnail(int maxWidth, int maxHeight) {
+        return screenshot != null ? screenshot.getThumbnail(maxWidth, maxHeight) : null;
+    }
+
     public boolean isNew_phone_notification() {
         return new_phone_notification;
     }
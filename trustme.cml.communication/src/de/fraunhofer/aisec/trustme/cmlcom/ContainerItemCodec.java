@@ -0,0 +1,387 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of ContainerItems and lists of them, as a faster
+ * and much smaller alternative to Java serialization for passing items
+ * between components. An item is encoded as
+ *
+ * <pre>
+ * version     1 byte
+ * flags       varint, bitfield of the FLAG_ constants
+ * color       4 bytes
+ * partition   4 bytes, float
+ * name        varint length + UTF-8, if FLAG_NAME
+ * uuid        varint length + UTF-8, if FLAG_UUID
+ * screenshot  varint length + data, if FLAG_SCREENSHOT
+ * reference   varint length + UTF-8 uuid, 32 bytes SHA-256 hash and varint
+ *             length of the screenshot, if FLAG_SCREENSHOT_REFERENCE
+ * </pre>
+ *
+ * and a list as a varint count followed by the items. Multi-byte values are
+ * big endian. The screenshot itself is only written on request. Otherwise,
+ * or if it cannot be loaded, the item's ScreenshotHandle is written, which
+ * the receiving side resolves through its ScreenshotCache: it only gets the
+ * screenshot if the cache holds it or can load it, see ScreenshotCache.
+ */
+public final class ContainerItemCodec {
+    static final int VERSION = 1;
+
+    static final int FLAG_RUNNING = 1;
+    static final int FLAG_PHONE_ABILITY = 1 << 1;
+    static final int FLAG_INTERNET_ABILITY = 1 << 2;
+    static final int FLAG_SCREENSHOT_ENABLED = 1 << 3;
+    static final int FLAG_ENCRYPTION = 1 << 4;
+    static final int FLAG_NEW_MAIL_NOTIFICATION = 1 << 5;
+    static final int FLAG_NEW_PHONE_NOTIFICATION = 1 << 6;
+    static final int FLAG_NAME = 1 << 7;
+    static final int FLAG_UUID = 1 << 8;
+    static final int FLAG_SCREENSHOT = 1 << 9;
+    static final int FLAG_SCREENSHOT_REFERENCE = 1 << 10;
+    private static final int FLAGS_KNOWN = (1 << 11) - 1;
+
+    private static final int HASH_SIZE = 32;
+
+    private ContainerItemCodec() {}
+
+    /**
+     * Returns the number of bytes encode() writes for the given item.
+     */
+    public static int encodedSize(ContainerItem item, boolean withScreenshot) {
+        return encodedSize(item, withScreenshot ? item.getScreenshot() : null);
+    }
+
+    private static int encodedSize(ContainerItem item, byte[] screenshot) {
+        int size = 1 + varintSize(flags(item, screenshot, item.getScreenshotHandle())) + 8;
+        if (item.getName() != null)
+            size += stringSize(item.getName());
+        if (item.getUuid() != null)
+            size += stringSize(item.getUuid());
+        ScreenshotHandle handle = item.getScreenshotHandle();
+        if (screenshot != null)
+            size += varintSize(screenshot.length) + screenshot.length;
+        else if (handle != null)
+            size += stringSize(handle.getUuid()) + HASH_SIZE + varintSize(handle.getLength());
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes encode() writes for the given list.
+     */
+    public static int encodedSize(List<ContainerItem> items, boolean withScreenshots) {
+        int size = varintSize(items.size());
+        for (ContainerItem item : items)
+            size += encodedSize(item, withScreenshots);
+        return size;
+    }
+
+    /**
+     * Writes the item to the buffer, including its screenshot if requested
+     * and it can be loaded, or else a reference to it.
+     *
+     * @throws java.nio.BufferOverflowException if the buffer has less than
+     *         encodedSize() bytes remaining
+     */
+    public static void encode(ContainerItem item, boolean withScreenshot, ByteBuffer out) {
+        encode(item, withScreenshot ? item.getScreenshot() : null, out);
+    }
+
+    private static void encode(ContainerItem item, byte[] screenshot, ByteBuffer out) {
+        ScreenshotHandle handle = item.getScreenshotHandle();
+        out.put((byte) VERSION);
+        writeVarint(out, flags(item, screenshot, handle));
+        out.putInt(item.getColor());
+        out.putFloat(item.getPartition_size());
+        if (item.getName() != null)
+            writeString(out, item.getName());
+        if (item.getUuid() != null)
+            writeString(out, item.getUuid());
+        if (screenshot != null) {
+            writeVarint(out, screenshot.length);
+            out.put(screenshot);
+        }
+        else if (handle != null) {
+            writeString(out, handle.getUuid());
+            writeHash(out, handle.getHash());
+            writeVarint(out, handle.getLength());
+        }
+    }
+
+    public static void encode(List<ContainerItem> items, boolean withScreenshots, ByteBuffer out) {
+        writeVarint(out, items.size());
+        for (ContainerItem item : items)
+            encode(item, withScreenshots, out);
+    }
+
+    // screenshots are looked up only once, so an eviction cannot change the size while encoding
+    public static byte[] toByteArray(ContainerItem item, boolean withScreenshot) {
+        byte[] screenshot = withScreenshot ? item.getScreenshot() : null;
+        ByteBuffer out = ByteBuffer.allocate(encodedSize(item, screenshot));
+        encode(item, screenshot, out);
+        return out.array();
+    }
+
+    public static byte[] toByteArray(List<ContainerItem> items, boolean withScreenshots) {
+        byte[][] screenshots = new byte[items.size()][];
+        int size = varintSize(items.size());
+        for (int i = 0; i < screenshots.length; ++i) {
+            ContainerItem item = items.get(i);
+            screenshots[i] = withScreenshots ? item.getScreenshot() : null;
+            size += encodedSize(item, screenshots[i]);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        writeVarint(out, items.size());
+        for (int i = 0; i < screenshots.length; ++i)
+            encode(items.get(i), screenshots[i], out);
+        return out.array();
+    }
+
+    /**
+     * Reads an item from the buffer. A contained screenshot is put into the
+     * ScreenshotCache, a reference becomes the item's ScreenshotHandle.
+     */
+    public static ContainerItem decode(ByteBuffer in) throws IOException {
+        try {
+            int version = in.get() & 0xff;
+            if (version != VERSION)
+                throw new IOException("Unsupported container item version " + version);
+            int flags = readVarint(in);
+            if ((flags & ~FLAGS_KNOWN) != 0)
+                throw new IOException("Unknown container item flags 0x" + Integer.toHexString(flags));
+            if ((flags & FLAG_SCREENSHOT) != 0 && (flags & FLAG_SCREENSHOT_REFERENCE) != 0)
+                throw new IOException("Container item with both screenshot and reference");
+
+            ContainerItem item = new ContainerItem();
+            item.setColor(in.getInt());
+            item.setPartition_size(in.getFloat());
+            if ((flags & FLAG_NAME) != 0)
+                item.setName(readString(in));
+            if ((flags & FLAG_UUID) != 0)
+                item.setUuid(readString(in));
+            if ((flags & FLAG_SCREENSHOT) != 0) {
+                byte[] screenshot = new byte[readLength(in)];
+                in.get(screenshot);
+                item.setScreenshot(screenshot);
+            }
+            if ((flags & FLAG_SCREENSHOT_REFERENCE) != 0) {
+                String uuid = readString(in);
+                String hash = readHash(in);
+                int length = readVarint(in);
+                if (length < 0)
+                    throw new IOException("Invalid screenshot length " + length + " in container item");
+                item.setScreenshotHandle(new ScreenshotHandle(uuid, hash, length));
+            }
+
+            item.setRunning((flags & FLAG_RUNNING) != 0);
+            item.setPhone_ability((flags & FLAG_PHONE_ABILITY) != 0);
+            item.setInternet_ability((flags & FLAG_INTERNET_ABILITY) != 0);
+            item.setScreenshot_enabled((flags & FLAG_SCREENSHOT_ENABLED) != 0);
+            item.setEncryption((flags & FLAG_ENCRYPTION) != 0);
+            item.setNew_mail_notification((flags & FLAG_NEW_MAIL_NOTIFICATION) != 0);
+            item.setNew_phone_notification((flags & FLAG_NEW_PHONE_NOTIFICATION) != 0);
+            return item;
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("Truncated container item", e);
+        }
+    }
+
+    public static List<ContainerItem> decodeList(ByteBuffer in) throws IOException {
+        int count;
+        try {
+            count = readLength(in);
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("Truncated container item list", e);
+        }
+        // each item takes at least 10 bytes, don't trust the count beyond that
+        List<ContainerItem> items = new ArrayList<ContainerItem>(Math.min(count, in.remaining() / 10));
+        for (int i = 0; i < count; ++i)
+            items.add(decode(in));
+        return items;
+    }
+
+    private static int flags(ContainerItem item, byte[] screenshot, ScreenshotHandle handle) {
+        int flags = 0;
+        if (item.isRunning())
+            flags |= FLAG_RUNNING;
+        if (item.isPhone_ability())
+            flags |= FLAG_PHONE_ABILITY;
+        if (item.isInternet_ability())
+            flags |= FLAG_INTERNET_ABILITY;
+        if (item.isScreenshot_enabled())
+            flags |= FLAG_SCREENSHOT_ENABLED;
+        if (item.isEncryption())
+            flags |= FLAG_ENCRYPTION;
+        if (item.isNew_mail_notification())
+            flags |= FLAG_NEW_MAIL_NOTIFICATION;
+        if (item.isNew_phone_notification())
+            flags |= FLAG_NEW_PHONE_NOTIFICATION;
+        if (item.getName() != null)
+            flags |= FLAG_NAME;
+        if (item.getUuid() != null)
+            flags |= FLAG_UUID;
+        if (screenshot != null)
+            flags |= FLAG_SCREENSHOT;
+        else if (handle != null)
+            flags |= FLAG_SCREENSHOT_REFERENCE;
+        return flags;
+    }
+
+    private static void writeHash(ByteBuffer out, String hash) {
+        for (int i = 0; i < HASH_SIZE; ++i)
+            out.put((byte) (Character.digit(hash.charAt(2*i), 16) << 4 | Character.digit(hash.charAt(2*i + 1), 16)));
+    }
+
+    private static String readHash(ByteBuffer in) {
+        StringBuilder s = new StringBuilder(2 * HASH_SIZE);
+        for (int i = 0; i < HASH_SIZE; ++i) {
+            byte b = in.get();
+            s.append(Character.forDigit((b >> 4) & 0xf, 16));
+            s.append(Character.forDigit(b & 0xf, 16));
+        }
+        return s.toString();
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            ++size;
+        }
+        return size;
+    }
+
+    private static void writeVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IOException("Malformed varint in container item");
+    }
+
+    private static int readLength(ByteBuffer in) throws IOException {
+        int length = readVarint(in);
+        if (length < 0 || length > in.remaining())
+            throw new IOException("Invalid length " + length + " in container item");
+        return length;
+    }
+
+    private static int stringSize(String s) {
+        int length = utf8Length(s);
+        return varintSize(length) + length;
+    }
+
+    /**
+     * Returns the length of the string in UTF-8, with unpaired surrogates
+     * replaced by '?' as String.getBytes() does.
+     */
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            }
+            else if (c < 0x800) {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                ++i;
+            }
+            else if (Character.isSurrogate(c)) {
+                length += 1;
+            }
+            else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void writeString(ByteBuffer out, String s) {
+        writeVarint(out, utf8Length(s));
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            }
+            else if (c < 0x800) {
+                out.put((byte) (0xc0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xf0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (codePoint & 0x3f)));
+            }
+            else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            }
+            else {
+                out.put((byte) (0xe0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = readLength(in);
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        }
+        else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+}
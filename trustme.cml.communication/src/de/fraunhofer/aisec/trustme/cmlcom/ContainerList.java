@@ -0,0 +1,214 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import de.fraunhofer.aisec.trustme.Container.ContainerStatus;
+
+/**
+ * The list of containers known from cmld, versioned so that the changes
+ * since any recent version can be determined in O(changes). Each addition,
+ * removal or change of the state or name of a container increments the
+ * version and moves the container to the end of an index ordered by the
+ * version of its last change. Removed containers are kept in the index as
+ * tombstones, of which only the most recent are retained; the changes since
+ * a version before the oldest dropped tombstone are delivered as a reset.
+ * A container removed and added again is reported as changed to a caller
+ * which already held it, so each entry keeps the versions at which it was
+ * added and removed, up to a limit beyond which older changes are not known
+ * anymore either.
+ */
+final class ContainerList {
+    private static final int MAX_TOMBSTONES = 256;
+    // an even number, so dropping the oldest add and removal keeps the parity
+    private static final int MAX_TOGGLES = 16;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    // entries by the version of their last change
+    private final TreeMap<Long, Entry> changes = new TreeMap<Long, Entry>();
+    private final ArrayDeque<Entry> tombstones = new ArrayDeque<Entry>();
+    private long version;
+    // the changes since versions before this one are not known anymore
+    private long horizon;
+
+    private static final class Entry {
+        final String uuid;
+        ContainerStatus status;
+        boolean removed;
+        long version;
+        // the versions at which the container was added and removed in turn
+        final ArrayDeque<Long> toggles = new ArrayDeque<Long>();
+
+        Entry(String uuid) {
+            this.uuid = uuid;
+        }
+
+        /**
+         * Returns true if the container was in the list at the given
+         * version, which must not be before the horizon.
+         */
+        boolean presentAt(long since) {
+            int count = 0;
+            for (long toggle : toggles) {
+                if (toggle > since)
+                    break;
+                ++count;
+            }
+            return count % 2 == 1;
+        }
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Updates the containers contained in statuses and returns true if this
+     * changed the list.
+     */
+    synchronized boolean update(ContainerStatus[] statuses) {
+        long oldVersion = version;
+        for (ContainerStatus status : statuses) {
+            Entry entry = entries.get(status.uuid);
+            boolean added = false;
+            if (entry == null) {
+                entry = new Entry(status.uuid);
+                entries.put(status.uuid, entry);
+                added = true;
+            }
+            else if (entry.removed) {
+                // a container added again is not a tombstone anymore
+                tombstones.remove(entry);
+                entry.removed = false;
+                added = true;
+            }
+            else if (entry.status.state == status.state && equals(entry.status.name, status.name)) {
+                entry.status = status;
+                continue;
+            }
+            entry.status = status;
+            changed(entry);
+            if (added)
+                toggled(entry);
+        }
+        return version != oldVersion;
+    }
+
+    /**
+     * Replaces the list by the given complete container list and returns true
+     * if this changed it.
+     */
+    synchronized boolean replaceAll(ContainerStatus[] statuses) {
+        long oldVersion = version;
+        update(statuses);
+
+        Set<String> uuids = new HashSet<String>();
+        for (ContainerStatus status : statuses)
+            uuids.add(status.uuid);
+        for (Entry entry : entries.values()) {
+            if (entry.removed || uuids.contains(entry.uuid))
+                continue;
+            entry.removed = true;
+            changed(entry);
+            toggled(entry);
+            tombstones.add(entry);
+        }
+        while (tombstones.size() > MAX_TOMBSTONES) {
+            Entry entry = tombstones.poll();
+            entries.remove(entry.uuid);
+            changes.remove(entry.version);
+            horizon = Math.max(horizon, entry.version);
+        }
+        return version != oldVersion;
+    }
+
+    /**
+     * Returns the changes since the given version, or the complete list as a
+     * reset if they are not known or since is 0.
+     */
+    synchronized ContainerDelta deltaSince(long since) {
+        List<ContainerItem> added = new ArrayList<ContainerItem>();
+        List<ContainerItem> changed = new ArrayList<ContainerItem>();
+        List<String> removed = new ArrayList<String>();
+
+        if (since <= 0 || since < horizon || since > version) {
+            for (Entry entry : changes.values())
+                addItem(added, entry);
+            return new ContainerDelta(since, version, true, added, changed, removed);
+        }
+
+        for (Entry entry : changes.tailMap(since, false).values()) {
+            if (entry.removed) {
+                // containers added and removed since are not reported at all
+                if (entry.presentAt(since) && Communicator.containerFromStatus(entry.status) != null)
+                    removed.add(entry.uuid);
+            }
+            else if (!entry.presentAt(since)) {
+                addItem(added, entry);
+            }
+            else {
+                addItem(changed, entry);
+            }
+        }
+        return new ContainerDelta(since, version, false, added, changed, removed);
+    }
+
+    private static void addItem(List<ContainerItem> items, Entry entry) {
+        if (entry.removed)
+            return;
+        ContainerItem item = Communicator.containerFromStatus(entry.status);
+        if (item != null)
+            items.add(item);
+    }
+
+    /**
+     * Records that the entry has been added or removed by its last change.
+     */
+    private void toggled(Entry entry) {
+        entry.toggles.add(entry.version);
+        while (entry.toggles.size() > MAX_TOGGLES) {
+            entry.toggles.poll();
+            horizon = Math.max(horizon, entry.toggles.poll());
+        }
+    }
+
+    private void changed(Entry entry) {
+        if (entry.version != 0)
+            changes.remove(entry.version);
+        entry.version = ++version;
+        changes.put(entry.version, entry);
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
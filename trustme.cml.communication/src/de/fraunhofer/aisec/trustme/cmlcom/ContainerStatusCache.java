@@ -0,0 +1,163 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.fraunhofer.aisec.trustme.Container.ContainerStatus;
+
+/**
+ * Caches the last known ContainerStatus of each container. Entries are
+ * refreshed from every message received from cmld which carries container
+ * status, including unsolicited ones, and are considered stale after a
+ * configurable maximum age. Responses to requests sent before the latest
+ * invalidation are not cached, as they may carry the state from before the
+ * command which caused it.
+ */
+final class ContainerStatusCache {
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    // time the entries have last been replaced by a complete container list
+    private long listTime;
+    private boolean listValid;
+    private long maxAgeMillis;
+    // incremented by every invalidation
+    private long version;
+
+    private static final class Entry {
+        final ContainerStatus status;
+        final long time;
+
+        Entry(ContainerStatus status, long time) {
+            this.status = status;
+            this.time = time;
+        }
+    }
+
+    ContainerStatusCache(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    synchronized void setMaxAge(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    synchronized long getMaxAge() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * Returns the cached status of the given container or null if there is
+     * no entry or it is stale.
+     */
+    synchronized ContainerStatus get(String uuid) {
+        Entry entry = entries.get(uuid);
+        if (entry == null || !isFresh(entry.time))
+            return null;
+        return entry.status;
+    }
+
+    /**
+     * Returns the cached status of all containers or null if the complete
+     * container list is not known or stale.
+     */
+    synchronized List<ContainerStatus> getAll() {
+        if (!listValid || !isFresh(listTime))
+            return null;
+
+        List<ContainerStatus> statuses = new ArrayList<ContainerStatus>(entries.size());
+        for (Entry entry : entries.values())
+            statuses.add(entry.status);
+        return statuses;
+    }
+
+    /**
+     * Returns the current version of the cache, to be passed to update()
+     * and replaceAll() with the response to a request sent afterwards.
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Updates the entries of the containers contained in statuses, which
+     * cmld sent on its own.
+     */
+    synchronized void update(ContainerStatus[] statuses) {
+        long now = SystemClock.elapsedRealtime();
+        for (ContainerStatus status : statuses)
+            entries.put(status.uuid, new Entry(status, now));
+    }
+
+    /**
+     * Updates the entries of the containers contained in statuses, which
+     * cmld sent in response to a request sent at the given version, unless
+     * the cache has been invalidated since. Returns true if updated.
+     */
+    synchronized boolean update(ContainerStatus[] statuses, long version) {
+        if (version != this.version)
+            return false;
+        update(statuses);
+        return true;
+    }
+
+    /**
+     * Replaces all entries by the given complete container list, which cmld
+     * sent in response to a request sent at the given version, unless the
+     * cache has been invalidated since. Returns true if replaced.
+     */
+    synchronized boolean replaceAll(ContainerStatus[] statuses, long version) {
+        if (version != this.version)
+            return false;
+        entries.clear();
+        update(statuses);
+        listTime = SystemClock.elapsedRealtime();
+        listValid = true;
+        return true;
+    }
+
+    /**
+     * Removes the entry of the given container, e.g. because a command
+     * changing its state has been sent or confirmed.
+     */
+    synchronized void invalidate(String uuid) {
+        ++version;
+        entries.remove(uuid);
+        listValid = false;
+    }
+
+    synchronized void clear() {
+        ++version;
+        entries.clear();
+        listValid = false;
+    }
+
+    private boolean isFresh(long time) {
+        return maxAgeMillis > 0 && SystemClock.elapsedRealtime() - time <= maxAgeMillis;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+/**
+ * Layout of the 32 bit big endian header preceding each frame on the socket.
+ * The lower 28 bits carry the length of the frame's payload, the upper 4 bits
+ * are reserved for flags. Frames sent by cmld never have any flag set.
+ */
+final class Framing {
+    static final int HEADER_SIZE = 4;
+
+    static final int LENGTH_MASK = 0x0fffffff;
+    static final int FLAGS_MASK = ~LENGTH_MASK;
+
+    /**
+     * The payload is a chunk of a larger message which is continued by the
+     * next frame. The last chunk of a message does not have this flag set.
+     */
+    static final int FLAG_MORE = 0x80000000;
+
+    /**
+     * The payload is a descriptor of a message placed in a BulkRegion: its
+     * position (8 bytes), length (4 bytes) and CRC32 checksum (4 bytes).
+     */
+    static final int FLAG_BULK = 0x40000000;
+    static final int BULK_DESCRIPTOR_SIZE = 16;
+
+    /**
+     * The payload is a message compressed with Deflate (zlib format),
+     * preceded by the length of the uncompressed message (4 bytes).
+     */
+    static final int FLAG_COMPRESSED = 0x20000000;
+    static final int COMPRESSED_PREFIX_SIZE = 4;
+
+    private Framing() {}
+
+    static void writeHeader(byte[] buffer, int offset, int length, int flags) {
+        writeInt(buffer, offset, (length & LENGTH_MASK) | flags);
+    }
+
+    static void writeBulkDescriptor(byte[] buffer, int offset, long position, int length, int checksum) {
+        writeInt(buffer, offset, (int) (position >>> 32));
+        writeInt(buffer, offset + 4, (int) position);
+        writeInt(buffer, offset + 8, length);
+        writeInt(buffer, offset + 12, checksum);
+    }
+
+    static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations. Durations are recorded in microseconds
+ * into buckets whose bounds are powers of two, so percentiles are accurate to
+ * a factor of two, which is enough to spot latency outliers cheaply.
+ */
+public final class LatencyHistogram {
+    private static final int BUCKETS = 40;
+
+    // bucket i counts durations d (in us) with 2^(i-1) <= d < 2^i, bucket 0 counts d = 0
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong sumMicros;
+    private final AtomicLong maxMicros;
+    private final boolean readOnly;
+
+    public LatencyHistogram() {
+        this(false);
+    }
+
+    private LatencyHistogram(boolean readOnly) {
+        buckets = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        sumMicros = new AtomicLong();
+        maxMicros = new AtomicLong();
+        this.readOnly = readOnly;
+    }
+
+    private LatencyHistogram(LatencyHistogram other, boolean readOnly) {
+        this(readOnly);
+        for (int i = 0; i < BUCKETS; ++i)
+            buckets.set(i, other.buckets.get(i));
+        count.set(other.count.get());
+        sumMicros.set(other.sumMicros.get());
+        maxMicros.set(other.maxMicros.get());
+    }
+
+    /**
+     * Records a duration given in nanoseconds.
+     *
+     * @throws UnsupportedOperationException if this is a read-only copy
+     */
+    public void record(long nanos) {
+        if (readOnly)
+            throw new UnsupportedOperationException("Read-only histogram");
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sumMicros.addAndGet(micros);
+
+        long max;
+        while (micros > (max = maxMicros.get())) {
+            if (maxMicros.compareAndSet(max, micros))
+                break;
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMeanMicros() {
+        long n = count.get();
+        return n == 0 ? 0 : sumMicros.get() / n;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * Returns an upper bound of the given percentile (0 < percentile <= 100)
+     * of the recorded durations in microseconds.
+     */
+    public long getPercentileMicros(double percentile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return Math.min(1L << i, getMaxMicros());
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * Returns a copy of this histogram, e.g. for a consistent snapshot.
+     */
+    public LatencyHistogram copy() {
+        return new LatencyHistogram(this, false);
+    }
+
+    /**
+     * Returns a copy of this histogram which cannot be recorded to.
+     */
+    LatencyHistogram readOnlyCopy() {
+        return new LatencyHistogram(this, true);
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount() + " mean=" + getMeanMicros() + "us p50=" + getPercentileMicros(50)
+            + "us p99=" + getPercentileMicros(99) + "us p999=" + getPercentileMicros(99.9)
+            + "us max=" + getMaxMicros() + "us";
+    }
+}
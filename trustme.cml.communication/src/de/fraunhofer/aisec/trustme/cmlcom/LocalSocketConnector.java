@@ -0,0 +1,86 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Connects to a local (Unix domain) socket in the filesystem namespace.
+ */
+public class LocalSocketConnector implements Connector {
+    /**
+     * The control socket of cmld.
+     */
+    public static final String CML_CONTROL = "/dev/socket/cml-control";
+
+    private final String path;
+
+    public LocalSocketConnector() {
+        this(CML_CONTROL);
+    }
+
+    public LocalSocketConnector(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public Connection connect() throws IOException {
+        final LocalSocket socket = new LocalSocket(LocalSocket.SOCKET_STREAM);
+        try {
+            socket.connect(new LocalSocketAddress(path, LocalSocketAddress.Namespace.FILESYSTEM));
+            final InputStream in = socket.getInputStream();
+            final OutputStream out = socket.getOutputStream();
+            return new Connection() {
+                @Override
+                public InputStream getInputStream() {
+                    return in;
+                }
+
+                @Override
+                public OutputStream getOutputStream() {
+                    return out;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    socket.close();
+                }
+            };
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
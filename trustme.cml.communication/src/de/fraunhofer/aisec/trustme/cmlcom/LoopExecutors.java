@@ -0,0 +1,103 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for the Sender and Receiver loops and the reconnect task of a
+ * Communicator. These tasks run for a long time, so an executor must run
+ * each task on its own thread rather than queue it behind others.
+ *
+ * @see Communicator#Communicator(Connector, boolean, Executor)
+ */
+public final class LoopExecutors {
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+
+    private LoopExecutors() {}
+
+    /**
+     * Returns an executor which runs each task on a new thread created by
+     * the given factory.
+     */
+    public static Executor threadPerTask(final ThreadFactory factory) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                factory.newThread(task).start();
+            }
+        };
+    }
+
+    /**
+     * Returns an executor which runs each task on a new platform thread.
+     * This is what a Communicator uses unless given another executor.
+     */
+    public static Executor platformThreads() {
+        return threadPerTask(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "cml-control-" + threadNumber.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Returns an executor which runs each task on a new virtual thread if the
+     * JVM supports them (Java 21 and later), or on a new platform thread
+     * otherwise. Note that a virtual thread waiting for the Sender's or
+     * Receiver's monitor while disconnected occupies its carrier thread on
+     * JVMs before Java 24.
+     *
+     * @see isVirtualThreadSupported
+     */
+    public static Executor virtualThreads() {
+        ThreadFactory factory = newVirtualThreadFactory();
+        return factory != null ? threadPerTask(factory) : platformThreads();
+    }
+
+    /**
+     * Returns true if the JVM supports virtual threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return newVirtualThreadFactory() != null;
+    }
+
+    // Thread.ofVirtual().name("cml-control-virtual-", 0).factory(), if available
+    private static ThreadFactory newVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, "cml-control-virtual-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import de.fraunhofer.aisec.trustme.Container.ContainerStatus;
+import de.fraunhofer.aisec.trustme.Control.DaemonToController;
+
+/**
+ * Delivers messages received from cmld to the subscribed listeners. Messages
+ * are handed to an executor, so slow listeners do not stall the Receiver.
+ */
+final class MessageDispatcher {
+    private static final String TAG = "MessageDispatcher";
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    private final CopyOnWriteArrayList<Subscription> containerSubscriptions = new CopyOnWriteArrayList<Subscription>();
+    private volatile Executor executor;
+    // guarded by this
+    private ExecutorService defaultExecutor;
+    private boolean shutdown;
+
+    Subscription add(int response, String uuid, DaemonMessageListener listener) {
+        Subscription subscription = new Subscription(this, response, uuid, listener);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    Subscription addContainerListener(ContainerListListener listener) {
+        Subscription subscription = new Subscription(this, listener);
+        containerSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    void remove(Subscription subscription) {
+        subscriptions.remove(subscription);
+        containerSubscriptions.remove(subscription);
+    }
+
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Hands the message to the executor once for each matching subscription.
+     * Must only be called from the Receiver's thread.
+     */
+    void dispatch(final DaemonToController message) {
+        if (subscriptions.isEmpty())
+            return;
+
+        for (final Subscription subscription : subscriptions) {
+            if (!matches(subscription, message))
+                continue;
+
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        subscription.listener.onMessage(message);
+                    }
+                    catch (RuntimeException e) {
+                        Log.e(TAG, "Listener threw an exception", e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Hands the changes of the container list to the executor for each
+     * container list listener. Each listener receives the changes since the
+     * version last delivered to it, so deliveries queued while the listener
+     * is busy are coalesced into one.
+     */
+    void dispatchContainerChanges(final ContainerList containers) {
+        for (final Subscription subscription : containerSubscriptions) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (subscription) {
+                        // an empty list has version 0, for which deltaSince
+                        // returns a reset, even if delivered already
+                        if (subscription.containerVersion == containers.getVersion())
+                            return;
+                        ContainerDelta delta = containers.deltaSince(Math.max(subscription.containerVersion, 0));
+                        if (delta.isEmpty())
+                            return;
+                        subscription.containerVersion = delta.getVersion();
+                        try {
+                            subscription.containerListener.onContainersChanged(delta);
+                        }
+                        catch (RuntimeException e) {
+                            Log.e(TAG, "Listener threw an exception", e);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops delivering messages. Deliveries already handed to the executor
+     * still run, later dispatches are dropped.
+     */
+    synchronized void shutdown() {
+        shutdown = true;
+        if (defaultExecutor != null)
+            defaultExecutor.shutdown();
+        defaultExecutor = null;
+    }
+
+    private void execute(Runnable delivery) {
+        Executor e = getExecutor();
+        if (e == null)
+            return;
+        try {
+            e.execute(delivery);
+        }
+        catch (RejectedExecutionException ex) {
+            Log.w(TAG, "Dropped delivery, executor has been shut down");
+        }
+    }
+
+    /**
+     * Returns the executor to deliver on or null once shut down.
+     */
+    private synchronized Executor getExecutor() {
+        if (shutdown)
+            return null;
+        if (executor != null)
+            return executor;
+        // a single thread delivers messages in the order received
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "cml-control-events");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+
+    private static boolean matches(Subscription subscription, DaemonToController message) {
+        if (subscription.response != Communicator.ANY_RESPONSE && subscription.response != message.response)
+            return false;
+        if (subscription.uuid == null)
+            return true;
+        for (ContainerStatus status : message.containerStatus) {
+            if (subscription.uuid.equals(status.uuid))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+/**
+ * Determines what a Sender does with a message that is enqueued while its
+ * outgoing message queue is full.
+ *
+ * @see Sender#setOverflowPolicy
+ */
+public enum OverflowPolicy {
+    /**
+     * Wait until there is space in the queue (the default).
+     */
+    BLOCK,
+
+    /**
+     * Drop the new message.
+     */
+    REJECT,
+
+    /**
+     * Drop the oldest enqueued message in favor of the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Replace an enqueued message with the same coalescing key by the new
+     * one, also if the queue is not full. The new message takes over the
+     * position of the replaced one, so it is not sent after messages enqueued
+     * in between. If the queue is full and there is no such message, the new
+     * message is dropped. Messages without a coalescing key are not dropped
+     * but wait for space as with BLOCK, unless sent with a timeout.
+     *
+     * @see Sender#getCoalescingKey
+     */
+    COALESCE
+}
@@ -0,0 +1,296 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.nano.MessageNano;
+
+/**
+ * A response slot for a request that has been sent to cmld. Slots are handed
+ * out by Receiver.expectResponse() in the order the requests are written to
+ * the socket and are completed by the Receiver in the order the responses
+ * arrive, which allows several requests to be in flight at the same time.
+ * Once a caller gives up waiting, there is no telling whether cmld will
+ * still answer, so the Receiver can no longer match later responses by their
+ * order: cancelling a slot still in the queue makes the Receiver abandon
+ * all outstanding slots, see Receiver.onResponseAbandoned.
+ *
+ * @see Sender#sendMessageWithResponse
+ */
+public class PendingResponse {
+    private final Receiver receiver;
+    private final Object request;
+    private byte[] message;
+    private Object decoded;
+    private IOException failure;
+    private boolean done;
+    private List<Listener> listeners;
+    private final long createdNanos = System.nanoTime();
+    private long completedNanos;
+
+    /**
+     * Listener notified once the response has been received or the request
+     * failed. Listeners are invoked on the thread completing the response,
+     * usually the Receiver's thread, and hence must not block.
+     */
+    public interface Listener {
+        void onResponse(byte[] encodedMessage);
+        void onFailure(IOException e);
+    }
+
+    /**
+     * Listener taking the response from getDecoded() whenever the Receiver
+     * decoded it, in which case onResponse() is passed null instead of an
+     * encoded response created just for the listener.
+     */
+    interface DecodedListener extends Listener {
+    }
+
+    PendingResponse(Receiver receiver, Object request) {
+        this.receiver = receiver;
+        this.request = request;
+    }
+
+    /**
+     * Returns the request the response is awaited for, or null if it has not
+     * been recorded.
+     *
+     * @see Receiver#expectResponse(Object)
+     */
+    public Object getRequest() {
+        return request;
+    }
+
+    /**
+     * Returns the encoded response. In case the response has not yet been
+     * received, this method blocks until it arrives. If the calling thread is
+     * interrupted while waiting, the request is cancelled.
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     * @throws IOException if the request failed before a response arrived
+     */
+    public byte[] get() throws IOException {
+        return get(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the encoded response, waiting at most the given time for it.
+     * A timeout of 0 waits forever. If the response does not arrive in time
+     * or the calling thread is interrupted while waiting, the request is
+     * cancelled, see cancel().
+     *
+     * @throws ResponseTimeoutException if the response did not arrive in time
+     * @throws InterruptedIOException if interrupted while waiting
+     * @throws IOException if the request failed before a response arrived
+     */
+    public byte[] get(long timeout, TimeUnit unit) throws IOException {
+        await(timeout, unit);
+        return getEncoded();
+    }
+
+    /**
+     * Waits like get(long, TimeUnit), but does not return the response, so
+     * a response which has only been decoded is not encoded again.
+     */
+    void await(long timeout, TimeUnit unit) throws IOException {
+        long timeoutNanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + timeoutNanos;
+        boolean interrupted = false;
+
+        synchronized (this) {
+            try {
+                while (!done) {
+                    if (timeoutNanos <= 0) {
+                        wait();
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        break;
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+            if (done && !interrupted) {
+                checkFailure();
+                return;
+            }
+        }
+
+        IOException reason;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            reason = new InterruptedIOException("Interrupted while waiting for response");
+        }
+        else {
+            reason = new ResponseTimeoutException("No response within " + unit.toMillis(timeout) + " ms");
+        }
+
+        // the response may have arrived in the meantime
+        if (!cancel(reason)) {
+            checkFailure();
+            return;
+        }
+        throw reason;
+    }
+
+    /**
+     * Returns the response as decoded by the Receiver while matching it to
+     * the request, or null if it has not been decoded or not yet received.
+     * Callers can use this instead of decoding the encoded response again.
+     *
+     * @see ReceivedFrame#getDecoded
+     */
+    public synchronized Object getDecoded() {
+        return decoded;
+    }
+
+    private synchronized void checkFailure() throws IOException {
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Returns the encoded response, encoding the decoded one if the Receiver
+     * passed no copy of the frame, see Receiver.completeResponse.
+     */
+    private synchronized byte[] getEncoded() {
+        if (message == null && decoded instanceof MessageNano)
+            message = MessageNano.toByteArray((MessageNano) decoded);
+        return message;
+    }
+
+    /**
+     * Cancels the request, i.e. waiting callers fail with an IOException.
+     * As the response may still arrive and would then be matched to a later
+     * request, the Receiver fails all other outstanding requests as well and
+     * the connection is expected to be re-established. Returns false if the
+     * response has already been received or the request already failed.
+     *
+     * @see Receiver#onResponseAbandoned
+     */
+    public boolean cancel() {
+        return cancel(new IOException("Request cancelled"));
+    }
+
+    boolean cancel(IOException reason) {
+        synchronized (this) {
+            if (done)
+                return false;
+        }
+        fail(reason);
+        if (!isCancelledBy(reason))
+            return false;
+        if (receiver != null)
+            receiver.abandonResponse(this, reason);
+        return true;
+    }
+
+    private synchronized boolean isCancelledBy(IOException reason) {
+        return failure == reason;
+    }
+
+    /**
+     * Returns true if the response has been received or the request failed.
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns the time from sending the request until its response arrived
+     * in nanoseconds, or -1 if no response has been received.
+     */
+    public synchronized long getLatencyNanos() {
+        return done && failure == null ? completedNanos - createdNanos : -1;
+    }
+
+    /**
+     * Registers a listener for the response. In case the response has already
+     * been received, the listener is invoked immediately on the calling thread.
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null)
+                    listeners = new ArrayList<Listener>(1);
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    void complete(byte[] message, Object decoded) {
+        synchronized (this) {
+            if (done)
+                return;
+            this.message = message;
+            this.decoded = decoded;
+            completedNanos = System.nanoTime();
+            done = true;
+            notifyAll();
+        }
+        notifyListeners();
+    }
+
+    void fail(IOException failure) {
+        synchronized (this) {
+            if (done)
+                return;
+            this.failure = failure;
+            done = true;
+            notifyAll();
+        }
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        List<Listener> toNotify;
+        synchronized (this) {
+            toNotify = listeners;
+            listeners = null;
+        }
+        if (toNotify == null)
+            return;
+        for (Listener listener : toNotify)
+            notifyListener(listener);
+    }
+
+    private void notifyListener(Listener listener) {
+        if (failure != null)
+            listener.onFailure(failure);
+        else if (listener instanceof DecodedListener)
+            listener.onResponse(message);
+        else
+            listener.onResponse(getEncoded());
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.google.protobuf.nano.CodedInputByteBufferNano;
+
+/**
+ * A single message received by a Receiver. A frame is only valid during the
+ * invocation of Receiver.handleFrame it has been passed to: the Receiver
+ * reuses the frame object as well as its backing array for subsequent
+ * messages. Callers that need to keep the message beyond that must copy it
+ * via toByteArray(). Messages received through a BulkRegion are backed by
+ * shared memory, which asByteBuffer() returns without copying.
+ */
+public final class ReceivedFrame {
+    private byte[] buffer;
+    private int length;
+    private boolean pooled;
+    private byte[] copy;
+    private ByteBuffer mapped;
+    private Object decoded;
+    private PendingResponse response;
+
+    ReceivedFrame() {}
+
+    void reset(byte[] buffer, int length, boolean pooled) {
+        this.buffer = buffer;
+        this.length = length;
+        this.pooled = pooled;
+        this.copy = null;
+        this.mapped = null;
+        this.decoded = null;
+        this.response = null;
+    }
+
+    void setResponse(PendingResponse response) {
+        this.response = response;
+    }
+
+    void resetMapped(ByteBuffer mapped) {
+        reset(null, mapped.remaining(), false);
+        this.mapped = mapped;
+    }
+
+    boolean isMapped() {
+        return mapped != null;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    boolean isPooled() {
+        return pooled;
+    }
+
+    /**
+     * Returns the length of the encoded message.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Returns a read-only view of the encoded message.
+     */
+    public ByteBuffer asByteBuffer() {
+        if (mapped != null)
+            return mapped.duplicate();
+        return ByteBuffer.wrap(buffer, 0, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a protobuf input reading the encoded message in place, e.g.
+     * for use with DaemonToController.parseFrom(frame.newCodedInput()).
+     * Messages in shared memory are copied first, as protobuf nano only
+     * reads arrays.
+     */
+    public CodedInputByteBufferNano newCodedInput() {
+        if (mapped != null)
+            return CodedInputByteBufferNano.newInstance(toByteArray(), 0, length);
+        return CodedInputByteBufferNano.newInstance(buffer, 0, length);
+    }
+
+    /**
+     * Returns the message decoded by setDecoded(), or null. The Receiver's
+     * isResponse() and handleFrame() use this to decode each frame only once.
+     */
+    public Object getDecoded() {
+        return decoded;
+    }
+
+    public void setDecoded(Object decoded) {
+        this.decoded = decoded;
+    }
+
+    /**
+     * Returns the response slot the message has completed, or null if it is
+     * not the response to a request, e.g. an unsolicited notification.
+     */
+    public PendingResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * Returns the encoded message as an array owned by the caller. The array
+     * is created at most once per frame and shared between all callers.
+     */
+    public byte[] toByteArray() {
+        if (copy == null) {
+            if (mapped != null) {
+                copy = new byte[length];
+                mapped.duplicate().get(copy);
+            }
+            else {
+                // the buffer is only handed out if the frame owns it exactly
+                copy = pooled || buffer.length != length ? Arrays.copyOf(buffer, length) : buffer;
+            }
+        }
+        return copy;
+    }
+}
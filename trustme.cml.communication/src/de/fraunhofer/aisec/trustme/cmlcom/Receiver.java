@@ -26,6 +26,15 @@ package de.fraunhofer.aisec.trustme.cmlcom;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.google.protobuf.nano.MessageNano;
 
 /**
  * This abstract class receives messages (usually protobuf messages) over
@@ -35,7 +44,30 @@ import java.io.InputStream;
 public abstract class Receiver implements Runnable {
     protected InputStream socketInputStream;
     protected DataInputStream dataInputStream;
+    // the stream the current frame is read from, guarded by this
+    private DataInputStream readingStream;
     private MessageAfterMarker messageAfterMarker = new MessageAfterMarker();
+    private final Queue<PendingResponse> pendingResponses = new ArrayDeque<PendingResponse>();
+    private final ReceivedFrame frame = new ReceivedFrame();
+    private BufferPool bufferPool;
+    private int maxMessageSize = 64*1024*1024;
+    private volatile ChannelMetrics metrics;
+
+    private volatile BulkRegion bulkRegion;
+    // end of the message in the bulk region the current frame refers to
+    private long bulkEnd;
+    // created on the first compressed frame and reused for all others
+    private Inflater inflater;
+    // receives output beyond the announced length of a compressed message
+    private final byte[] inflateOverrun = new byte[1];
+
+    private volatile boolean stopped;
+    private volatile Thread runner;
+
+    // chunks of a message sent in chunks received so far
+    private byte[] reassemblyBuffer;
+    private int reassemblyLength;
+    private boolean discardingChunks;
 
     public Receiver(InputStream socketInputStream) {
         super();
@@ -50,6 +82,32 @@ public abstract class Receiver implements Runnable {
      */
     protected abstract void handleMessage(byte[] encodedMessage) throws Exception;
 
+    /**
+     * Handles a received frame. Will be invoked for each received message in
+     * the order received. The default implementation passes the message on to
+     * handleMessage(byte[]). Subclasses may override this method in order to
+     * parse the message in place, e.g. via frame.newCodedInput(), which avoids
+     * copying the message when pooled buffers are enabled.
+     *
+     * @see setPooledBuffers
+     */
+    protected void handleFrame(ReceivedFrame frame) throws Exception {
+        handleMessage(frame.toByteArray());
+    }
+
+    /**
+     * Enables or disables receiving into pooled, reusable buffers instead of
+     * allocating a new array for each message. This should be set before the
+     * Receiver is started. When enabled, messages are only copied if they are
+     * returned as a response or to getMessageAfterMarker() without having
+     * been decoded in place (see ReceivedFrame.setDecoded), or by the default
+     * implementation of handleFrame, which hands each message out as an
+     * array of its own.
+     */
+    public void setPooledBuffers(boolean pooled) {
+        bufferPool = pooled ? new BufferPool(1024*1024, 4) : null;
+    }
+
     /**
      * Sets a marker in time such that a subsequent call to getMessageAfterMarker()
      * will return the (chronologically) first message that has been received after
@@ -64,13 +122,13 @@ public abstract class Receiver implements Runnable {
      * }
      * </pre>
      *
-     * Alternatively, the convenience method sendMessageSyncWithResponse may be used
-     * instead which uses setMarker() and getMessageAfterMarker() transparently for
-     * the user:
+     * Alternatively, sendMessageWithResponse may be used, which matches the
+     * response to the request even while other threads send requests, and
+     * fails with an IOException if the message cannot be sent:
      *
      * <pre>
      * {@code
-     * byte[] response = sender.sendMessageSyncWithResponse(message, receiver);
+     * byte[] response = sender.sendMessageWithResponse(message, receiver).get();
      * }
      * </pre>
      *
@@ -96,11 +154,171 @@ public abstract class Receiver implements Runnable {
     }
 
     /**
-     * Sets the socket input stream this Receiver is associated with.
+     * Same as getMessageAfterMarker(), but waits at most the given time and
+     * returns null if no message has been received in time.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public byte[] getMessageAfterMarker(long timeout, TimeUnit unit) throws InterruptedException {
+        return messageAfterMarker.get(unit.toNanos(timeout));
+    }
+
+    /**
+     * Sets the shared memory region messages sent via a BulkRegion by the
+     * peer's Sender are read from, or null if the peer does not use one.
+     * Frames of such messages are backed by the shared memory.
+     *
+     * @see Sender#setBulkRegion
+     */
+    public void setBulkRegion(BulkRegion region) {
+        bulkRegion = region;
+    }
+
+    /**
+     * Sets the metrics the Receiver records to, or null to record none.
+     */
+    public void setMetrics(ChannelMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public ChannelMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the maximum size of a message sent in chunks. Messages exceeding
+     * this size are discarded, which protects the Receiver from running out of
+     * memory while reassembling a message.
+     *
+     * @see Sender#setChunkedTransfer
+     */
+    public void setMaxMessageSize(int size) {
+        maxMessageSize = size;
+    }
+
+    /**
+     * Returns the maximum size of a message sent in chunks.
+     */
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Invoked whenever a chunk of a message sent in chunks has been received,
+     * with the number of bytes of that message received so far. The total
+     * size of the message is not known before its last chunk arrives.
+     * The default implementation does nothing.
+     */
+    protected void onPartialMessage(int bytesReceived) {}
+
+    /**
+     * Appends a new response slot to the queue of requests awaiting a response
+     * and returns it. Each received message for which isResponse() returns true
+     * completes the oldest slot in the queue. Hence, callers must register the
+     * slot and write the corresponding request atomically with respect to other
+     * requests on the same socket, which is what Sender.sendMessageWithResponse
+     * does. In contrast to setMarker() and getMessageAfterMarker(), any number
+     * of requests may be outstanding at the same time.
+     *
+     * @see Sender#sendMessageWithResponse
+     */
+    public PendingResponse expectResponse() {
+        return expectResponse(null);
+    }
+
+    /**
+     * Like expectResponse(), but records the request the slot is waiting for,
+     * which isResponse() may use to tell the response apart from unsolicited
+     * messages.
+     *
+     * @see PendingResponse#getRequest
+     */
+    public PendingResponse expectResponse(Object request) {
+        PendingResponse response = new PendingResponse(this, request);
+        synchronized (pendingResponses) {
+            pendingResponses.add(response);
+        }
+        return response;
+    }
+
+    /**
+     * Removes a response slot obtained by expectResponse() whose request could
+     * not be sent and fails it with the given exception.
+     */
+    void withdrawResponse(PendingResponse response, IOException failure) {
+        synchronized (pendingResponses) {
+            pendingResponses.remove(response);
+        }
+        response.fail(failure);
+    }
+
+    /**
+     * Called once the caller of a response slot has given up waiting, e.g.
+     * because of a timeout. A slot which is still queued has not been
+     * answered yet, so from now on responses cannot be matched by order.
      */
-    public void setSocketInputStream(InputStream socketInputStream) {
+    void abandonResponse(PendingResponse response, IOException reason) {
+        boolean queued;
+        synchronized (pendingResponses) {
+            queued = pendingResponses.remove(response);
+        }
+        if (queued)
+            onResponseAbandoned(response, reason);
+    }
+
+    /**
+     * Invoked when an outstanding response slot has been cancelled, e.g.
+     * because its caller timed out. Since the cancelled request may still be
+     * answered, every later response could be matched to the wrong request.
+     * The default implementation fails all outstanding slots with a
+     * ConnectionLostException; subclasses owning the connection must close
+     * and re-establish it as well, as Communicator does, since a late response
+     * would otherwise complete the slot of the next request.
+     */
+    protected void onResponseAbandoned(PendingResponse response, IOException reason) {
+        failPendingResponses(new ConnectionLostException(
+                "Response matching lost after abandoned request: " + reason.getMessage(), reason));
+    }
+
+    /**
+     * Returns true if the given received message is the response to the
+     * request of the oldest outstanding response slot and thus completes it.
+     * Subclasses should override this in order to exclude unsolicited
+     * messages from the matching, as otherwise such a message completes the
+     * slot and every later response is matched to the wrong request. The
+     * default implementation treats every received message as a response.
+     */
+    protected boolean isResponse(ReceivedFrame frame, PendingResponse oldest) {
+        return true;
+    }
+
+    /**
+     * Fails all outstanding response slots with the given exception, e.g.
+     * because the connection to cmld has been lost.
+     */
+    public void failPendingResponses(IOException failure) {
+        PendingResponse response;
+        for (;;) {
+            synchronized (pendingResponses) {
+                response = pendingResponses.poll();
+            }
+            if (response == null)
+                return;
+            response.fail(failure);
+        }
+    }
+
+    /**
+     * Sets the socket input stream this Receiver is associated with. The
+     * stream should only be replaced while the run loop is not reading from
+     * it, i.e. before the Receiver is started or after the stream has been
+     * set to null, e.g. from exceptionHandler when the connection was lost.
+     * While the stream is null, the run loop waits for a new one.
+     */
+    public synchronized void setSocketInputStream(InputStream socketInputStream) {
         this.socketInputStream = socketInputStream;
-        this.dataInputStream = new DataInputStream(socketInputStream);
+        this.dataInputStream = socketInputStream != null ? new DataInputStream(socketInputStream) : null;
+        notifyAll();
     }
 
     /**
@@ -117,49 +335,383 @@ public abstract class Receiver implements Runnable {
     protected abstract void exceptionHandler(Exception e);
 
     /**
-     * Receiver main
+     * Receiver main. Returns once stop() has been called.
      */
     public void run() {
-        for (;;) {
-            try {
-                byte[] message = recvMessage();
-                messageAfterMarker.set(message);
-                handleMessage(message);
+        runner = Thread.currentThread();
+        try {
+            while (!stopped) {
+                try {
+                    receiveFrame();
+                }
+                catch (Exception e) {
+                    if (stopped)
+                        break;
+                    // the stream has been replaced on purpose, e.g. closed
+                    // after the connection has been lost
+                    if (isStreamReplaced())
+                        continue;
+                    reportException(e);
+                }
             }
-            catch (Exception e) {
-                exceptionHandler(e);
+        }
+        finally {
+            runner = null;
+            // do not leave the interrupt of stop() to the executor's next task
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Makes run() return, interrupting it if it is waiting for an input
+     * stream. A read blocked on the socket is only ended by closing the
+     * socket. The Receiver cannot be restarted.
+     */
+    public void stop() {
+        stopped = true;
+        Thread thread = runner;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    /**
+     * Receives and handles a single frame, waiting for an input stream to be
+     * set if there is none. This is the body of the Receiver's main loop.
+     */
+    void receiveFrame() throws Exception {
+        awaitInputStream();
+        recvFrame();
+        try {
+            processFrame();
+        }
+        finally {
+            releaseFrame();
+        }
+    }
+
+    /**
+     * Handles a frame read by a transport which delivers frames itself instead
+     * of providing an input stream, on a thread of the transport's own which
+     * delivers the frames of a connection one at a time. The Receiver takes
+     * over the buffer, which the transport must not reuse; as it has not been
+     * acquired from the Receiver's pool, it is never released into the pool.
+     * The flags are those of the frame's header, without FLAG_MORE as chunks
+     * have been reassembled by the transport.
+     *
+     * @see SelectorTransport
+     */
+    void receiveFrame(byte[] buffer, int length, int flags) throws Exception {
+        if (flags == Framing.FLAG_BULK) {
+            if (length != Framing.BULK_DESCRIPTOR_SIZE)
+                throw new IOException("Received bulk frame of invalid size " + length);
+            ByteBuffer descriptor = ByteBuffer.wrap(buffer, 0, length);
+            frame.resetMapped(mapBulk(descriptor.getLong(), descriptor.getInt(), descriptor.getInt()));
+        }
+        else if (flags == Framing.FLAG_COMPRESSED) {
+            inflateFrame(buffer, length);
+        }
+        else {
+            frame.reset(buffer, length, false);
+        }
+        try {
+            processFrame();
+        }
+        finally {
+            releaseFrame();
+        }
+    }
+
+    private void processFrame() throws Exception {
+        ChannelMetrics m = metrics;
+        if (m != null)
+            m.recordReceived(1, Framing.HEADER_SIZE + frame.length());
+        try {
+            completeResponse(frame);
+            handleFrame(frame);
+        }
+        finally {
+            // handleFrame has usually decoded the frame by now
+            if (messageAfterMarker.isEmpty())
+                messageAfterMarker.set(frame.getDecoded() instanceof MessageNano ? frame.getDecoded() : frame.toByteArray());
+        }
+    }
+
+    /**
+     * Records the exception and passes it to exceptionHandler.
+     */
+    void reportException(Exception e) {
+        ChannelMetrics m = metrics;
+        if (m != null)
+            m.recordException(e);
+        exceptionHandler(e);
+    }
+
+    private synchronized void awaitInputStream() throws InterruptedException {
+        if (dataInputStream == null) {
+            while (dataInputStream == null)
+                wait();
+            // a message may have been cut off by the previous stream
+            reassemblyBuffer = null;
+            reassemblyLength = 0;
+            discardingChunks = false;
+        }
+        readingStream = dataInputStream;
+    }
+
+    private synchronized boolean isStreamReplaced() {
+        return readingStream != dataInputStream;
+    }
+
+    private void completeResponse(ReceivedFrame frame) {
+        PendingResponse oldest;
+        synchronized (pendingResponses) {
+            oldest = pendingResponses.peek();
+        }
+        if (oldest == null || !isResponse(frame, oldest))
+            return;
+        synchronized (pendingResponses) {
+            // the slot may have been withdrawn in the meantime
+            if (pendingResponses.peek() != oldest)
+                return;
+            pendingResponses.poll();
+        }
+        frame.setResponse(oldest);
+        // a response decoded by isResponse needs no copy of the frame, its
+        // encoded form is only recreated if asked for
+        Object decoded = frame.getDecoded();
+        oldest.complete(decoded instanceof MessageNano ? null : frame.toByteArray(), decoded);
+    }
+
+    /**
+     * Reads a single message (prefixed with its length) received from cmld
+     * into the Receiver's frame. Messages sent in chunks are reassembled.
+     */
+    private void recvFrame() throws IOException {
+        int header;
+        while (((header = dataInputStream.readInt()) & Framing.FLAG_MORE) != 0)
+            recvChunk(header & Framing.LENGTH_MASK);
+
+        if ((header & Framing.FLAGS_MASK) == Framing.FLAG_BULK) {
+            recvBulk(header & Framing.LENGTH_MASK);
+            return;
+        }
+        if ((header & Framing.FLAGS_MASK) == Framing.FLAG_COMPRESSED) {
+            recvCompressed(header & Framing.LENGTH_MASK);
+            return;
+        }
+        if ((header & Framing.FLAGS_MASK) != 0)
+            throw new IOException("Received frame with unsupported flags 0x" + Integer.toHexString(header));
+
+        int messageLength = header & Framing.LENGTH_MASK;
+        if (reassemblyBuffer != null || discardingChunks) {
+            recvChunk(messageLength);
+            if (discardingChunks) {
+                discardingChunks = false;
+                throw new IOException("Discarded chunked message exceeding maximum message size (" + maxMessageSize + ")");
             }
+            byte[] encodedMessage = Arrays.copyOf(reassemblyBuffer, reassemblyLength);
+            reassemblyBuffer = null;
+            reassemblyLength = 0;
+            frame.reset(encodedMessage, encodedMessage.length, false);
+            return;
+        }
+
+        BufferPool pool = bufferPool;
+        byte[] encodedMessage = pool != null ? pool.acquire(messageLength) : new byte[messageLength];
+        try {
+            dataInputStream.readFully(encodedMessage, 0, messageLength);
         }
+        catch (IOException e) {
+            if (pool != null)
+                pool.release(encodedMessage);
+            throw e;
+        }
+
+        frame.reset(encodedMessage, messageLength, pool != null);
     }
 
     /**
-     * Reads a single message (prefixed with its length) received from cmld.
+     * Reads the descriptor of a message in the bulk region and points the
+     * frame at the message.
      */
-    private byte[] recvMessage() throws IOException {
+    private void recvBulk(int length) throws IOException {
+        if (length != Framing.BULK_DESCRIPTOR_SIZE) {
+            skipFully(length);
+            throw new IOException("Received bulk frame of invalid size " + length);
+        }
+        long position = dataInputStream.readLong();
         int messageLength = dataInputStream.readInt();
-        assert(messageLength >= 0);
+        int checksum = dataInputStream.readInt();
+        frame.resetMapped(mapBulk(position, messageLength, checksum));
+    }
+
+    /**
+     * Reads a compressed message and decompresses it into the frame.
+     */
+    private void recvCompressed(int length) throws IOException {
+        BufferPool pool = bufferPool;
+        byte[] compressed = pool != null ? pool.acquire(length) : new byte[length];
+        try {
+            dataInputStream.readFully(compressed, 0, length);
+            inflateFrame(compressed, length);
+        }
+        finally {
+            if (pool != null)
+                pool.release(compressed);
+        }
+    }
+
+    /**
+     * Decompresses the payload of a compressed frame into the frame, using a
+     * pooled buffer if enabled.
+     */
+    private void inflateFrame(byte[] payload, int length) throws IOException {
+        if (length < Framing.COMPRESSED_PREFIX_SIZE)
+            throw new IOException("Received compressed frame of invalid size " + length);
+        int messageLength = ByteBuffer.wrap(payload).getInt();
+        if (messageLength < 0 || messageLength > maxMessageSize)
+            throw new IOException("Received compressed message of invalid size " + messageLength);
 
-        byte[] encodedMessage = new byte[messageLength];
-        dataInputStream.readFully(encodedMessage);
+        BufferPool pool = bufferPool;
+        byte[] message = pool != null ? pool.acquire(messageLength) : new byte[messageLength];
 
-        return encodedMessage;
+        if (inflater == null)
+            inflater = new Inflater();
+        inflater.reset();
+        inflater.setInput(payload, Framing.COMPRESSED_PREFIX_SIZE, length - Framing.COMPRESSED_PREFIX_SIZE);
+        try {
+            int inflated = 0;
+            while (inflated < messageLength) {
+                int n = inflater.inflate(message, inflated, messageLength - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                inflated += n;
+            }
+            // consumes the trailing checksum, any further output means the length was wrong
+            if (inflated == messageLength && !inflater.finished() && inflater.inflate(inflateOverrun) != 0)
+                inflated++;
+            if (inflated != messageLength || !inflater.finished())
+                throw new IOException("Compressed message does not match its length " + messageLength);
+        }
+        catch (DataFormatException e) {
+            if (pool != null)
+                pool.release(message);
+            throw new IOException("Received corrupt compressed message", e);
+        }
+        catch (IOException e) {
+            if (pool != null)
+                pool.release(message);
+            throw e;
+        }
+
+        frame.reset(message, messageLength, pool != null);
+    }
+
+    private ByteBuffer mapBulk(long position, int length, int checksum) throws IOException {
+        BulkRegion region = bulkRegion;
+        if (region == null)
+            throw new IOException("Received bulk frame without a bulk region");
+
+        ByteBuffer message = region.read(position, length);
+        if (BulkRegion.checksum(message) != checksum) {
+            region.release(position + length);
+            throw new IOException("Checksum mismatch of bulk message at " + position);
+        }
+        bulkEnd = position + length;
+        return message;
+    }
+
+    private void releaseBulk() {
+        BulkRegion region = bulkRegion;
+        if (region != null)
+            region.release(bulkEnd);
+    }
+
+    /**
+     * Appends a chunk of a message sent in chunks to the reassembly buffer.
+     */
+    private void recvChunk(int chunkLength) throws IOException {
+        if (discardingChunks || (long) reassemblyLength + chunkLength > maxMessageSize) {
+            // skip the remaining chunks of the message
+            discardingChunks = true;
+            reassemblyBuffer = null;
+            reassemblyLength = 0;
+            skipFully(chunkLength);
+            return;
+        }
+
+        if (reassemblyBuffer == null)
+            reassemblyBuffer = new byte[Math.max(chunkLength, 4096)];
+        else if (reassemblyLength + chunkLength > reassemblyBuffer.length)
+            reassemblyBuffer = Arrays.copyOf(reassemblyBuffer,
+                    (int) Math.min(maxMessageSize, Math.max(reassemblyLength + chunkLength, 2L * reassemblyBuffer.length)));
+
+        dataInputStream.readFully(reassemblyBuffer, reassemblyLength, chunkLength);
+        reassemblyLength += chunkLength;
+        onPartialMessage(reassemblyLength);
+    }
+
+    private void skipFully(int length) throws IOException {
+        while (length > 0) {
+            int skipped = dataInputStream.skipBytes(length);
+            if (skipped == 0) {
+                dataInputStream.readByte(); // throws EOFException at end of stream
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    private void releaseFrame() {
+        if (frame.isMapped())
+            releaseBulk();
+        BufferPool pool = bufferPool;
+        if (frame.isPooled() && pool != null)
+            pool.release(frame.buffer());
+        frame.reset(null, 0, false);
     }
 }
 
 class MessageAfterMarker {
-    private byte[] message;
+    // the encoded message, or the decoded one to be encoded on request
+    private Object message;
 
     public synchronized byte[] get() {
+        boolean interrupted = false;
         while (message == null) {
             try {
                 wait();
             }
-            catch (InterruptedException e) {}
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
         }
-        return message;
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        return encoded();
+    }
+
+    public synchronized byte[] get(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (message == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return null;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return encoded();
     }
 
-    public synchronized void set(byte[] message) {
+    private byte[] encoded() {
+        if (message instanceof MessageNano)
+            message = MessageNano.toByteArray((MessageNano) message);
+        return (byte[]) message;
+    }
+
+    /**
+     * Sets the message, either encoded or as decoded MessageNano.
+     */
+    public synchronized void set(Object message) {
         if (this.message == null)
             this.message = message;
         notifyAll();
@@ -168,4 +720,8 @@ class MessageAfterMarker {
     public synchronized void reset() {
         message = null;
     }
+
+    public synchronized boolean isEmpty() {
+        return message == null;
+    }
 }
@@ -0,0 +1,523 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Process-wide cache of container screenshots, which ContainerItems refer to
+ * through ScreenshotHandles instead of carrying the image data themselves.
+ * Encoded screenshots and the thumbnails decoded from them are kept in two
+ * least recently used caches, each bounded by the number of entries and the
+ * total size in bytes. Screenshots which are not cached are loaded from the
+ * storage directory or through the loader, see setStorageDirectory() and
+ * setLoader().
+ *
+ * Screenshots are hashed, cached and written to the storage directory on a
+ * background thread. A handle keeps its screenshot until it has been stored
+ * or a loader is set, so without either, screenshots only go away with
+ * their handles. The storage directory is bounded like the caches, evicted
+ * files are deleted, as is the file of a container's previous screenshot
+ * when a new one is stored.
+ */
+public final class ScreenshotCache {
+    private static final String TAG = "ScreenshotCache";
+
+    private static volatile File storageDirectory;
+    private static volatile Loader loader;
+
+    private static final BoundedLruCache<String, byte[]> screenshots =
+        new BoundedLruCache<String, byte[]>(32, 16*1024*1024) {
+            @Override
+            protected int sizeOf(String key, byte[] screenshot) {
+                return screenshot.length;
+            }
+        };
+
+    // index of the files in the storage directory
+    private static final BoundedLruCache<File, Integer> files =
+        new BoundedLruCache<File, Integer>(256, 64*1024*1024) {
+            @Override
+            protected int sizeOf(File file, Integer length) {
+                return length;
+            }
+
+            @Override
+            protected void entryEvicted(File file, Integer length) {
+                file.delete();
+            }
+        };
+    // the latest file stored per container uuid, guarded by files
+    private static final Map<String, File> latestFiles = new HashMap<String, File>();
+
+    private static ExecutorService storageExecutor;
+    private static final AtomicInteger pendingStores = new AtomicInteger();
+
+    private static final BoundedLruCache<ThumbnailKey, Bitmap> thumbnails =
+        new BoundedLruCache<ThumbnailKey, Bitmap>(128, 4*1024*1024) {
+            @Override
+            protected int sizeOf(ThumbnailKey key, Bitmap thumbnail) {
+                return thumbnail.getByteCount();
+            }
+        };
+
+    /**
+     * Source of screenshots which are not cached, e.g. fetched from the
+     * component which took them.
+     */
+    public interface Loader {
+        /**
+         * Returns the encoded screenshot the handle refers to, or null if it
+         * is not available. Invoked on the thread resolving the handle.
+         */
+        byte[] load(ScreenshotHandle handle) throws IOException;
+    }
+
+    private static final class ThumbnailKey {
+        final String key;
+        final int maxWidth;
+        final int maxHeight;
+
+        ThumbnailKey(String key, int maxWidth, int maxHeight) {
+            this.key = key;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ThumbnailKey))
+                return false;
+            ThumbnailKey other = (ThumbnailKey) o;
+            return key.equals(other.key) && maxWidth == other.maxWidth && maxHeight == other.maxHeight;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() * 31 * 31 + maxWidth * 31 + maxHeight;
+        }
+    }
+
+    private ScreenshotCache() {}
+
+    /**
+     * Returns a handle for a screenshot of the container with the given
+     * uuid, which may be null, and adds the screenshot to the cache and to
+     * the storage directory, if set, in the background.
+     */
+    static ScreenshotHandle put(String uuid, byte[] screenshot) {
+        final ScreenshotHandle handle = new ScreenshotHandle(uuid, screenshot);
+        pendingStores.incrementAndGet();
+        getStorageExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    store(handle);
+                }
+                finally {
+                    pendingStores.decrementAndGet();
+                }
+            }
+        });
+        return handle;
+    }
+
+    private static synchronized ExecutorService getStorageExecutor() {
+        if (storageExecutor == null) {
+            storageExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "screenshot-storage");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return storageExecutor;
+    }
+
+    /**
+     * Waits until the screenshots put into the cache so far have been stored.
+     */
+    static void awaitStored() throws InterruptedException {
+        try {
+            getStorageExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Caches the handle's screenshot and writes it to the storage directory,
+     * if set. The handle drops the screenshot once it can be got back.
+     */
+    private static void store(ScreenshotHandle handle) {
+        byte[] screenshot = handle.getData();
+        if (screenshot == null)
+            return;
+        screenshots.put(handle.getKey(), screenshot);
+        File directory = storageDirectory;
+        boolean stored = directory != null && writeFile(directory, handle, screenshot);
+        if (stored || loader != null)
+            handle.releaseData();
+    }
+
+    static byte[] get(ScreenshotHandle handle) {
+        byte[] screenshot = screenshots.get(handle.getKey());
+        if (screenshot == null && pendingStores.get() > 0) {
+            // the screenshot may just be on its way into the cache
+            try {
+                awaitStored();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            screenshot = screenshots.get(handle.getKey());
+        }
+        if (screenshot == null) {
+            screenshot = load(handle);
+            if (screenshot != null)
+                screenshots.put(handle.getKey(), screenshot);
+        }
+        return screenshot;
+    }
+
+    static boolean contains(ScreenshotHandle handle) {
+        return screenshots.contains(handle.getKey());
+    }
+
+    /**
+     * Loads a screenshot which is not cached from the storage directory or,
+     * failing that, through the loader. Data not matching the handle's hash
+     * is ignored.
+     */
+    private static byte[] load(ScreenshotHandle handle) {
+        File directory = storageDirectory;
+        Loader l = loader;
+        try {
+            byte[] screenshot = null;
+            if (directory != null) {
+                File file = new File(directory, handle.getKey());
+                screenshot = readFile(file, handle.getLength());
+                // counts as a use of the file
+                files.get(file);
+            }
+            if (!matches(handle, screenshot) && l != null)
+                screenshot = l.load(handle);
+            if (matches(handle, screenshot))
+                return screenshot;
+            if (screenshot != null)
+                Log.d(TAG, "Loaded screenshot does not match " + handle);
+        }
+        catch (IOException e) {
+            Log.d(TAG, "Failed to load " + handle + ": " + e);
+        }
+        return null;
+    }
+
+    private static boolean matches(ScreenshotHandle handle, byte[] screenshot) {
+        return screenshot != null && screenshot.length == handle.getLength()
+            && hash(screenshot).equals(handle.getHash());
+    }
+
+    private static byte[] readFile(File file, int length) throws IOException {
+        if (!file.isFile() || file.length() != length)
+            return null;
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] screenshot = new byte[length];
+            in.readFully(screenshot);
+            return screenshot;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the screenshot to the storage directory unless it is already
+     * there and returns true if the file is kept. The file is written under
+     * a temporary name first, so readers never see a partial screenshot.
+     */
+    private static boolean writeFile(File directory, ScreenshotHandle handle, byte[] screenshot) {
+        File file = new File(directory, handle.getKey());
+        if (!file.isFile() || file.length() != screenshot.length) {
+            if (!createFile(directory, handle, file, screenshot))
+                return false;
+        }
+        synchronized (files) {
+            files.put(file, screenshot.length);
+            if (!files.contains(file)) {
+                // larger than the whole storage limit
+                file.delete();
+                return false;
+            }
+            if (!handle.getUuid().isEmpty()) {
+                File previous = latestFiles.put(handle.getUuid(), file);
+                if (previous != null && !previous.equals(file)) {
+                    files.remove(previous);
+                    previous.delete();
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean createFile(File directory, ScreenshotHandle handle, File file, byte[] screenshot) {
+        File temp = null;
+        try {
+            temp = File.createTempFile(handle.getKey(), ".tmp", directory);
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(screenshot);
+            }
+            finally {
+                out.close();
+            }
+            if (!temp.renameTo(file))
+                throw new IOException("Cannot rename " + temp + " to " + file);
+            temp = null;
+            return true;
+        }
+        catch (IOException e) {
+            Log.d(TAG, "Failed to store " + handle + ": " + e);
+            return false;
+        }
+        finally {
+            if (temp != null)
+                temp.delete();
+        }
+    }
+
+    static String hash(byte[] screenshot) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        byte[] hash = digest.digest(screenshot);
+        StringBuilder s = new StringBuilder(2 * hash.length);
+        for (byte b : hash) {
+            s.append(Character.forDigit((b >> 4) & 0xf, 16));
+            s.append(Character.forDigit(b & 0xf, 16));
+        }
+        return s.toString();
+    }
+
+    /**
+     * Sets the directory where screenshots put into the cache are stored and
+     * from where screenshots which are not cached are loaded, e.g. the
+     * application's cache directory, or null to keep screenshots in memory
+     * only (the default). Processes sharing the directory can resolve each
+     * other's handles. Files already in the directory count towards the
+     * storage limits and left over temporary files are deleted.
+     */
+    public static void setStorageDirectory(final File directory) {
+        storageDirectory = directory;
+        getStorageExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (files) {
+                    files.clear();
+                    latestFiles.clear();
+                }
+                if (directory != null)
+                    indexFiles(directory);
+            }
+        });
+    }
+
+    /**
+     * Adds the files in the directory to the index of stored screenshots,
+     * least recently modified first, so these are evicted first.
+     */
+    private static void indexFiles(File directory) {
+        File[] existing = directory.listFiles();
+        if (existing == null)
+            return;
+        Arrays.sort(existing, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long ta = a.lastModified();
+                long tb = b.lastModified();
+                return ta < tb ? -1 : ta > tb ? 1 : 0;
+            }
+        });
+        synchronized (files) {
+            for (File file : existing) {
+                if (!file.isFile())
+                    continue;
+                long length = file.length();
+                if (!file.getName().endsWith(".tmp") && length <= Integer.MAX_VALUE)
+                    files.put(file, (int) length);
+                if (!files.contains(file))
+                    file.delete();
+            }
+        }
+    }
+
+    /**
+     * Limits the storage directory to the given number of files and total
+     * size in bytes. Least recently used files are deleted first; a handle
+     * whose file has been deleted only resolves while its screenshot is
+     * cached or through the loader.
+     */
+    public static void setStorageLimits(int maxFiles, long maxBytes) {
+        synchronized (files) {
+            files.setLimits(maxFiles, maxBytes);
+        }
+    }
+
+    /**
+     * Sets the loader used for screenshots which are neither cached nor in
+     * the storage directory, or null for none (the default).
+     */
+    public static void setLoader(Loader loader) {
+        ScreenshotCache.loader = loader;
+    }
+
+    static Bitmap getThumbnail(ScreenshotHandle handle, int maxWidth, int maxHeight) {
+        if (maxWidth <= 0 || maxHeight <= 0)
+            throw new IllegalArgumentException("Invalid thumbnail size " + maxWidth + "x" + maxHeight);
+
+        ThumbnailKey key = new ThumbnailKey(handle.getKey(), maxWidth, maxHeight);
+        Bitmap thumbnail = thumbnails.get(key);
+        if (thumbnail != null)
+            return thumbnail;
+
+        byte[] screenshot = get(handle);
+        if (screenshot == null)
+            return null;
+
+        thumbnail = decodeThumbnail(screenshot, maxWidth, maxHeight);
+        if (thumbnail == null) {
+            Log.d(TAG, "Failed to decode " + handle);
+            return null;
+        }
+        thumbnails.put(key, thumbnail);
+        return thumbnail;
+    }
+
+    /**
+     * Decodes the screenshot subsampled by the largest power of two which
+     * keeps it at least as large as the requested size, and scales the
+     * result down the rest of the way.
+     */
+    private static Bitmap decodeThumbnail(byte[] screenshot, int maxWidth, int maxHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(screenshot, 0, screenshot.length, options);
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0)
+            return null;
+
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= maxWidth && height / (sampleSize * 2) >= maxHeight)
+            sampleSize *= 2;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(screenshot, 0, screenshot.length, options);
+        if (bitmap == null)
+            return null;
+
+        float scale = Math.min((float) maxWidth / bitmap.getWidth(), (float) maxHeight / bitmap.getHeight());
+        if (scale >= 1)
+            return bitmap;
+
+        int scaledWidth = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int scaledHeight = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, true);
+        if (scaled != bitmap)
+            bitmap.recycle();
+        return scaled;
+    }
+
+    /**
+     * Limits the cache of encoded screenshots to the given number of entries
+     * and total size in bytes. Screenshots larger than maxBytes are not
+     * cached at all, so their handles only resolve by loading them.
+     */
+    public static void setLimits(int maxEntries, long maxBytes) {
+        screenshots.setLimits(maxEntries, maxBytes);
+    }
+
+    /**
+     * Limits the cache of decoded thumbnails to the given number of entries
+     * and total size of their pixel data in bytes.
+     */
+    public static void setThumbnailLimits(int maxEntries, long maxBytes) {
+        thumbnails.setLimits(maxEntries, maxBytes);
+    }
+
+    /**
+     * Returns the hit, miss and eviction statistics of the screenshot cache.
+     */
+    public static CacheStats getStats() {
+        return screenshots.getStats();
+    }
+
+    /**
+     * Returns the hit, miss and eviction statistics of the thumbnail cache.
+     */
+    public static CacheStats getThumbnailStats() {
+        return thumbnails.getStats();
+    }
+
+    /**
+     * Drops all cached screenshots and thumbnails.
+     */
+    public static void clear() {
+        screenshots.clear();
+        thumbnails.clear();
+    }
+}
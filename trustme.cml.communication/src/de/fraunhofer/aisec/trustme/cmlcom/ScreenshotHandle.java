@@ -0,0 +1,169 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import android.graphics.Bitmap;
+
+/**
+ * Reference to a screenshot held by the process-wide ScreenshotCache. A
+ * handle is identified by the uuid of the container and the SHA-256 hash of
+ * the encoded screenshot, so it refers to the same screenshot in every
+ * process. A screenshot which is not cached, e.g. as it has been evicted or
+ * the handle has been passed to another process, is loaded through the
+ * cache's storage directory or loader.
+ *
+ * Until the cache has stored the screenshot in its storage directory or has
+ * a loader to get it back, the handle keeps the screenshot itself and it is
+ * serialized along with the handle, so it is never lost. Only then handles
+ * become small and cheap to copy and serialize.
+ *
+ * @see ScreenshotCache
+ */
+public final class ScreenshotHandle implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    private final String uuid;
+    private final int length;
+    // guarded by this; the hash is computed on first use
+    private String hash;
+    private byte[] data;
+
+    /**
+     * Creates a handle keeping the given screenshot until it is released.
+     */
+    ScreenshotHandle(String uuid, byte[] data) {
+        this.uuid = uuid != null ? uuid : "";
+        this.length = data.length;
+        this.data = data;
+    }
+
+    ScreenshotHandle(String uuid, String hash, int length) {
+        this.uuid = uuid != null ? uuid : "";
+        this.hash = hash;
+        this.length = length;
+    }
+
+    /**
+     * Returns the uuid of the container the screenshot has been taken of, or
+     * an empty string if it is not known.
+     */
+    public String getUuid() {
+        return uuid;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the encoded screenshot as hex string.
+     */
+    public synchronized String getHash() {
+        if (hash == null)
+            hash = ScreenshotCache.hash(data);
+        return hash;
+    }
+
+    /**
+     * Returns the key identifying the screenshot in the cache, which is also
+     * the name of its file in the storage directory.
+     */
+    public String getKey() {
+        return uuid.isEmpty() ? getHash() : uuid + "_" + getHash();
+    }
+
+    /**
+     * Returns the size of the encoded screenshot in bytes.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the screenshot kept by the handle, or null if it has been
+     * released.
+     */
+    synchronized byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Drops the screenshot kept by the handle, once the cache can get it
+     * back without it.
+     */
+    synchronized void releaseData() {
+        data = null;
+    }
+
+    /**
+     * Returns the encoded screenshot or null if it is neither kept by the
+     * handle nor cached nor can be loaded. Loading may block. The returned
+     * array is shared and must not be modified.
+     */
+    public byte[] getBytes() {
+        byte[] screenshot = getData();
+        return screenshot != null ? screenshot : ScreenshotCache.get(this);
+    }
+
+    /**
+     * Returns true if the screenshot is kept by the handle or cached, i.e.
+     * getBytes() does not need to load it.
+     */
+    public boolean isAvailable() {
+        return getData() != null || ScreenshotCache.contains(this);
+    }
+
+    /**
+     * Returns the screenshot decoded and downscaled to fit into the given
+     * size, or null if it cannot be loaded or decoded. Thumbnails are cached
+     * separately, so they may still be available after the screenshot itself
+     * has been evicted.
+     */
+    public Bitmap getThumbnail(int maxWidth, int maxHeight) {
+        return ScreenshotCache.getThumbnail(this, maxWidth, maxHeight);
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        getHash();
+        out.defaultWriteObject();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ScreenshotHandle))
+            return false;
+        ScreenshotHandle other = (ScreenshotHandle) o;
+        return uuid.equals(other.uuid) && getHash().equals(other.getHash());
+    }
+
+    @Override
+    public int hashCode() {
+        return uuid.hashCode() * 31 + getHash().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "ScreenshotHandle[" + getKey() + ", " + length + " bytes]";
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Serves any number of connections with a few threads instead of a Sender
+ * and a Receiver thread per Communicator: a selector thread reads and
+ * decodes frames of all connections without blocking, a writer thread sends
+ * the messages enqueued with the Senders, and a pool of delivery threads
+ * passes the decoded frames to the respective Receiver. Frames of one
+ * connection are delivered in order by one thread at a time, so in the
+ * steady state a single delivery thread serves all connections, while a
+ * Receiver or a response listener that blocks stalls neither the selector
+ * nor the other connections. Neither does a peer which stops reading or a
+ * connection waiting to replay a batch: the writer thread never waits for
+ * a single connection, whose messages stay enqueued until it can take
+ * them. Synchronous sends write from the calling thread as before; what
+ * the socket cannot take immediately is written by the selector thread.
+ * Sender and Receiver behave as with blocking streams otherwise.
+ *
+ * <pre>
+ * {@code
+ * SelectorTransport transport = new SelectorTransport();
+ * Communicator a = new Communicator(transport.connector(address), true);
+ * Communicator b = new Communicator(transport.connector(address), true);
+ * }
+ * </pre>
+ *
+ * The address may be any address SocketChannel.open(SocketAddress) accepts,
+ * e.g. a UnixDomainSocketAddress on Java 16 and later. Android's local
+ * sockets are not selectable, use the default LocalSocketConnector there.
+ */
+public class SelectorTransport {
+    private static final String TAG = "SelectorTransport";
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    // guarded by this
+    private Selector selector;
+    private ExecutorService writer;
+    private volatile Thread writerThread;
+    private ExecutorService delivery;
+    private boolean shutdown;
+
+    /**
+     * Returns a connector which opens a channel to the given address and
+     * serves it with this transport.
+     */
+    public Connector connector(final SocketAddress address) {
+        return new Connector() {
+            @Override
+            public Connection connect() throws IOException {
+                return SelectorTransport.this.connect(address);
+            }
+
+            @Override
+            public String toString() {
+                return address.toString();
+            }
+        };
+    }
+
+    private Connection connect(SocketAddress address) throws IOException {
+        start();
+        SocketChannel channel = SocketChannel.open(address);
+        try {
+            channel.configureBlocking(false);
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new ChannelConnection(this, channel);
+    }
+
+    /**
+     * Closes all connections served by this transport and stops its threads.
+     */
+    public void shutdown() {
+        Selector s;
+        synchronized (this) {
+            shutdown = true;
+            s = selector;
+            if (writer != null)
+                writer.shutdown();
+            if (delivery != null)
+                delivery.shutdown();
+        }
+        if (s == null)
+            return;
+        try {
+            for (SelectionKey key : s.keys())
+                ((ChannelConnection) key.attachment()).close();
+            s.close();
+        }
+        catch (IOException | ClosedSelectorException e) {
+            Log.d(TAG, "Closing selector failed: " + e);
+        }
+    }
+
+    private synchronized void start() throws IOException {
+        if (shutdown)
+            throw new IOException("Transport has been shut down");
+        if (selector != null)
+            return;
+
+        selector = Selector.open();
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cml-control-writer");
+                thread.setDaemon(true);
+                writerThread = thread;
+                return thread;
+            }
+        });
+
+        delivery = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cml-control-delivery");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        final Selector s = selector;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop(s);
+            }
+        }, "cml-control-selector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the executor the Senders of all connections send on.
+     */
+    synchronized Executor getWriter() {
+        return writer;
+    }
+
+    /**
+     * Returns true if called on the writer thread, which must not block on a
+     * single connection.
+     */
+    boolean isWriterThread() {
+        return Thread.currentThread() == writerThread;
+    }
+
+    /**
+     * Returns the executor received frames are passed to the Receivers on.
+     */
+    synchronized Executor getDelivery() {
+        return delivery;
+    }
+
+    /**
+     * Runs the given task on the selector thread.
+     */
+    synchronized void execute(Runnable task) {
+        if (selector == null)
+            return;
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void register(final ChannelConnection connection) {
+        final Selector s;
+        synchronized (this) {
+            s = selector;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                connection.register(s);
+            }
+        });
+    }
+
+    private void loop(Selector s) {
+        try {
+            while (s.isOpen()) {
+                s.select();
+
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                Iterator<SelectionKey> it = s.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    ChannelConnection connection = (ChannelConnection) key.attachment();
+                    if (key.isValid() && key.isReadable())
+                        connection.onReadable();
+                    if (key.isValid() && key.isWritable())
+                        connection.onWritable();
+                }
+            }
+        }
+        catch (IOException | ClosedSelectorException e) {
+            Log.d(TAG, "Selector loop stopped: " + e);
+        }
+    }
+}
@@ -23,38 +23,321 @@
 
 package de.fraunhofer.aisec.trustme.cmlcom;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
 
+import com.google.protobuf.nano.CodedOutputByteBufferNano;
 import com.google.protobuf.nano.MessageNano;
 
 /**
  * This abstract class sends protobuf messages over an associated socket output
  * stream. Messages enqueued for sending will be processed in the order enqueued.
+ * Messages which are enqueued while the Sender is busy are coalesced into a
+ * single write to the socket. Messages exceeding the socket send buffer size
+ * may be sent in chunks if the peer supports it.
+ *
+ * Writes to the socket are serialized by a write lock. Synchronous sends
+ * encode their message before taking the lock and hold it only while
+ * registering the response slot and writing the frame; waiting for the
+ * response happens outside of it. Hence, enqueued messages and requests of
+ * other threads are not held up by pending responses.
+ *
+ * @see setChunkedTransfer
+ * @see getWriteLockContentionCount
  */
 public abstract class Sender implements Runnable {
+    // guarded by writeLock
     private OutputStream socketOutputStream;
-    private DataOutputStream dataOutputStream;
-    private final BlockingQueue<MessageNano> outgoingMessageQueue;
+    private final BlockingQueue<OutgoingMessage> outgoingMessageQueue;
     private int socketSendBufferSize = 1024*1024;
+    private int maxBatchSize = 64*1024;
+    private boolean chunkedTransfer;
+    private boolean replayAfterReconnect;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private volatile ChannelMetrics metrics;
+
+    // serializes all writes to the socket, signals streamChanged whenever
+    // the socket output stream is replaced
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Condition streamChanged = writeLock.newCondition();
+    private final AtomicLong writeLockCount = new AtomicLong();
+    private final AtomicLong writeLockContentionCount = new AtomicLong();
+    private final AtomicLong writeLockWaitNanos = new AtomicLong();
+
+    // frames encoded by synchronous sends before taking the write lock,
+    // larger messages are encoded into the write buffer instead
+    private static final int MAX_PREENCODED_FRAME_SIZE = 64*1024;
+    private final BufferPool framePool = new BufferPool(MAX_PREENCODED_FRAME_SIZE, 4);
+
+    private volatile BulkRegion bulkRegion;
+    private volatile int bulkThreshold;
+    // write position of the bulk region before the first message whose
+    // descriptor is in the write buffer, -1 if none, guarded by writeLock
+    private long bulkRollback = -1;
+    private volatile int compressionThreshold;
+    // guarded by writeLock
+    private Deflater deflater;
+
+    private static final int INITIAL_WRITE_BUFFER_SIZE = 4096;
+
+    // length prefixed frames not yet written to the socket; messages are
+    // encoded directly into this buffer, which is reused for all writes.
+    // Guarded by writeLock, like all the fields below up to the listeners.
+    private byte[] writeBuffer = new byte[INITIAL_WRITE_BUFFER_SIZE];
+    private int writeBufferLength;
+    private int writeBufferFrames;
+    // a batch whose write failed, written again once the stream has been
+    // replaced; other writes wait for it so they do not overtake it
+    private byte[] replayBuffer;
+    private int replayLength;
+    private int replayFrames;
+    // the stream the batch held for replay failed on
+    private OutputStream replayFailed;
+    // messages in the write buffer whose listener must be notified after the write
+    private final ArrayList<OutgoingMessage> pendingListeners = new ArrayList<OutgoingMessage>();
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchedMessageCount = new AtomicLong();
+    private final AtomicLong maxMessagesPerBatch = new AtomicLong();
+
+    private final AtomicLong droppedMessageCount = new AtomicLong();
+
+    private volatile boolean stopped;
+    private volatile Thread runner;
+
+    // sends enqueued messages instead of the Sender's own thread, if set
+    private volatile Executor drainExecutor;
+    private volatile Backpressure backpressure;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    private final AtomicLong queueHighWaterMark = new AtomicLong();
 
     public Sender(OutputStream socketOutputStream) {
+        this(socketOutputStream, 32);
+    }
+
+    /**
+     * Creates a Sender whose outgoing message queue holds at most
+     * queueCapacity messages.
+     */
+    public Sender(OutputStream socketOutputStream, int queueCapacity) {
         super();
         setSocketOutputStream(socketOutputStream);
-        this.outgoingMessageQueue = new ArrayBlockingQueue<MessageNano>(32);
+        this.outgoingMessageQueue = new ArrayBlockingQueue<OutgoingMessage>(queueCapacity);
     }
 
     /**
-     * Enqueues a new message for sending.
+     * Enqueues a new message for sending. In case the queue is full, the
+     * overflow policy determines whether this method waits or whether a
+     * message is dropped.
+     *
+     * @see setOverflowPolicy
      */
     public void sendMessage(MessageNano message) {
-        try {
-            outgoingMessageQueue.put(message);
+        sendMessage(message, null);
+    }
+
+    /**
+     * Enqueues a new message for sending. The given listener, if not null,
+     * is notified about the progress of the transfer.
+     */
+    public void sendMessage(MessageNano message, TransferListener listener) {
+        OutgoingMessage outgoing = new OutgoingMessage(message, listener);
+        OverflowPolicy policy = overflowPolicy;
+
+        if (policy == OverflowPolicy.BLOCK ||
+                (policy == OverflowPolicy.COALESCE && getCoalescingKey(message) == null)) {
+            try {
+                outgoingMessageQueue.put(outgoing);
+                messageEnqueued();
+            }
+            catch (InterruptedException e) {
+                droppedMessageCount.incrementAndGet();
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        enqueue(outgoing);
+    }
+
+    /**
+     * Enqueues a new message for sending, waiting at most the given time for
+     * space in the queue. In case the queue is still full, the overflow policy
+     * is applied without waiting any further. Returns true if the message has
+     * been enqueued and false if it has been dropped.
+     */
+    public boolean trySendMessage(MessageNano message, long timeout, TimeUnit unit) throws InterruptedException {
+        return trySendMessage(message, null, timeout, unit);
+    }
+
+    /**
+     * Like trySendMessage(MessageNano, long, TimeUnit), notifying the given
+     * listener, if not null, about the progress of the transfer.
+     */
+    public boolean trySendMessage(MessageNano message, TransferListener listener, long timeout, TimeUnit unit) throws InterruptedException {
+        OutgoingMessage outgoing = new OutgoingMessage(message, listener);
+
+        if (overflowPolicy == OverflowPolicy.COALESCE) {
+            boolean enqueued;
+            synchronized (outgoingMessageQueue) {
+                if (coalesce(outgoing))
+                    return true;
+                enqueued = outgoingMessageQueue.offer(outgoing);
+            }
+            if (enqueued) {
+                messageEnqueued();
+                return true;
+            }
+        }
+        if (outgoingMessageQueue.offer(outgoing, timeout, unit)) {
+            messageEnqueued();
+            return true;
+        }
+        return enqueue(outgoing);
+    }
+
+    /**
+     * Enqueues the message without waiting according to the overflow policy.
+     */
+    private boolean enqueue(OutgoingMessage outgoing) {
+        boolean enqueued;
+
+        synchronized (outgoingMessageQueue) {
+            switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!(enqueued = outgoingMessageQueue.offer(outgoing))) {
+                    if (outgoingMessageQueue.poll() != null)
+                        droppedMessageCount.incrementAndGet();
+                }
+                break;
+            case COALESCE:
+                if (coalesce(outgoing))
+                    return true;
+                enqueued = outgoingMessageQueue.offer(outgoing);
+                break;
+            default:
+                enqueued = outgoingMessageQueue.offer(outgoing);
+                break;
+            }
+        }
+
+        if (enqueued)
+            messageEnqueued();
+        else
+            droppedMessageCount.incrementAndGet();
+        return enqueued;
+    }
+
+    /**
+     * Replaces an enqueued message which has the same coalescing key as the
+     * given one, keeping its position in the queue. Returns false if there is
+     * none or it is being sent already. Must be called holding the queue's
+     * monitor, so that two messages with the same key are never enqueued.
+     */
+    private boolean coalesce(OutgoingMessage outgoing) {
+        Object key = getCoalescingKey(outgoing.message);
+        if (key == null)
+            return false;
+
+        for (OutgoingMessage queued : outgoingMessageQueue) {
+            if (key.equals(getCoalescingKey(queued.message))) {
+                if (!queued.replace(outgoing))
+                    return false;
+                droppedMessageCount.incrementAndGet();
+                return true;
+            }
         }
-        catch (InterruptedException e) {}
+        return false;
+    }
+
+    private void messageEnqueued() {
+        updateQueueHighWaterMark();
+        scheduleDrain();
+    }
+
+    private void updateQueueHighWaterMark() {
+        int size = outgoingMessageQueue.size();
+        ChannelMetrics m = metrics;
+        if (m != null)
+            m.recordQueueDepth(size);
+
+        long mark;
+        while (size > (mark = queueHighWaterMark.get())) {
+            if (queueHighWaterMark.compareAndSet(mark, size))
+                break;
+        }
+    }
+
+    /**
+     * Returns the key under which enqueued messages may be coalesced by the
+     * COALESCE overflow policy, i.e. a newly enqueued message replaces an
+     * enqueued message with an equal key. Returns null if the message must
+     * not be coalesced, which is what the default implementation does.
+     */
+    protected Object getCoalescingKey(MessageNano message) {
+        return null;
+    }
+
+    /**
+     * Sets the policy applied when a message is enqueued while the outgoing
+     * message queue is full.
+     */
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        overflowPolicy = policy;
+    }
+
+    /**
+     * Returns the policy applied when the outgoing message queue is full.
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Returns the number of messages currently enqueued.
+     */
+    public int getQueueSize() {
+        return outgoingMessageQueue.size();
+    }
+
+    /**
+     * Returns the largest number of messages enqueued at the same time since
+     * the Sender was created or resetQueueHighWaterMark() was called.
+     */
+    public long getQueueHighWaterMark() {
+        return queueHighWaterMark.get();
+    }
+
+    /**
+     * Resets the queue high-water mark to the current queue size.
+     */
+    public void resetQueueHighWaterMark() {
+        queueHighWaterMark.set(outgoingMessageQueue.size());
+    }
+
+    /**
+     * Returns the number of messages dropped or replaced because of the overflow policy.
+     */
+    public long getDroppedMessageCount() {
+        return droppedMessageCount.get();
     }
 
     /**
@@ -63,41 +346,244 @@ public abstract class Sender implements Runnable {
      *
      * @see sendMessageSyncWithResponse
      */
-    public synchronized void sendMessageSync(MessageNano message) {
+    public void sendMessageSync(MessageNano message) {
         try {
-            sendMessageInternal(message);
-            dataOutputStream.flush();
+            sendDirect(message, null);
         }
         catch (Exception e) {
+            recordException(e);
             exceptionHandler(e);
         }
     }
 
+    /**
+     * Sends a new message without waiting for its response and returns the
+     * slot the response will be delivered to. The slot is registered with the
+     * Receiver and the message is written while holding the write lock, so
+     * responses are matched to requests in the order the requests were sent.
+     * Hence, many requests may be in flight at the same time and the caller
+     * may collect the responses later via PendingResponse.get().
+     *
+     * @throws IOException if the message could not be sent
+     */
+    public PendingResponse sendMessageWithResponse(MessageNano message, Receiver receiver) throws IOException {
+        try {
+            return sendDirect(message, receiver);
+        }
+        catch (IOException e) {
+            recordException(e);
+            throw e;
+        }
+    }
+
     /**
      * Sends a new message and returns the message's response. This method
      * blocks until the response has been received and then returns it.
      * Note that this (convenience) method may be used instead of dealing
      * with Receiver.setMarker and Receiver.getMessageAfterMarker manually.
+     * In contrast to the latter, other threads may send further requests
+     * while this method waits for the response. In case the message could
+     * not be sent, the exception is passed to exceptionHandler and null is
+     * returned.
+     *
+     * @deprecated A failure cannot be told apart from a missing response.
+     * Use sendMessageWithResponse(message, receiver).get() or the variant
+     * of this method taking a timeout, which throw the IOException.
+     */
+    @Deprecated
+    public byte[] sendMessageSyncWithResponse(MessageNano message, Receiver receiver) {
+        try {
+            return sendMessageWithResponse(message, receiver).get();
+        }
+        catch (IOException e) {
+            exceptionHandler(e);
+            return null;
+        }
+    }
+
+    /**
+     * Sends a new message and returns the message's response, waiting at most
+     * the given time for it. In contrast to the deprecated variant without a
+     * timeout, failures are thrown to the caller. A timeout fails the other
+     * outstanding requests as well, see Receiver.onResponseAbandoned.
+     *
+     * @throws ResponseTimeoutException if the response did not arrive in time
+     * @throws java.io.InterruptedIOException if interrupted while waiting
+     * @throws IOException if the message could not be sent
+     */
+    public byte[] sendMessageSyncWithResponse(MessageNano message, Receiver receiver, long timeout, TimeUnit unit) throws IOException {
+        return sendMessageWithResponse(message, receiver).get(timeout, unit);
+    }
+
+    /**
+     * Writes the message to the socket right away, bypassing the queue, and
+     * returns the response slot registered with receiver, if given. Plain
+     * frames are encoded before taking the write lock; messages which are
+     * sent in chunks, compressed or through the bulk region are encoded
+     * while holding it, as those share the Sender's buffers.
+     */
+    private PendingResponse sendDirect(MessageNano message, Receiver receiver) throws IOException {
+        long start = System.nanoTime();
+        byte[] frame = encodeFrame(message);
+        int frameLength = Framing.HEADER_SIZE + message.getCachedSize();
+        ChannelMetrics m = metrics;
+        if (frame != null && m != null)
+            m.recordEncode(System.nanoTime() - start);
+
+        lockWrite();
+        try {
+            awaitReplay();
+            if (socketOutputStream == null)
+                throw new ConnectionLostException("Not connected to cmld");
+
+            PendingResponse response = receiver != null ? receiver.expectResponse(message) : null;
+            try {
+                if (frame != null)
+                    writeFrame(frame, frameLength);
+                else if (sendMessageInternal(message, null))
+                    flushFrames();
+            }
+            catch (IOException e) {
+                if (response != null)
+                    receiver.withdrawResponse(response, e);
+                throw e;
+            }
+            return response;
+        }
+        finally {
+            writeLock.unlock();
+            if (frame != null)
+                framePool.release(frame);
+        }
+    }
+
+    /**
+     * Waits while a batch is held for replay and the Sender is connected, as
+     * the batch has to be written first, writing it if the stream has been
+     * replaced already. Must be called holding the write lock.
+     */
+    private void awaitReplay() throws InterruptedIOException {
+        try {
+            while (replayBuffer != null && socketOutputStream != null && !tryReplay())
+                streamChanged.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for messages to be replayed");
+        }
+    }
+
+    /**
+     * Returns the message as a length prefixed frame in an array from the
+     * frame pool, or null if it is too large or not sent as a plain frame.
+     */
+    private byte[] encodeFrame(MessageNano message) {
+        int messageLength = message.getSerializedSize();
+        if (messageLength + Framing.HEADER_SIZE > Math.min(socketSendBufferSize, MAX_PREENCODED_FRAME_SIZE))
+            return null;
+        if (bulkRegion != null && messageLength >= bulkThreshold)
+            return null;
+        int threshold = compressionThreshold;
+        if (threshold > 0 && messageLength >= threshold)
+            return null;
+
+        byte[] frame = framePool.acquire(Framing.HEADER_SIZE + messageLength);
+        Framing.writeHeader(frame, 0, messageLength, 0);
+        CodedOutputByteBufferNano output =
+            CodedOutputByteBufferNano.newInstance(frame, Framing.HEADER_SIZE, messageLength);
+        try {
+            message.writeTo(output);
+            output.checkNoSpaceLeft();
+        }
+        catch (IOException e) {
+            // the encoder is sized from getSerializedSize(), retry under the lock
+            framePool.release(frame);
+            return null;
+        }
+        return frame;
+    }
+
+    private void writeFrame(byte[] frame, int length) throws IOException {
+        socketOutputStream.write(frame, 0, length);
+        socketOutputStream.flush();
+        ChannelMetrics m = metrics;
+        if (m != null)
+            m.recordSent(1, length);
+    }
+
+    /**
+     * Takes the write lock, recording whether and how long it had to wait.
+     */
+    private void lockWrite() {
+        writeLockCount.incrementAndGet();
+        if (writeLock.tryLock())
+            return;
+
+        long start = System.nanoTime();
+        writeLock.lock();
+        long waited = System.nanoTime() - start;
+        writeLockContentionCount.incrementAndGet();
+        writeLockWaitNanos.addAndGet(waited);
+        ChannelMetrics m = metrics;
+        if (m != null)
+            m.recordWriteLockWait(waited);
+    }
+
+    /**
+     * Returns how often the write lock has been taken by the Sender's loop
+     * and by synchronous sends.
      */
-    public synchronized byte[] sendMessageSyncWithResponse(MessageNano message, Receiver receiver) {
-        receiver.setMarker();
-        sendMessageSync(message);
-        return receiver.getMessageAfterMarker();
+    public long getWriteLockCount() {
+        return writeLockCount.get();
     }
 
     /**
-     * Sets the socket output stream this Sender is associated with.
+     * Returns how often taking the write lock had to wait for another thread.
+     */
+    public long getWriteLockContentionCount() {
+        return writeLockContentionCount.get();
+    }
+
+    /**
+     * Returns the total time threads waited for the write lock in nanoseconds.
+     */
+    public long getWriteLockWaitNanos() {
+        return writeLockWaitNanos.get();
+    }
+
+    /**
+     * Sets the socket output stream this Sender is associated with. The
+     * stream may be replaced at any time, e.g. after reconnecting to cmld.
+     * While the stream is null, the Sender is disconnected: enqueued messages
+     * are kept until a stream is set and synchronous sends fail immediately
+     * with a ConnectionLostException.
      */
     public void setSocketOutputStream(OutputStream socketOutputStream) {
-        this.socketOutputStream = socketOutputStream;
-        this.dataOutputStream = new DataOutputStream(socketOutputStream);
+        boolean replayHeld;
+        writeLock.lock();
+        try {
+            this.socketOutputStream = socketOutputStream;
+            replayHeld = replayBuffer != null;
+            streamChanged.signalAll();
+        }
+        finally {
+            writeLock.unlock();
+        }
+        if (socketOutputStream != null)
+            scheduleDrain(replayHeld);
     }
 
     /**
      * Returns the socket output stream this Sender is associated with.
      */
     public OutputStream getSocketOutputStream() {
-        return socketOutputStream;
+        writeLock.lock();
+        try {
+            return socketOutputStream;
+        }
+        finally {
+            writeLock.unlock();
+        }
     }
 
     /**
@@ -121,6 +607,145 @@ public abstract class Sender implements Runnable {
         return socketSendBufferSize;
     }
 
+    /**
+     * Enables or disables sending messages which exceed the socket send
+     * buffer size in chunks. Each chunk fits into the socket send buffer and
+     * the chunks are written one after the other, so the Sender only ever
+     * waits for the peer to drain a single chunk. The receiving side must
+     * support reassembling chunked messages, which is the case for Receiver
+     * but not for cmld. If disabled (the default), such messages are not sent.
+     */
+    public void setChunkedTransfer(boolean enabled) {
+        chunkedTransfer = enabled;
+    }
+
+    /**
+     * Returns true if messages exceeding the socket send buffer size are sent in chunks.
+     */
+    public boolean isChunkedTransfer() {
+        return chunkedTransfer;
+    }
+
+    /**
+     * Enables compressing messages of at least threshold bytes, or disables
+     * compression if threshold is 0 (the default). A message is only sent
+     * compressed if that makes it smaller, which also lets messages exceeding
+     * the socket send buffer size through if they compress well enough.
+     *
+     * Compressed frames carry a flag unknown to plain peers, so both ends
+     * must opt in: only enable compression if the peer reads with this
+     * library's Receiver, which accepts compressed frames without further
+     * setup. cmld does not support them, so the Communicator never enables
+     * compression.
+     *
+     * The crossover below which compression does not pay off depends on the
+     * data and the link; CompressionBenchmark measures it.
+     */
+    public void setCompressionThreshold(int threshold) {
+        writeLock.lock();
+        try {
+            compressionThreshold = threshold;
+            if (threshold <= 0 && deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Places messages of at least threshold bytes in the given shared memory
+     * region and sends only their descriptor, or disables this if region is
+     * null. Messages which do not fit into the region's free space are sent
+     * inline. The peer's Receiver must be set up with the same region, cmld
+     * does not support this.
+     *
+     * @see BulkRegion
+     */
+    public void setBulkRegion(BulkRegion region, int threshold) {
+        writeLock.lock();
+        try {
+            this.bulkThreshold = threshold;
+            this.bulkRegion = region;
+            this.bulkRollback = -1;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the metrics the Sender records to, or null to record none.
+     */
+    public void setMetrics(ChannelMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public ChannelMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void recordException(Exception e) {
+        ChannelMetrics m = metrics;
+        if (m != null)
+            m.recordException(e);
+    }
+
+    /**
+     * Enables or disables replaying enqueued messages whose write failed. If
+     * enabled, the run loop keeps such messages and writes them again once a
+     * different socket output stream has been set, e.g. after reconnecting to
+     * cmld. Messages may hence be delivered twice if the write failed only
+     * partially. If disabled (the default), such messages are dropped.
+     */
+    public void setReplayAfterReconnect(boolean enabled) {
+        replayAfterReconnect = enabled;
+    }
+
+    /**
+     * Sets the maximum number of bytes the Sender coalesces into a single
+     * write when several messages are enqueued at the same time. A single
+     * message larger than this limit is still sent in one write.
+     */
+    public void setMaxBatchSize(int size) {
+        maxBatchSize = size;
+    }
+
+    /**
+     * Returns the maximum number of bytes coalesced into a single write.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Returns the number of writes the run loop has issued for enqueued messages.
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Returns the number of enqueued messages written by the run loop. Divided
+     * by getBatchCount() this yields the average number of messages per write.
+     */
+    public long getBatchedMessageCount() {
+        return batchedMessageCount.get();
+    }
+
+    /**
+     * Returns the largest number of messages coalesced into a single write.
+     */
+    public long getMaxMessagesPerBatch() {
+        return maxMessagesPerBatch.get();
+    }
+
     /**
      * This method will be invoked whenever an exception occurs in the
      * Sender's run method.
@@ -130,29 +755,505 @@ public abstract class Sender implements Runnable {
     /**
      * Sender main.
      * Loops and waits until another thread notifies us of data to be sent to cmld.
+     * Returns once stop() has been called.
      */
     public void run() {
+        runner = Thread.currentThread();
+        try {
+            while (!stopped) {
+                try {
+                    OutgoingMessage message = outgoingMessageQueue.take();
+                    sendBatch(message);
+                }
+                catch (Exception e) {
+                    if (stopped)
+                        break;
+                    recordException(e);
+                    exceptionHandler(e);
+                }
+            }
+        }
+        finally {
+            runner = null;
+            // do not leave the interrupt of stop() to the executor's next task
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Makes run() return, interrupting it if it is waiting. Messages still
+     * enqueued are not sent anymore. The Sender cannot be restarted.
+     */
+    public void stop() {
+        stopped = true;
+        Thread thread = runner;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    /**
+     * Tells a Sender draining on a shared executor whether its connection
+     * can take more data, see setDrainExecutor.
+     */
+    interface Backpressure {
+        /**
+         * Returns true if the connection cannot take more data for now, in
+         * which case it calls resumeDrain() once it can.
+         */
+        boolean isCongested();
+    }
+
+    /**
+     * Lets the given executor send enqueued messages instead of the Sender's
+     * own thread, in which case run() must not be called. A task is handed to
+     * the executor whenever messages are enqueued while none is pending, so
+     * a single thread can serve the Senders of many connections. The task
+     * never waits for the connection: while the backpressure, if given,
+     * reports congestion or a batch is held for replay, messages stay
+     * enqueued, and sending resumes once resumeDrain() is called or the
+     * output stream is replaced, respectively.
+     *
+     * @see SelectorTransport
+     */
+    void setDrainExecutor(Executor executor, Backpressure backpressure) {
+        this.backpressure = backpressure;
+        drainExecutor = executor;
+        scheduleDrain();
+    }
+
+    /**
+     * Resumes sending enqueued messages after the connection reported
+     * congestion.
+     */
+    void resumeDrain() {
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        scheduleDrain(false);
+    }
+
+    /**
+     * Hands a drain task to the drain executor, if set, unless one is pending
+     * already. Unless always is true, this is only done if messages are
+     * enqueued.
+     */
+    private void scheduleDrain(boolean always) {
+        Executor executor = drainExecutor;
+        if (executor == null || (!always && outgoingMessageQueue.isEmpty()) || !drainScheduled.compareAndSet(false, true))
+            return;
+        try {
+            executor.execute(drainTask);
+        }
+        catch (RejectedExecutionException e) {
+            // the executor has been shut down, messages stay enqueued
+            drainScheduled.set(false);
+        }
+    }
+
+    /**
+     * Sends enqueued messages until the queue is empty, the connection is
+     * congested or the Sender is disconnected or waiting to replay a batch,
+     * in which case they are sent once resumed or reconnected.
+     */
+    private void drain() {
+        // messages enqueued from now on schedule another run
+        drainScheduled.set(false);
+
         for (;;) {
+            Backpressure b = backpressure;
+            if (b != null && b.isCongested())
+                return;
+
+            // counted and timed by sendBatch
+            writeLock.lock();
             try {
-                MessageNano message = outgoingMessageQueue.take();
-                sendMessageInternal(message);
+                if (socketOutputStream == null || (replayBuffer != null && !tryReplay()))
+                    return;
+                OutgoingMessage message = outgoingMessageQueue.poll();
+                if (message == null)
+                    return;
+                try {
+                    sendBatch(message);
+                }
+                catch (Exception e) {
+                    recordException(e);
+                    exceptionHandler(e);
+                }
             }
-            catch (Exception e) {
-                exceptionHandler(e);
+            finally {
+                writeLock.unlock();
             }
         }
     }
 
-    private synchronized void sendMessageInternal(MessageNano message) throws Exception {
-        byte[] encodedMessage = MessageNano.toByteArray(message);
+    /**
+     * Writes the given message together with all messages currently enqueued,
+     * up to maxBatchSize bytes, to the socket using a single write.
+     */
+    private void sendBatch(OutgoingMessage message) throws IOException, InterruptedException {
+        int messages = 0;
+        ChannelMetrics m = metrics;
+
+        lockWrite();
+        try {
+            while (socketOutputStream == null || replayBuffer != null)
+                streamChanged.await();
 
-        if (encodedMessage.length + 4 > socketSendBufferSize) {
-            throw new Exception("Trying to send a message to cmld which exceeds socket send buffer size"
+            while (message != null) {
+                message.take();
+                if (m != null) {
+                    m.recordQueueWait(System.nanoTime() - message.enqueueNanos);
+                    m.recordQueueDepth(outgoingMessageQueue.size());
+                }
+                try {
+                    if (sendMessageInternal(message.message, message.listener) && message.listener != null)
+                        pendingListeners.add(message);
+                    ++messages;
+                }
+                catch (IOException e) {
+                    // the message has not been added, proceed with the others
+                    recordException(e);
+                    exceptionHandler(e);
+                }
+                if (writeBufferLength >= maxBatchSize)
+                    break;
+                message = outgoingMessageQueue.poll();
+            }
+
+            if (writeBufferLength > 0)
+                writeBatch();
+
+            for (int i = 0; i < pendingListeners.size(); ++i) {
+                OutgoingMessage sent = pendingListeners.get(i);
+                int length = sent.message.getCachedSize();
+                sent.listener.onProgress(length, length);
+            }
+        }
+        finally {
+            pendingListeners.clear();
+            writeLock.unlock();
+        }
+
+        if (messages == 0)
+            return;
+
+        batchCount.incrementAndGet();
+        batchedMessageCount.addAndGet(messages);
+        if (messages > maxMessagesPerBatch.get())
+            maxMessagesPerBatch.set(messages);
+    }
+
+    /**
+     * Appends the length prefixed message to the write buffer and returns true.
+     * The buffer is left untouched in case the message cannot be sent. Messages
+     * exceeding the socket send buffer size are instead written right away in
+     * chunks if chunked transfer is enabled, in which case false is returned.
+     */
+    private boolean sendMessageInternal(MessageNano message, TransferListener listener) throws IOException {
+        long start = System.nanoTime();
+        int messageLength = message.getSerializedSize();
+
+        if ((bulkRegion != null && messageLength >= bulkThreshold && appendBulk(message, messageLength)) ||
+                (compressionThreshold > 0 && messageLength >= compressionThreshold && appendCompressed(message, messageLength))) {
+            ChannelMetrics m = metrics;
+            if (m != null)
+                m.recordEncode(System.nanoTime() - start);
+            return true;
+        }
+
+        if (messageLength + Framing.HEADER_SIZE > socketSendBufferSize) {
+            if (chunkedTransfer) {
+                sendChunked(message, messageLength, listener);
+                return false;
+            }
+            throw new IOException("Trying to send a message to cmld which exceeds socket send buffer size"
                               + " (" + socketSendBufferSize + "). "
                               + " Not sending as we would likely block for several seconds.");
         }
 
-        dataOutputStream.writeInt(encodedMessage.length); // length prefix
-        dataOutputStream.write(encodedMessage, 0, encodedMessage.length); // payload
+        ensureWriteBufferCapacity(writeBufferLength + Framing.HEADER_SIZE + messageLength);
+        Framing.writeHeader(writeBuffer, writeBufferLength, messageLength, 0); // length prefix
+
+        // payload, getSerializedSize() has cached the sizes used by writeTo()
+        CodedOutputByteBufferNano output =
+            CodedOutputByteBufferNano.newInstance(writeBuffer, writeBufferLength + Framing.HEADER_SIZE, messageLength);
+        message.writeTo(output);
+        output.checkNoSpaceLeft();
+
+        writeBufferLength += Framing.HEADER_SIZE + messageLength;
+        ++writeBufferFrames;
+
+        ChannelMetrics m = metrics;
+        if (m != null)
+            m.recordEncode(System.nanoTime() - start);
+        return true;
+    }
+
+    /**
+     * Places the message in the bulk region and appends its descriptor to the
+     * write buffer. Returns false, leaving the write buffer untouched, if the
+     * region is full.
+     */
+    private boolean appendBulk(MessageNano message, int messageLength) throws IOException {
+        BulkRegion region = bulkRegion;
+        // checked before encoding, so a full region costs no extra encoding
+        long position = region.nextPosition(messageLength);
+        if (position < 0)
+            return false;
+
+        int frameOffset = writeBufferLength;
+        // the message is encoded behind the descriptor frame, then copied
+        int scratchOffset = frameOffset + Framing.HEADER_SIZE + Framing.BULK_DESCRIPTOR_SIZE;
+        ensureWriteBufferCapacity(scratchOffset + messageLength);
+
+        CodedOutputByteBufferNano output =
+            CodedOutputByteBufferNano.newInstance(writeBuffer, scratchOffset, messageLength);
+        message.writeTo(output);
+        output.checkNoSpaceLeft();
+
+        if (bulkRollback < 0)
+            bulkRollback = region.getWritePosition();
+        region.write(position, writeBuffer, scratchOffset, messageLength);
+
+        int checksum = BulkRegion.checksum(writeBuffer, scratchOffset, messageLength);
+        Framing.writeHeader(writeBuffer, frameOffset, Framing.BULK_DESCRIPTOR_SIZE, Framing.FLAG_BULK);
+        Framing.writeBulkDescriptor(writeBuffer, frameOffset + Framing.HEADER_SIZE, position, messageLength, checksum);
+
+        writeBufferLength += Framing.HEADER_SIZE + Framing.BULK_DESCRIPTOR_SIZE;
+        ++writeBufferFrames;
+        return true;
+    }
+
+    /**
+     * Appends the message compressed to the write buffer. Returns false,
+     * leaving the write buffer untouched, if compression does not make the
+     * message smaller or not small enough to fit into the socket send buffer.
+     */
+    private boolean appendCompressed(MessageNano message, int messageLength) throws IOException {
+        int frameOffset = writeBufferLength;
+        int payloadOffset = frameOffset + Framing.HEADER_SIZE + Framing.COMPRESSED_PREFIX_SIZE;
+        // the message is encoded behind the space for the compressed frame
+        int scratchOffset = payloadOffset + messageLength;
+        ensureWriteBufferCapacity(scratchOffset + messageLength);
+
+        CodedOutputByteBufferNano output =
+            CodedOutputByteBufferNano.newInstance(writeBuffer, scratchOffset, messageLength);
+        message.writeTo(output);
+        output.checkNoSpaceLeft();
+
+        if (deflater == null)
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.reset();
+        deflater.setInput(writeBuffer, scratchOffset, messageLength);
+        deflater.finish();
+
+        int limit = Math.min(messageLength - Framing.COMPRESSED_PREFIX_SIZE - 1,
+                socketSendBufferSize - Framing.HEADER_SIZE - Framing.COMPRESSED_PREFIX_SIZE);
+        int compressedLength = 0;
+        while (!deflater.finished() && compressedLength < limit)
+            compressedLength += deflater.deflate(writeBuffer, payloadOffset + compressedLength, limit - compressedLength);
+        if (!deflater.finished())
+            return false;
+
+        Framing.writeHeader(writeBuffer, frameOffset,
+                Framing.COMPRESSED_PREFIX_SIZE + compressedLength, Framing.FLAG_COMPRESSED);
+        Framing.writeInt(writeBuffer, frameOffset + Framing.HEADER_SIZE, messageLength);
+
+        writeBufferLength = payloadOffset + compressedLength;
+        ++writeBufferFrames;
+        return true;
+    }
+
+    /**
+     * Writes a message in chunks which each fit into the socket send buffer.
+     */
+    private void sendChunked(MessageNano message, int messageLength, TransferListener listener) throws IOException {
+        if (messageLength > Framing.LENGTH_MASK)
+            throw new IOException("Message too large (" + messageLength + ")");
+
+        // preserve the order of messages already buffered
+        if (writeBufferLength > 0)
+            flushFrames();
+
+        byte[] encodedMessage = MessageNano.toByteArray(message);
+        byte[] header = new byte[Framing.HEADER_SIZE];
+        int chunkSize = Math.max(1, socketSendBufferSize - Framing.HEADER_SIZE);
+
+        for (int offset = 0; offset < messageLength; offset += chunkSize) {
+            int length = Math.min(chunkSize, messageLength - offset);
+            boolean last = offset + length == messageLength;
+
+            Framing.writeHeader(header, 0, length, last ? 0 : Framing.FLAG_MORE);
+            socketOutputStream.write(header);
+            socketOutputStream.write(encodedMessage, offset, length);
+            socketOutputStream.flush();
+
+            ChannelMetrics m = metrics;
+            if (m != null)
+                m.recordSent(1, Framing.HEADER_SIZE + length);
+            if (listener != null)
+                listener.onProgress(offset + length, messageLength);
+        }
+    }
+
+    /**
+     * Writes all buffered frames to the socket and flushes it.
+     */
+    private void flushFrames() throws IOException {
+        try {
+            socketOutputStream.write(writeBuffer, 0, writeBufferLength);
+            socketOutputStream.flush();
+            recordSent();
+            bulkRollback = -1;
+        }
+        finally {
+            resetWriteBuffer();
+        }
+    }
+
+    /**
+     * Writes all buffered frames of the run loop to the socket. If replaying
+     * is enabled, a failed write is repeated once the stream has been replaced.
+     */
+    private void writeBatch() throws IOException, InterruptedException {
+        OutputStream stream = socketOutputStream;
+        try {
+            stream.write(writeBuffer, 0, writeBufferLength);
+            stream.flush();
+            recordSent();
+            bulkRollback = -1;
+            return;
+        }
+        catch (IOException e) {
+            if (!replayAfterReconnect)
+                throw e;
+            recordException(e);
+            exceptionHandler(e);
+            // the write buffer is used by direct sends while we wait
+            replayBuffer = Arrays.copyOf(writeBuffer, writeBufferLength);
+            replayLength = writeBufferLength;
+            replayFrames = writeBufferFrames;
+            replayFailed = stream;
+            // bulk messages are delivered by the replay
+            bulkRollback = -1;
+        }
+        finally {
+            resetWriteBuffer();
+        }
+        // a shared drain executor must not wait for this connection, the
+        // batch is replayed by the drain task scheduled on reconnecting
+        if (drainExecutor == null)
+            replay();
+    }
+
+    /**
+     * Writes the batch held for replay once the failed stream has been
+     * replaced. Until then, all other writes wait. The batch is dropped if
+     * interrupted.
+     */
+    private void replay() throws InterruptedException {
+        try {
+            while (!tryReplay())
+                streamChanged.await();
+        }
+        finally {
+            if (replayBuffer != null)
+                releaseReplay();
+        }
+    }
+
+    /**
+     * Writes the batch held for replay if the stream it failed on has been
+     * replaced. Returns true if it has been written and false if it is still
+     * held. Must be called holding the write lock.
+     */
+    private boolean tryReplay() {
+        OutputStream stream = socketOutputStream;
+        if (stream == null || stream == replayFailed)
+            return false;
+        try {
+            stream.write(replayBuffer, 0, replayLength);
+            stream.flush();
+            recordSent(replayFrames, replayLength);
+        }
+        catch (IOException e) {
+            recordException(e);
+            exceptionHandler(e);
+            replayFailed = stream;
+            return false;
+        }
+        releaseReplay();
+        return true;
+    }
+
+    private void releaseReplay() {
+        replayBuffer = null;
+        replayLength = 0;
+        replayFrames = 0;
+        replayFailed = null;
+        streamChanged.signalAll();
+    }
+
+    private void recordSent() {
+        recordSent(writeBufferFrames, writeBufferLength);
+    }
+
+    private void recordSent(int frames, int length) {
+        ChannelMetrics m = metrics;
+        if (m != null)
+            m.recordSent(frames, length);
+    }
+
+    /**
+     * Empties the write buffer. Bulk messages whose descriptors have not been
+     * written are taken back from the region, as their space would never be
+     * freed otherwise.
+     */
+    private void resetWriteBuffer() {
+        if (bulkRollback >= 0) {
+            BulkRegion region = bulkRegion;
+            if (region != null)
+                region.rewind(bulkRollback);
+            bulkRollback = -1;
+        }
+        writeBufferLength = 0;
+        writeBufferFrames = 0;
+        // do not hold on to the memory of an oversized message
+        if (writeBuffer.length > 2 * Math.max(maxBatchSize, INITIAL_WRITE_BUFFER_SIZE))
+            writeBuffer = new byte[INITIAL_WRITE_BUFFER_SIZE];
+    }
+
+    private void ensureWriteBufferCapacity(int capacity) {
+        if (capacity > writeBuffer.length)
+            writeBuffer = Arrays.copyOf(writeBuffer, Math.max(capacity, 2 * writeBuffer.length));
+    }
+
+    private static final class OutgoingMessage {
+        // replaced by a coalesced message until taken for sending
+        volatile MessageNano message;
+        volatile TransferListener listener;
+        final long enqueueNanos = System.nanoTime();
+        private boolean taken;
+
+        OutgoingMessage(MessageNano message, TransferListener listener) {
+            this.message = message;
+            this.listener = listener;
+        }
+
+        synchronized boolean replace(OutgoingMessage newer) {
+            if (taken)
+                return false;
+            message = newer.message;
+            listener = newer.listener;
+            return true;
+        }
+
+        /**
+         * Marks the message as being sent, after which it is not replaced anymore.
+         */
+        synchronized void take() {
+            taken = true;
+        }
     }
 }
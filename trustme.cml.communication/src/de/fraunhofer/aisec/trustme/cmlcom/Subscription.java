@@ -0,0 +1,66 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.cmlcom;
+
+/**
+ * A registration of a DaemonMessageListener or ContainerListListener with a
+ * Communicator.
+ *
+ * @see Communicator#subscribe
+ * @see Communicator#subscribeContainers
+ */
+public final class Subscription {
+    private final MessageDispatcher dispatcher;
+    final int response;
+    final String uuid;
+    final DaemonMessageListener listener;
+    final ContainerListListener containerListener;
+    // version of the container list last delivered, -1 before the first
+    // delivery, guarded by this
+    long containerVersion = -1;
+
+    Subscription(MessageDispatcher dispatcher, int response, String uuid, DaemonMessageListener listener) {
+        this.dispatcher = dispatcher;
+        this.response = response;
+        this.uuid = uuid;
+        this.listener = listener;
+        this.containerListener = null;
+    }
+
+    Subscription(MessageDispatcher dispatcher, ContainerListListener containerListener) {
+        this.dispatcher = dispatcher;
+        this.response = Communicator.ANY_RESPONSE;
+        this.uuid = null;
+        this.listener = null;
+        this.containerListener = containerListener;
+    }
+
+    /**
+     * Stops the delivery of messages to the listener. Messages already handed
+     * to the executor may still be delivered.
+     */
+    public void cancel() {
+        dispatcher.remove(this);
+    }
+}